@@ -0,0 +1,237 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Simple-Server, a light-weight extension of Simpleframework by Niall Gallagher.
+ *
+ * Simple-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Simple-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Simple-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.comm;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes and reads a byte[][][] table, e.g. a search result with a header row, in a compact
+ * column-wise binary format, which is much cheaper than Java serialization plus Base64.
+ * The stream starts with a magic number, a version and a flag byte, which tells whether the rest
+ * is deflated. Then follow row and column count, and then the cells column by column.
+ * All numbers after the flag byte are unsigned varints; a cell length is stored as length+1 with 0 for null.
+ * Columns with many repeated values are stored as a dictionary of distinct values followed by one
+ * index per row, all others as plain length-prefixed cells.
+ */
+public class BinaryTableCodec {
+	private static final int MAGIC = 0x4F4D5442;	// "OMTB"
+	private static final int VERSION = 1;
+	private static final int FLAG_DEFLATED = 1;
+
+	private static final int COLUMN_PLAIN = 0;
+	private static final int COLUMN_DICTIONARY = 1;
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * Wraps a cell for use as hash key.
+	 */
+	private static class CellKey {
+		private final byte[] mBytes;
+		private final int mHash;
+
+		CellKey(byte[] bytes) {
+			mBytes = bytes;
+			mHash = Arrays.hashCode(bytes);
+			}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+			}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof CellKey && Arrays.equals(mBytes, ((CellKey)o).mBytes);
+			}
+		}
+
+	/**
+	 * Writes the table to the stream, which is flushed, but not closed.
+	 * Rows may have different lengths; missing cells are written as null.
+	 * @param table
+	 * @param out
+	 * @param deflate whether to compress the cells with the fastest deflate level
+	 * @throws IOException
+	 */
+	public static void write(byte[][][] table, OutputStream out, boolean deflate) throws IOException {
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeByte(VERSION);
+		header.writeByte(deflate ? FLAG_DEFLATED : 0);
+
+		Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+		DeflaterOutputStream deflaterStream = deflate ? new DeflaterOutputStream(out, deflater, BUFFER_SIZE) : null;
+		OutputStream body = new BufferedOutputStream(deflate ? deflaterStream : out, BUFFER_SIZE);
+		try {
+			int columnCount = 0;
+			for (byte[][] row:table)
+				if (row != null)
+					columnCount = Math.max(columnCount, row.length);
+
+			writeVarInt(body, table.length);
+			writeVarInt(body, columnCount);
+			for (int column=0; column<columnCount; column++)
+				writeColumn(body, table, column);
+
+			body.flush();
+			if (deflate)
+				deflaterStream.finish();
+			out.flush();
+			}
+		finally {
+			if (deflate)
+				deflater.end();
+			}
+		}
+
+	/**
+	 * Reads a table written by write(). Cells of dictionary columns with equal content share one byte array.
+	 * The stream is not closed.
+	 * @param in
+	 * @return table
+	 * @throws IOException if the stream is not in this format or is truncated
+	 */
+	public static byte[][][] read(InputStream in) throws IOException {
+		DataInputStream header = new DataInputStream(in);
+		if (header.readInt() != MAGIC)
+			throw new IOException("Not a binary table.");
+		int version = header.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary table version: "+version);
+		boolean isDeflated = (header.readUnsignedByte() & FLAG_DEFLATED) != 0;
+
+		DataInputStream body = new DataInputStream(new BufferedInputStream(
+				isDeflated ? new InflaterInputStream(in) : in, BUFFER_SIZE));
+		int rowCount = readVarInt(body);
+		int columnCount = readVarInt(body);
+		byte[][][] table = new byte[rowCount][columnCount][];
+		for (int column=0; column<columnCount; column++) {
+			int encoding = body.readUnsignedByte();
+			if (encoding == COLUMN_DICTIONARY) {
+				byte[][] dictionary = new byte[readVarInt(body)][];
+				for (int i=0; i<dictionary.length; i++)
+					dictionary[i] = readCell(body);
+				for (int row=0; row<rowCount; row++) {
+					int index = readVarInt(body);
+					if (index > dictionary.length)
+						throw new IOException("Invalid dictionary index in column "+column+".");
+					table[row][column] = (index == 0) ? null : dictionary[index-1];
+					}
+				}
+			else if (encoding == COLUMN_PLAIN) {
+				for (int row=0; row<rowCount; row++)
+					table[row][column] = readCell(body);
+				}
+			else {
+				throw new IOException("Unknown encoding of column "+column+".");
+				}
+			}
+
+		return table;
+		}
+
+	/**
+	 * Writes a column as dictionary, if its non-null cells contain at most half as many distinct values.
+	 */
+	private static void writeColumn(OutputStream body, byte[][][] table, int column) throws IOException {
+		int nonNullCount = 0;
+		for (byte[][] row:table)
+			if (getCell(row, column) != null)
+				nonNullCount++;
+
+		HashMap<CellKey,Integer> indexMap = new HashMap<>();
+		ArrayList<byte[]> dictionary = new ArrayList<>();
+		for (byte[][] row:table) {
+			byte[] cell = getCell(row, column);
+			if (cell != null && indexMap.putIfAbsent(new CellKey(cell), dictionary.size()+1) == null) {
+				dictionary.add(cell);
+				if (2*dictionary.size() > nonNullCount)
+					break;
+				}
+			}
+
+		if (nonNullCount != 0 && 2*dictionary.size() <= nonNullCount) {
+			body.write(COLUMN_DICTIONARY);
+			writeVarInt(body, dictionary.size());
+			for (byte[] cell:dictionary)
+				writeCell(body, cell);
+			for (byte[][] row:table) {
+				byte[] cell = getCell(row, column);
+				writeVarInt(body, (cell == null) ? 0 : indexMap.get(new CellKey(cell)));
+				}
+			}
+		else {
+			body.write(COLUMN_PLAIN);
+			for (byte[][] row:table)
+				writeCell(body, getCell(row, column));
+			}
+		}
+
+	private static byte[] getCell(byte[][] row, int column) {
+		return (row == null || column >= row.length) ? null : row[column];
+		}
+
+	private static void writeCell(OutputStream body, byte[] cell) throws IOException {
+		if (cell == null) {
+			body.write(0);
+			}
+		else {
+			writeVarInt(body, cell.length+1);
+			body.write(cell);
+			}
+		}
+
+	private static byte[] readCell(DataInputStream body) throws IOException {
+		int length = readVarInt(body);
+		if (length == 0)
+			return null;
+
+		byte[] cell = new byte[length-1];
+		body.readFully(cell);
+		return cell;
+		}
+
+	private static void writeVarInt(OutputStream body, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			body.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+			}
+		body.write(value);
+		}
+
+	private static int readVarInt(DataInputStream body) throws IOException {
+		int value = 0;
+		for (int shift=0; shift<32; shift+=7) {
+			int b = body.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0)
+					throw new IOException("Invalid length in binary table.");
+				return value;
+				}
+			}
+		throw new IOException("Invalid length in binary table.");
+		}
+	}
@@ -16,13 +16,14 @@ package org.openmolecules.comm;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.*;
 
 public abstract class ClientCommunicator extends CommunicationHelper {
 	private static final int CONNECT_TIME_OUT = 5000;
 	private static final int READ_TIME_OUT = 600000;
 
-    private boolean	mWithSessions;
+    private boolean	mWithSessions,mAcceptBinaryTables;
 	private int mConnectTimeOut,mReadTimeOut;
 	private String	mSessionID,mSessionServerURL,mAppicationName;
 
@@ -54,6 +55,7 @@ public abstract class ClientCommunicator extends CommunicationHelper {
 		mAppicationName = (applicationName == null) ? "unknown" : applicationName;
 		mConnectTimeOut = CONNECT_TIME_OUT;
 		mReadTimeOut = READ_TIME_OUT;
+		mAcceptBinaryTables = true;
 		}
 
 	public void setConnectTimeOut(int timeOut) {
@@ -64,6 +66,16 @@ public abstract class ClientCommunicator extends CommunicationHelper {
 		mReadTimeOut = timeOut;
 	}
 
+	/**
+	 * If true (default), the server is told that byte[][][] tables, e.g. search results, may be sent
+	 * in the compact binary format of BinaryTableCodec instead of as encoded Java object.
+	 * Servers that don't know the binary format still send encoded objects, which are decoded as before.
+	 * @param b
+	 */
+	public void setAcceptBinaryTables(boolean b) {
+		mAcceptBinaryTables = b;
+	}
+
 	private URLConnection getConnection(String serverURL) throws IOException {
         URL urlServlet = new URL(serverURL);
         HttpURLConnection con = (HttpURLConnection)urlServlet.openConnection();
@@ -83,6 +95,9 @@ public abstract class ClientCommunicator extends CommunicationHelper {
 		// we want error messages to be returned with HTTP code 200
 		con.addRequestProperty(KEY_ERROR_200, "true");
 
+		if (mAcceptBinaryTables)
+			con.setRequestProperty(KEY_ACCEPT, CONTENT_TYPE_BINARY_TABLE+", text/plain");
+
 		return con;
         }
 
@@ -256,6 +271,18 @@ public abstract class ClientCommunicator extends CommunicationHelper {
 //          for (int i=0; i<keyValuePair.length; i+=2)
 //          	con.addRequestProperty(keyValuePair[i], keyValuePair[i+1]);
 
+        String contentType = con.getContentType();
+        if (contentType != null && contentType.startsWith(CONTENT_TYPE_BINARY_TABLE)) {
+            InputStream is = con.getInputStream();
+            try {
+                return BinaryTableCodec.read(is);
+                }
+            finally {
+                is.close();
+                showBusyMessage("");
+                }
+            }
+
         String response = getResponse(con);
 
         if (BODY_ERROR_INVALID_SESSION.equals(response))
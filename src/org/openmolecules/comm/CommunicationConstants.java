@@ -28,6 +28,8 @@ public interface CommunicationConstants {
     String BODY_ERROR_INVALID_SESSION = BODY_ERROR + ":" + ERROR_INVALID_SESSION;
     String BODY_IMAGE_PNG = "PNG";
 
+    String CONTENT_TYPE_BINARY_TABLE = "application/x-openmolecules-table";  // byte[][][] tables written by BinaryTableCodec
+
     String KEY_SESSION_ID = "sessionID";
     String KEY_REQUEST = "what";
     String KEY_QUERY = "query";
@@ -35,6 +37,7 @@ public interface CommunicationConstants {
     String KEY_USER = "user";
     String KEY_PASSWORD = "password";
     String KEY_ERROR_200 = "error200";  // if true, then the server uses HTTP code 200 for error messages
+    String KEY_ACCEPT = "Accept";       // contains CONTENT_TYPE_BINARY_TABLE, if the client can read binary tables
 
     String REQUEST_NEW_SESSION = "new";
     String REQUEST_END_SESSION = "end";
@@ -30,13 +30,15 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerCommunicator implements Container {
 	private long DEFAULT_MISUSE_DELAY = 10000;
 	private int DEFAULT_MISUSE_REQUESTS = 10;
 
+	private static volatile ExecutorService sComputeExecutor;
+
     private Executor mExecutor;
     private ServerTaskFactory mTaskFactory;
     private ArrayDeque<ClientRequest> mClientDeque;
@@ -70,7 +72,32 @@ public class ServerCommunicator implements Container {
 	 * @throws Exception
 	 */
     public static void initialize(ServerTaskFactory taskFactory, int threadCount, int port) throws Exception {
-     	Executor executor = (threadCount==1) ? Executors.newSingleThreadExecutor() : Executors.newFixedThreadPool(threadCount);
+		initialize(taskFactory, threadCount, port, false);
+		}
+
+	/**
+	 * Initialized and starts listening on the given port. In virtual thread mode (Java 21 or newer)
+	 * every request runs on its own virtual thread, such that requests waiting for I/O, e.g. database
+	 * statements, don't block other requests. CPU intensive parts of requests should then be passed
+	 * to compute(), which runs them on a pool with one platform thread per core.
+	 * If virtual threads are not supported, requests are handled by a thread pool as without virtual mode.
+	 * @param taskFactory the factory being asked for a task whenever a client request comes in
+	 * @param threadCount number of threads in thread pool, if virtual threads are not used
+	 * @param port the port, this server is listening on
+	 * @param useVirtualThreads whether each request shall run on its own virtual thread
+	 * @throws Exception
+	 */
+	public static void initialize(ServerTaskFactory taskFactory, int threadCount, int port, boolean useVirtualThreads) throws Exception {
+		Executor executor = useVirtualThreads ? createVirtualThreadExecutor() : null;
+		if (executor != null) {
+			int computeThreadCount = Runtime.getRuntime().availableProcessors();
+			sComputeExecutor = Executors.newFixedThreadPool(computeThreadCount, ComputeThread::new);
+			}
+		else {
+			if (useVirtualThreads)
+				System.out.println("Virtual threads are not supported by this Java version (21 or newer needed); using a thread pool.");
+			executor = (threadCount==1) ? Executors.newSingleThreadExecutor() : Executors.newFixedThreadPool(threadCount);
+			}
 
     	Container container = new ServerCommunicator(executor, taskFactory);
 		SocketProcessor server = new ContainerSocketProcessor(container);
@@ -79,6 +106,53 @@ public class ServerCommunicator implements Container {
     	connection.connect(address);
     	}
 
+	/**
+	 * @return whether requests are handled on virtual threads
+	 */
+	public static boolean isVirtualThreadMode() {
+		return sComputeExecutor != null;
+		}
+
+	/**
+	 * Runs a CPU intensive part of a request, e.g. a structure search. In virtual thread mode
+	 * it runs on the bounded compute pool, while the calling virtual thread waits without blocking
+	 * a carrier thread. Otherwise, or if called from the compute pool, it runs on the calling thread.
+	 * @param task
+	 * @return result of the task
+	 * @throws Exception exception thrown by the task
+	 */
+	public static <T> T compute(Callable<T> task) throws Exception {
+		ExecutorService computeExecutor = sComputeExecutor;
+		if (computeExecutor == null || Thread.currentThread() instanceof ComputeThread)
+			return task.call();
+
+		try {
+			return computeExecutor.submit(task).get();
+			}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof Exception)
+				throw (Exception)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw ee;
+			}
+		}
+
+	/**
+	 * Creates an executor, which starts a new virtual thread for every task, using reflection
+	 * to keep the server compatible with Java versions before 21.
+	 * @return executor or null, if virtual threads are not available
+	 */
+	private static Executor createVirtualThreadExecutor() {
+		try {
+			return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+		catch (ReflectiveOperationException e) {
+			return null;
+			}
+		}
+
 	/**
 	 * Defines the maximum number of request that  are allowed from the same IP-address within a given time.
 	 * @param delay delay in millis
@@ -112,6 +186,15 @@ public class ServerCommunicator implements Container {
 		}
 	}
 
+class ComputeThread extends Thread {
+	private static final AtomicInteger sCount = new AtomicInteger();
+
+	public ComputeThread(Runnable runnable) {
+		super(runnable, "Compute-"+sCount.incrementAndGet());
+		setDaemon(true);
+		}
+	}
+
 class ClientRequest {
 	public String ip;
 	public long time;
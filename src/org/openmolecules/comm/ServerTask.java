@@ -254,6 +254,38 @@ public abstract class ServerTask extends CommunicationHelper implements Communic
             }
         }
 
+    /**
+	 * Creates header and body of a response containing a table, e.g. a search result.
+	 * If the client accepts binary tables, then the table is streamed in the compact
+	 * BinaryTableCodec format. Otherwise it is sent as encoded object like with createObjectResponse().
+	 * @param table rows of cells, which may be null
+	 */
+    public void createTableResponse(byte[][][] table) {
+		if (!isBinaryTableAccepted()) {
+			createObjectResponse(table);
+			return;
+			}
+
+    	createResponseHeader(CONTENT_TYPE_BINARY_TABLE);
+
+    	try {
+        	OutputStream body = mResponse.getOutputStream();
+			BinaryTableCodec.write(table, body, true);
+        	body.close();
+            }
+        catch (IOException e) {
+            e.printStackTrace();
+            }
+        }
+
+	/**
+	 * @return whether the client announced that it can read tables written by BinaryTableCodec
+	 */
+	public boolean isBinaryTableAccepted() {
+		String accept = mRequest.getValue(KEY_ACCEPT);
+		return accept != null && accept.contains(CONTENT_TYPE_BINARY_TABLE);
+		}
+
     /**
 	 * Creates header and body of an image response to a client request.
 	 * @param image image as successful result to a server request
@@ -18,14 +18,83 @@
 
 package org.openmolecules.inventory;
 
+/**
+ * One version of a table row. Once a row was committed to a TableVersion, it must not be changed anymore.
+ * Changes are made on a copy(), which is committed as new version of the row. The old version is then
+ * linked to the new one, such that rows referencing the old version find the version they need.
+ */
 public class AlphaNumRow {
+	public static final int NO_KEY = -1;
+	public static final long NO_VERSION = 0;
+
 	private final byte[][] mData;
 	private final float[] mFloat;
+	private final int[] mForeignKey;
+	private int mPrimaryKey;
 	private AlphaNumRow[] mReferencedRow;
+	private long mVersion;
+	private volatile AlphaNumRow mNextVersion;
 
-	public AlphaNumRow(int columnCount) {
+	public AlphaNumRow(int columnCount, int foreignKeyCount) {
 		mData = new byte[columnCount][];
 		mFloat = new float[columnCount];
+		mForeignKey = new int[foreignKeyCount];
+		mPrimaryKey = NO_KEY;
+	}
+
+	/**
+	 * Creates an uncommitted copy of the given row.
+	 * @param row
+	 */
+	protected AlphaNumRow(AlphaNumRow row) {
+		mData = row.mData.clone();
+		mFloat = row.mFloat.clone();
+		mForeignKey = row.mForeignKey.clone();
+		mPrimaryKey = row.mPrimaryKey;
+		mReferencedRow = (row.mReferencedRow == null) ? null : row.mReferencedRow.clone();
+	}
+
+	/**
+	 * @return uncommitted copy of this row to be changed and committed as new version
+	 */
+	public AlphaNumRow copy() {
+		return new AlphaNumRow(this);
+	}
+
+	/**
+	 * @return number of the commit that created this row version or NO_VERSION, if it is not committed yet
+	 */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	protected void setVersion(long version) {
+		mVersion = version;
+	}
+
+	protected void setNextVersion(AlphaNumRow row) {
+		mNextVersion = row;
+	}
+
+	/**
+	 * @param version version number of a DataVersion
+	 * @return latest version of this row, which was committed with or before the given version
+	 */
+	public AlphaNumRow resolveVersion(long version) {
+		AlphaNumRow row = this;
+		AlphaNumRow next = row.mNextVersion;
+		while (next != null && next.mVersion <= version) {
+			row = next;
+			next = row.mNextVersion;
+		}
+		return row;
+	}
+
+	/**
+	 * @return true, if a newer version of this row was committed
+	 */
+	public boolean isOutdated() {
+		return mNextVersion != null;
 	}
 
 	public void setData(int column, byte[] data) {
@@ -48,11 +117,48 @@ public class AlphaNumRow {
 		return mFloat[column];
 	}
 
+	public int getPrimaryKey() {
+		return mPrimaryKey;
+	}
+
+	public void setPrimaryKey(int primaryKey) {
+		mPrimaryKey = primaryKey;
+	}
+
+	/**
+	 * @param fkIndex index of foreign key, which is the same as its column index
+	 * @return referenced primary key or NO_KEY, if the foreign key is null
+	 */
+	public int getForeignKey(int fkIndex) {
+		return mForeignKey[fkIndex];
+	}
+
+	public void setForeignKey(int fkIndex, int key) {
+		mForeignKey[fkIndex] = key;
+	}
+
 	public void setReferencedRows(AlphaNumRow[] referencedRow) {
 		mReferencedRow = referencedRow;
 	}
 
-	public AlphaNumRow getReferencedRow(int column) {
+	public void setReferencedRow(int column, AlphaNumRow referencedRow) {
+		mReferencedRow[column] = referencedRow;
+	}
+
+	/**
+	 * @param column foreign key index
+	 * @return referenced row as committed with or before the given version
+	 */
+	public AlphaNumRow getReferencedRow(int column, long version) {
+		AlphaNumRow row = mReferencedRow[column];
+		return row == null ? null : row.resolveVersion(version);
+	}
+
+	/**
+	 * @param column foreign key index
+	 * @return row version referenced by this row version, which may be outdated
+	 */
+	protected AlphaNumRow getReferencedRowVersion(int column) {
 		return mReferencedRow[column];
 	}
 }
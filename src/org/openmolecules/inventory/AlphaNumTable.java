@@ -21,22 +21,48 @@ package org.openmolecules.inventory;
 import com.actelion.research.util.ByteArrayComparator;
 
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 public class AlphaNumTable implements ConfigurationKeys {
+	private static final int LOAD_BATCH_SIZE = 4096;
+	private static final int MAX_PENDING_BATCHES = 16;
+	private static final int MAX_KEYS_PER_QUERY = 1000;
+
 	private String mSpecification, mTableDisplayName, mTableLongName, mTableAliasName;
 	private String[] mColumnTitle;
 	private String[] mColumnName;
 	private ForeignKey[] mForeignKey;
 	private int[] mColumnType;
 	private int mPrimaryKeyColumn,mIDColumn,mForeignKeyCount;
-	private ArrayList<AlphaNumRow> mRowList;
-	private TreeMap<byte[],AlphaNumRow> mPKToRowMap;
-	private TreeMap<byte[],byte[]> mIDToPKMap;
+	private VersionManager mVersionManager;	// rows and primary key index are kept in TableVersions
+	private StorageBackend mStorage;
+	private int mVersionIndex;
+	private int[] mFreeSlot;	// empty slots of deleted rows; only accessed within commits
+	private int mFreeSlotCount;
+	private volatile long mLastReplaceVersion,mReferenceUpdateVersion;
+	private volatile Runnable mModificationListener;
+	private IntIntMap mChangedKeys;
+	private ConcurrentSkipListMap<byte[],Integer> mIDToPKMap;	// not versioned; always reflects the latest commit
+	private final ConcurrentHashMap<String,String> mWriteSQLMap = new ConcurrentHashMap<>();
+	private String mDeleteSQL;
 
 	/**
 	 * Parses specification and sets up columns and properties
@@ -123,6 +149,7 @@ public class AlphaNumTable implements ConfigurationKeys {
 			return false;
 		}
 
+		mDeleteSQL = "DELETE FROM "+mTableLongName+" WHERE "+mColumnName[mPrimaryKeyColumn]+"=?";
 		return true;
 	}
 
@@ -200,20 +227,96 @@ public class AlphaNumTable implements ConfigurationKeys {
 		return mColumnType[i];
 	}
 
+	protected void setVersionManager(VersionManager versionManager, int index) {
+		mVersionManager = versionManager;
+		mVersionIndex = index;
+		mFreeSlot = new int[16];
+	}
+
+	public VersionManager getVersionManager() {
+		return mVersionManager;
+	}
+
+	/**
+	 * @param storage where rows are loaded from and written to
+	 */
+	public void setStorage(StorageBackend storage) {
+		mStorage = storage;
+	}
+
+	public StorageBackend getStorage() {
+		return mStorage;
+	}
+
+	/**
+	 * @return index of this table's TableVersion within a DataVersion
+	 */
+	public int getVersionIndex() {
+		return mVersionIndex;
+	}
+
+	/**
+	 * Rows are stored in slots, which keep their index when other rows are deleted.
+	 * Deleted rows leave empty slots, which are reused by new rows or removed by compact().
+	 * Anything that keeps row slot indexes beyond a single call, e.g. a search, must
+	 * keep and use the same TableVersion, ideally as part of a pinned DataVersion.
+	 * @return latest committed version of this table's rows
+	 */
+	public TableVersion getCurrentVersion() {
+		return mVersionManager.getCurrentVersion().getTableVersion(this);
+	}
+
+	/**
+	 * @return number of existing rows, which may be lower than the number of row slots
+	 */
 	public int getRowCount() {
-		return mRowList.size();
+		return getCurrentVersion().getRowCount();
+	}
+
+	/**
+	 * @param id
+	 * @return primary key of row with given ID or AlphaNumRow.NO_KEY
+	 */
+	public int getPKFromID(byte[] id) {
+		Integer pk = mIDToPKMap.get(id);
+		return pk == null ? AlphaNumRow.NO_KEY : pk;
 	}
 
-	public byte[] getPKFromID(byte[] id) {
-		return mIDToPKMap.get(id);
+	/**
+	 * @param primaryKey
+	 * @return latest committed version of the row or null; within a UnitOfWork its uncommitted version
+	 */
+	public AlphaNumRow getRowByPrimaryKey(int primaryKey) {
+		VersionManager.Commit commit = mVersionManager.getOwnCommit();
+		return commit != null ? commit.getRowByPrimaryKey(this, primaryKey)
+				: getCurrentVersion().getRowByPrimaryKey(primaryKey);
 	}
 
-	public AlphaNumRow getRow(byte[] primaryKey) {
-		return mPKToRowMap.get(primaryKey);
+	/**
+	 * Runs multiple table operations as one UnitOfWork, i.e. all or none of them are written
+	 * to the database and memory.
+	 * @param work
+	 * @return null or error message, if nothing was changed
+	 */
+	public String runUnitOfWork(UnitOfWork.Work work) {
+		return UnitOfWork.run(mVersionManager, mStorage, work);
 	}
 
-	public ArrayList<AlphaNumRow> getRowList() {
-		return mRowList;
+	/**
+	 * Parses primary or foreign key values, which are non-negative integers in the database.
+	 * @param key
+	 * @return key value or AlphaNumRow.NO_KEY, if key is null or not a valid key
+	 */
+	public static int parseKey(String key) {
+		if (key != null) {
+			try {
+				int value = Integer.parseInt(key.trim());
+				if (value >= 0)
+					return value;
+			}
+			catch (NumberFormatException nfe) {}
+		}
+		return AlphaNumRow.NO_KEY;
 	}
 
 	public int getColumnCount() {
@@ -267,6 +370,105 @@ public class AlphaNumTable implements ConfigurationKeys {
 		script.append(");\n");
 	}
 
+	/**
+	 * @param condition SQL condition or null
+	 * @return all rows that match the condition as raw column values in the order of buildSelectSQL()
+	 */
+	protected ArrayList<String[]> selectRawRows(Connection connection, String condition) throws SQLException {
+		ArrayList<String[]> rowList = new ArrayList<>();
+		Statement stmt = connection.createStatement();
+		ResultSet rset = stmt.executeQuery(condition == null ? buildSelectSQL() : buildSelectSQL()+" WHERE "+condition);
+		int columnCount = rset.getMetaData().getColumnCount();
+		while (rset.next()) {
+			String[] value = new String[columnCount];
+			for (int i=0; i<columnCount; i++)
+				value[i] = rset.getString(i+1);
+			rowList.add(value);
+		}
+		rset.close();
+		stmt.close();
+		return rowList;
+	}
+
+	/**
+	 * @param keyList primary keys
+	 * @return all existing rows with the given primary keys as raw column values in the order of buildSelectSQL()
+	 */
+	protected ArrayList<String[]> selectRawRows(Connection connection, int[] keyList) throws SQLException {
+		ArrayList<String[]> rowList = new ArrayList<>();
+		for (int start=0; start<keyList.length; start+=MAX_KEYS_PER_QUERY) {
+			StringBuilder condition = new StringBuilder(mColumnName[mPrimaryKeyColumn]).append(" IN (");
+			int end = Math.min(start+MAX_KEYS_PER_QUERY, keyList.length);
+			for (int i=start; i<end; i++) {
+				if (i != start)
+					condition.append(',');
+				condition.append(keyList[i]);
+			}
+			condition.append(')');
+			rowList.addAll(selectRawRows(connection, condition.toString()));
+		}
+		return rowList;
+	}
+
+	/**
+	 * @return primary keys of all rows of the database table
+	 */
+	protected int[] selectPrimaryKeys(Connection connection) throws SQLException {
+		int[] key = new int[1024];
+		int count = 0;
+		Statement stmt = connection.createStatement();
+		ResultSet rset = stmt.executeQuery("SELECT "+mColumnName[mPrimaryKeyColumn]+" FROM "+mTableLongName);
+		while (rset.next()) {
+			if (count == key.length)
+				key = Arrays.copyOf(key, 2*count);
+			key[count++] = rset.getInt(1);
+		}
+		rset.close();
+		stmt.close();
+		return Arrays.copyOf(key, count);
+	}
+
+	/**
+	 * Inserts or updates a row in memory, which was inserted or changed in the database by another client.
+	 * Referenced rows must already be in memory.
+	 * @param value raw column values in the order of buildSelectSQL()
+	 * @return false, if the row has no valid primary key
+	 */
+	protected boolean syncRow(String[] value) {
+		int primaryKey = parseKey(value[mPrimaryKeyColumn]);
+		if (primaryKey == AlphaNumRow.NO_KEY)
+			return false;
+
+		notifyModification();
+		mVersionManager.commit(commit -> {
+			AlphaNumRow row = commit.edit(this).getRowByPrimaryKey(primaryKey);
+			if (row == null) {
+				row = createRow(value);
+				row.setReferencedRows(new AlphaNumRow[mForeignKeyCount]);
+				for (int fkIndex=0; fkIndex<mForeignKeyCount; fkIndex++)
+					updateReferencedRow(commit, row, fkIndex);
+				addRow(commit, row);
+			}
+			else {
+				AlphaNumRow newRow = row.copy();
+				setRowValues(newRow, value);
+				for (int fkIndex=0; fkIndex<mForeignKeyCount; fkIndex++)
+					updateReferencedRow(commit, newRow, fkIndex);
+				replaceRow(commit, row, newRow);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Removes a row from memory, which was deleted in the database by another client.
+	 * @param primaryKey
+	 */
+	protected void syncDelete(int primaryKey) {
+		notifyModification();
+		mVersionManager.commit(commit -> removeRow(commit, primaryKey));
+	}
+
 	private String buildSelectSQL() {
 		StringBuilder sql = new StringBuilder("SELECT");
 
@@ -283,95 +485,290 @@ public class AlphaNumTable implements ConfigurationKeys {
 		return sql.toString();
 	}
 
-	protected String insertRow(TreeMap<String,String> columnValueMap, byte[][] newPrimaryKeyHolder) {
-		StringBuilder sql = new StringBuilder("INSERT INTO ");
-		sql.append(mTableLongName);
-		sql.append(' ');
+	protected String insertRow(TreeMap<String,String> columnValueMap, int[] newPrimaryKeyHolder) {
+		String errorMsg = checkValues(columnValueMap);
+		if (errorMsg != null)
+			return errorMsg;
 
-		int count = 0;
-		for (int i=0; i<mColumnName.length; i++) {
-			String value = columnValueMap.get(mColumnName[i]);
-			if (value != null) {
-				sql.append(count == 0 ? '(' : ",");
-				sql.append(mColumnName[i]);
-				count++;
-			}
+		if (getWrittenColumns(columnValueMap, true).isEmpty())
+			return "No column data found.";
+
+		errorMsg = writeNewRow(columnValueMap, newPrimaryKeyHolder);
+		if (errorMsg != null)
+			return errorMsg;
+
+		recordChange(newPrimaryKeyHolder[0]);
+		AlphaNumRow row = createRow(columnValueMap, newPrimaryKeyHolder[0]);
+		mVersionManager.commit(commit -> {
+			for (int fkIndex=0; fkIndex<mForeignKeyCount; fkIndex++)
+				updateReferencedRow(commit, row, fkIndex);
+			addRow(commit, row);
+		});
+		return null;
+	}
+
+	/**
+	 * Stores one new row including derived columns. Derived classes may override this
+	 * to store additional values within one transaction.
+	 * @param columnValueMap validated column values and derived column values
+	 * @param newPrimaryKeyHolder receives the generated primary key
+	 * @return null or error message
+	 */
+	protected String writeNewRow(TreeMap<String,String> columnValueMap, int[] newPrimaryKeyHolder) {
+		notifyModification();
+		return mStorage.insertRows(this, Collections.singletonList(columnValueMap), newPrimaryKeyHolder);
+	}
+
+	/**
+	 * @return new uncommitted row with the given primary key and column values
+	 */
+	private AlphaNumRow createRow(TreeMap<String,String> columnValueMap, int primaryKey) {
+		AlphaNumRow row = createRow();
+		row.setPrimaryKey(primaryKey);
+		row.setData(mPrimaryKeyColumn, Integer.toString(primaryKey).getBytes(StandardCharsets.UTF_8));
+		for (String columnName:columnValueMap.keySet()) {
+			int column = getColumnIndex(columnName);
+			String value = columnValueMap.get(columnName);
+			if (column != -1 && value != null)
+				setValue(row, column, value);
 		}
+		setDerivedValues(row, columnValueMap);
+		row.setReferencedRows(new AlphaNumRow[mForeignKeyCount]);
+		return row;
+	}
 
-		if (count == 0)
-			return "No column data found.";
+	/**
+	 * Adds a new row to the table version of the commit. Slots of deleted rows are reused,
+	 * because searches on older versions keep their own copy of the slot's segment.
+	 * If a row with the same primary key exists already, then it is replaced. This happens, if the
+	 * ChangePoller found a row inserted by this server, before the inserting thread committed it.
+	 * Staged commits only get the row; indexes are updated, when the row is committed.
+	 */
+	private void addRow(VersionManager.Commit commit, AlphaNumRow row) {
+		TableVersion.Editor editor = commit.edit(this);
+		AlphaNumRow existingRow = editor.getRowByPrimaryKey(row.getPrimaryKey());
+		if (existingRow != null) {
+			replaceRow(commit, existingRow, row);
+			return;
+		}
+		if (commit.isStaged()) {
+			editor.appendRow(row);
+			return;
+		}
 
-		sql.append(") VALUES ");
+		boolean isFreeSlot = (mFreeSlotCount != 0);
+		int freeSlot = isFreeSlot ? mFreeSlot[--mFreeSlotCount] : -1;
+		if (isFreeSlot)
+			editor.setRow(freeSlot, row);
+		else
+			editor.appendRow(row);
+		if (mIDColumn != -1 && row.getData(mIDColumn) != null)
+			mIDToPKMap.put(row.getData(mIDColumn), row.getPrimaryKey());
+		rowChanged(null, row);
+
+		commit.onRollback(() -> {
+			if (isFreeSlot)	// a removeRow() of the same commit may have pushed another slot to this position
+				mFreeSlot[mFreeSlotCount++] = freeSlot;
+			if (mIDColumn != -1 && row.getData(mIDColumn) != null)
+				mIDToPKMap.remove(row.getData(mIDColumn));
+			rowChanged(row, null);
+		});
+	}
 
-		count = 0;
-		for (int column=0; column<mColumnName.length; column++) {
-			String value = columnValueMap.get(mColumnName[column]);
-			if (value != null) {
-				String errorMsg = checkValue(value, column);
-				if (errorMsg != null)
-					return errorMsg;
-				if (column == mIDColumn && mIDToPKMap.containsKey(value.getBytes(StandardCharsets.UTF_8)))
-					return mColumnName[column].concat(" '".concat(value).concat("' does already exist."));
+	/**
+	 * Replaces a row by a new version of it within the commit. Indexes are not changed by staged commits.
+	 * @param row current version
+	 * @param newRow changed copy of row
+	 */
+	protected void replaceRow(VersionManager.Commit commit, AlphaNumRow row, AlphaNumRow newRow) {
+		commit.edit(this).replaceRow(newRow);
+		if (commit.isStaged())
+			return;
+
+		updateIDIndex(row, newRow);
+		rowChanged(row, newRow);
+		mLastReplaceVersion = commit.getVersion();
+
+		commit.onRollback(() -> {
+			updateIDIndex(newRow, row);
+			rowChanged(newRow, row);
+		});
+	}
 
-				sql.append(count == 0 ? '(' : ",");
-				if (value.isEmpty()) {
-					sql.append("NULL");
-				}
-				else {
-					if (mColumnType[column] == COLUMN_TYPE_TEXT
-					 || mColumnType[column] == COLUMN_TYPE_ID
-					 || mColumnType[column] == COLUMN_TYPE_DATE) {
-						sql.append('\'');
-						sql.append(value);
-						sql.append('\'');
-					}
-					else {
-						sql.append(value);
-					}
-				}
-				count++;
-			}
+	private void updateIDIndex(AlphaNumRow row, AlphaNumRow newRow) {
+		if (mIDColumn != -1 && !Arrays.equals(row.getData(mIDColumn), newRow.getData(mIDColumn))) {
+			if (row.getData(mIDColumn) != null)
+				mIDToPKMap.remove(row.getData(mIDColumn));
+			if (newRow.getData(mIDColumn) != null)
+				mIDToPKMap.put(newRow.getData(mIDColumn), newRow.getPrimaryKey());
 		}
+	}
 
-		sql.append(")");
+	/**
+	 * Removes the row and leaves an empty slot, which is added to the list of free slots for later reuse.
+	 * Staged commits only remove the row.
+	 */
+	private void removeRow(VersionManager.Commit commit, int primaryKey) {
+		TableVersion.Editor editor = commit.edit(this);
+		AlphaNumRow row = editor.getRowByPrimaryKey(primaryKey);
+		if (row != null && commit.isStaged()) {
+			editor.removeRow(primaryKey);
+		}
+		else if (row != null) {
+			int slot = editor.removeRow(primaryKey);
+			if (mFreeSlotCount == mFreeSlot.length)
+				mFreeSlot = Arrays.copyOf(mFreeSlot, Math.max(16, 2*mFreeSlotCount));
+			mFreeSlot[mFreeSlotCount++] = slot;
+			if (mIDColumn != -1 && row.getData(mIDColumn) != null)
+				mIDToPKMap.remove(row.getData(mIDColumn));
+			rowChanged(row, null);
+
+			commit.onRollback(() -> {
+				mFreeSlotCount--;
+				if (mIDColumn != -1 && row.getData(mIDColumn) != null)
+					mIDToPKMap.put(row.getData(mIDColumn), row.getPrimaryKey());
+				rowChanged(null, row);
+			});
+		}
+	}
 
-		String errorMsg = runUpdateSQL(sql.toString(), newPrimaryKeyHolder);
-		if (errorMsg != null)
-			return errorMsg;
+	/**
+	 * Called within the commit, whenever a row was added, replaced by a new version or removed,
+	 * such that derived tables can keep additional indexes up to date. Tables loaded completely
+	 * are passed to setLoadedRows() instead.
+	 * @param row previous version or null, if the row was added
+	 * @param newRow new version or null, if the row was removed
+	 */
+	protected void rowChanged(AlphaNumRow row, AlphaNumRow newRow) {}
 
-		AlphaNumRow row = new AlphaNumRow(getColumnCount());
-		byte[] primaryKey = newPrimaryKeyHolder[0];
-		row.setData(mPrimaryKeyColumn, primaryKey);
-		for (String columnName:columnValueMap.keySet()) {
-			int column = getColumnIndex(columnName);
-			String value = columnValueMap.get(columnName);
-			if (value != null) {
-				row.setData(column, value.isEmpty() ? null : value.getBytes(StandardCharsets.UTF_8));
-				if (mColumnType[column] == COLUMN_TYPE_NUM) {
-					try {
-						row.setFloat(Float.parseFloat(value), column);
-					}
-					catch (NumberFormatException nfe) {
-						row.setFloat(Float.NaN, column);
+	/**
+	 * Commits a changed copy of the row with the given primary key as new row version.
+	 * References of changed foreign keys are updated automatically.
+	 * @param primaryKey
+	 * @param change is called with an uncommitted copy of the current row version
+	 * @return false, if the row doesn't exist
+	 */
+	protected boolean changeRow(int primaryKey, Consumer<AlphaNumRow> change) {
+		boolean[] found = new boolean[1];
+		mVersionManager.commit(commit -> {
+			AlphaNumRow row = commit.edit(this).getRowByPrimaryKey(primaryKey);
+			if (row != null) {
+				AlphaNumRow newRow = row.copy();
+				change.accept(newRow);
+				for (int fkIndex=0; fkIndex<mForeignKeyCount; fkIndex++)
+					if (newRow.getForeignKey(fkIndex) != row.getForeignKey(fkIndex))
+						updateReferencedRow(commit, newRow, fkIndex);
+				replaceRow(commit, row, newRow);
+				found[0] = true;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * @return fraction of row slots that are empty because of deleted rows
+	 */
+	public float getFragmentation() {
+		return getCurrentVersion().getFragmentation();
+	}
+
+	/**
+	 * Rebuilds dense row storage without empty slots. Searches, which are running
+	 * on older versions, are not affected, because they use their own slot indexes.
+	 * @return true if the table was compacted; false if it had no empty slots
+	 */
+	public boolean compact() {
+		boolean[] isCompacted = new boolean[1];
+		mVersionManager.commit(commit -> {
+			TableVersion.Editor editor = commit.edit(this);
+			ArrayList<AlphaNumRow> rowList = new ArrayList<>(editor.getSlotCount());
+			for (int slot=0; slot<editor.getSlotCount(); slot++)
+				if (editor.getRow(slot) != null)
+					rowList.add(editor.getRow(slot));
+			if (rowList.size() == editor.getSlotCount())
+				return;
+
+			commit.replace(this, TableVersion.create(rowList, commit.getVersion()));
+			int freeSlotCount = mFreeSlotCount;
+			mFreeSlotCount = 0;
+			commit.onRollback(() -> mFreeSlotCount = freeSlotCount);
+			isCompacted[0] = true;
+			System.out.println("Compacted table "+getName()+": "+rowList.size()+" rows");
+		});
+		return isCompacted[0];
+	}
+
+	/**
+	 * @return true, if rows of referenced tables were replaced by new versions since the last
+	 * updateOutdatedReferences(), such that references may need to be resolved via version chains
+	 */
+	public boolean hasOutdatedReferences() {
+		for (ForeignKey fk:mForeignKey)
+			if (fk.getReferencedTable().mLastReplaceVersion > mReferenceUpdateVersion)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Replaces all rows, which reference outdated row versions, by new versions referencing
+	 * the current ones. This keeps version chains short and lets outdated row versions be
+	 * garbage collected, once no running search uses them anymore.
+	 */
+	public void updateOutdatedReferences() {
+		mVersionManager.commit(commit -> {
+			TableVersion.Editor editor = commit.edit(this);
+			int count = 0;
+			for (int slot=0; slot<editor.getSlotCount(); slot++) {
+				AlphaNumRow row = editor.getRow(slot);
+				if (row != null) {
+					for (int fkIndex=0; fkIndex<mForeignKeyCount; fkIndex++) {
+						AlphaNumRow referencedRow = row.getReferencedRowVersion(fkIndex);
+						if (referencedRow != null && referencedRow.isOutdated()) {
+							AlphaNumRow newRow = row.copy();
+							for (int i=0; i<mForeignKeyCount; i++)
+								updateReferencedRow(commit, newRow, i);
+							editor.setRow(slot, newRow);
+							count++;
+							break;
+						}
 					}
 				}
 			}
-		}
-		mPKToRowMap.put(primaryKey, row);
-		if (mIDColumn != -1)
-			mIDToPKMap.put(row.getData(mIDColumn), primaryKey);
-		mRowList.add(row);
-		return null;
+			mReferenceUpdateVersion = commit.getVersion();
+			if (count != 0) {
+				mLastReplaceVersion = commit.getVersion();	// referencing tables need to follow
+				System.out.println("Updated references of "+count+" rows in table "+getName());
+			}
+		});
 	}
 
-	protected String updateRow(TreeMap<String,String> columnValueMap, byte[] primaryKey, boolean issueErrorIfNoChange) {
-		AlphaNumRow row = mPKToRowMap.get(primaryKey);
+	/**
+	 * Sets a new value for the given column including derived float and key values.
+	 * @param row
+	 * @param column
+	 * @param value empty String for NULL
+	 */
+	private void setValue(AlphaNumRow row, int column, String value) {
+		row.setData(column, value.isEmpty() ? null : value.getBytes(StandardCharsets.UTF_8));
+		if (mColumnType[column] == COLUMN_TYPE_NUM) {
+			try {
+				row.setFloat(Float.parseFloat(value), column);
+			}
+			catch (NumberFormatException nfe) {
+				row.setFloat(Float.NaN, column);
+			}
+		}
+		else if (mColumnType[column] == COLUMN_TYPE_FK) {
+			row.setForeignKey(column, parseKey(value));
+		}
+	}
 
-		StringBuilder sql = new StringBuilder("UPDATE ");
-		sql.append(mTableLongName);
-		sql.append(" SET");
+	protected String updateRow(final TreeMap<String,String> columnValueMap, int primaryKey, boolean issueErrorIfNoChange) {
+		AlphaNumRow row = getRowByPrimaryKey(primaryKey);
+		if (row == null)
+			return "Primary key '"+primaryKey+"' not found in table '"+mTableDisplayName+"'.";
 
-		int count = 0;
+		TreeMap<String,String> changedValueMap = new TreeMap<>();
 		for (int column=0; column<mColumnName.length; column++) {
 			String value = columnValueMap.get(mColumnName[column]);
 			if (value != null) {
@@ -385,67 +782,110 @@ public class AlphaNumTable implements ConfigurationKeys {
 					if (column == mIDColumn && mIDToPKMap.containsKey(value.getBytes(StandardCharsets.UTF_8)))
 						return mColumnName[column].concat(" '".concat(value).concat("' does already exist."));
 
-					sql.append(count == 0 ? ' ' : ',');
-					sql.append(mColumnName[column]);
-					sql.append('=');
-					if (value.isEmpty()) {
-						sql.append("NULL");
-					}
-					else {
-						if (mColumnType[column] == COLUMN_TYPE_TEXT
-						 || mColumnType[column] == COLUMN_TYPE_ID
-						 || mColumnType[column] == COLUMN_TYPE_DATE) {
-							sql.append('\'');
-							sql.append(value);
-							sql.append('\'');
-						}
-						else {
-							sql.append(value);
-						}
-					}
-					count++;
+					changedValueMap.put(mColumnName[column], value);
 				}
 			}
 		}
 
-		if (count == 0)
+		if (changedValueMap.isEmpty())
 			return issueErrorIfNoChange ? "No changes found in update request for table '"+mTableDisplayName+"'." : null;
 
-		sql.append(" WHERE ");
-		sql.append(mColumnName[mPrimaryKeyColumn]);
-		sql.append('=');
-		sql.append(new String(primaryKey, StandardCharsets.UTF_8));
+		Runnable memoryChange = () -> {
+			recordChange(primaryKey);
+			changeRow(primaryKey, newRow -> {
+				for (int column=0; column<mColumnName.length; column++) {
+					String newValue = columnValueMap.get(mColumnName[column]);
+					if (newValue != null)
+						setValue(newRow, column, newValue);
+				}
+			});
+		};
+
+		ArrayList<Integer> columnList = getWrittenColumns(changedValueMap, false);
+		WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+		if (writeBehindQueue != null && !UnitOfWork.isActive()
+		 && (mIDColumn == -1 || !changedValueMap.containsKey(mColumnName[mIDColumn]))) {
+			notifyModification();
+			return writeBehindQueue.add(createWriteBehindEntry(columnList, changedValueMap, primaryKey), memoryChange);
+		}
+
+		String errorMsg = flushWriteBehind();
+		if (errorMsg != null)
+			return errorMsg;
 
-		String errorMsg = runUpdateSQL(sql.toString(), null);
+		notifyModification();
+		errorMsg = mStorage.updateRows(this, Collections.singletonList(changedValueMap), new int[] { primaryKey });
 		if (errorMsg != null)
 			return errorMsg;
 
-		for (int column=0; column<mColumnName.length; column++) {
-			String newValue = columnValueMap.get(mColumnName[column]);
-			if (newValue != null) {
-				byte[] value = newValue.isEmpty() ? null : newValue.getBytes(StandardCharsets.UTF_8);
-				if (column == mIDColumn) {
-					byte[] pk = mIDToPKMap.remove(row.getData(mIDColumn));
-					if (pk != null) // shouldn't be null
-						mIDToPKMap.put(value, pk);
-				}
-				row.setData(column, value);
-				if (mColumnType[column] == COLUMN_TYPE_NUM) {
-					try {
-						row.setFloat(Float.parseFloat(newValue), column);
-					}
-					catch (NumberFormatException nfe) {
-						row.setFloat(Float.NaN, column);
-					}
-				}
-			}
+		memoryChange.run();
+		return null;
+	}
+
+	/**
+	 * @return journal entry of an UPDATE statement of non-derived columns
+	 */
+	private WriteBehindQueue.Entry createWriteBehindEntry(ArrayList<Integer> columnList, TreeMap<String,String> columnValueMap, int primaryKey) {
+		int[] type = new int[columnList.size()+1];
+		String[] value = new String[columnList.size()+1];
+		for (int i=0; i<columnList.size(); i++) {
+			type[i] = mColumnType[columnList.get(i)];
+			value[i] = columnValueMap.get(mColumnName[columnList.get(i)]);
 		}
+		type[columnList.size()] = COLUMN_TYPE_PK;
+		value[columnList.size()] = Integer.toString(primaryKey);
+		return new WriteBehindQueue.Entry(getWriteSQL(false, columnList), type, value, this, primaryKey);
+	}
+
+	/**
+	 * Writes queued updates to the database before a synchronous write, which might touch the same rows.
+	 * A UnitOfWork does this when it starts.
+	 * @return null or error message, if queued updates could not be written
+	 */
+	protected String flushWriteBehind() {
+		WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+		if (writeBehindQueue != null && !UnitOfWork.isActive() && !writeBehindQueue.flush(true))
+			return WriteBehindQueue.ERROR_NOT_FLUSHED;
 		return null;
 	}
 
+	/**
+	 * Replaces a row in memory by its stored content or removes it, if it isn't stored anymore,
+	 * e.g. after the database rejected a queued update of the row.
+	 * @param primaryKey
+	 * @return false, if storage could not be read
+	 */
+	protected boolean reloadRow(int primaryKey) {
+		ArrayList<String[]> rowList = mStorage.selectRows(this, new int[] { primaryKey });
+		if (rowList == null)
+			return false;
+
+		recordChange(primaryKey);
+		if (rowList.isEmpty())
+			syncDelete(primaryKey);
+		else
+			syncRow(rowList.get(0));
+		return true;
+	}
+
+	/**
+	 * Sets the reference to the row version, which the foreign key refers to within the commit.
+	 */
+	private void updateReferencedRow(VersionManager.Commit commit, AlphaNumRow row, int fkIndex) {
+		int fk = row.getForeignKey(fkIndex);
+		row.setReferencedRow(fkIndex, fk == AlphaNumRow.NO_KEY ? null
+				: commit.getRowByPrimaryKey(mForeignKey[fkIndex].getReferencedTable(), fk));
+	}
+
 	private String checkValue(String value, int column) {
 		if (column == mIDColumn && value.isEmpty())
 			return mColumnName[column].concat(" must not be empty.");
+		if ((mColumnType[column] == COLUMN_TYPE_FK || mColumnType[column] == COLUMN_TYPE_PK)
+		 && !value.isEmpty() && parseKey(value) == AlphaNumRow.NO_KEY)
+			return mColumnName[column].concat(" '").concat(value).concat("' is not a valid key.");
+		if (mColumnType[column] == COLUMN_TYPE_FK && !value.isEmpty()
+		 && mForeignKey[column].getReferencedTable().getRowByPrimaryKey(parseKey(value)) == null)
+			return mColumnName[column].concat(" '").concat(value).concat("' not found in referenced table.");
 		if (mColumnType[column] == COLUMN_TYPE_NUM && !value.isEmpty()) {
 			try {
 				Float.parseFloat(value);
@@ -457,48 +897,338 @@ public class AlphaNumTable implements ConfigurationKeys {
 		if (mColumnType[column] == COLUMN_TYPE_DATE && !value.isEmpty()) {
 			if (!value.matches("\\d\\d\\d\\d-\\d\\d-\\d\\d"))
 				return mColumnName[column].concat(" '").concat(value).concat("' must be given as 'YYYY-MM-DD'.");
+			try {
+				Date.valueOf(value);
+			}
+			catch (IllegalArgumentException iae) {
+				return mColumnName[column].concat(" '").concat(value).concat("' is not a valid date.");
+			}
 		}
 		return null;
 	}
 
-	protected String deleteRow(byte[] primaryKey) {
-		StringBuilder sql = new StringBuilder("DELETE FROM ");
-		sql.append(mTableLongName);
-		sql.append(" WHERE ");
-		sql.append(mColumnName[mPrimaryKeyColumn]);
-		sql.append('=');
-		sql.append(new String(primaryKey, StandardCharsets.UTF_8));
-		String errorMsg = runUpdateSQL(sql.toString(), null);
+	protected String deleteRow(int primaryKey) {
+		String errorMsg = flushWriteBehind();
+		if (errorMsg != null)
+			return errorMsg;
+
+		notifyModification();
+		errorMsg = mStorage.deleteRow(this, primaryKey);
 		if (errorMsg != null)
 			return errorMsg;
 
-		AlphaNumRow row = mPKToRowMap.remove(primaryKey);
-		if (row != null)
-			mRowList.remove(row);
-		if (mIDColumn != -1)
-			mIDToPKMap.remove(row.getData(mIDColumn));
+		recordChange(primaryKey);
+		mVersionManager.commit(commit -> removeRow(commit, primaryKey));
 		return null;
 	}
 
-	protected String runUpdateSQL(String sql, byte[][] newPrimaryKeyHolder) {
-		try {
-			DatabaseConnector connector = DatabaseConnector.getInstance();
-			if (connector.ensureConnection()) {
-				Statement stmt = connector.getConnection().createStatement();
-				stmt.executeUpdate(sql, newPrimaryKeyHolder == null ? Statement.NO_GENERATED_KEYS : Statement.RETURN_GENERATED_KEYS);
-				if (newPrimaryKeyHolder != null) {
-					ResultSet rs = stmt.getGeneratedKeys();
-					if (rs.next())
-						newPrimaryKeyHolder[0] = Integer.toString(rs.getInt(1)).getBytes(StandardCharsets.UTF_8);
+	/**
+	 * Inserts multiple rows in one storage transaction.
+	 * All rows are validated first. If any row is invalid or any statement fails,
+	 * then nothing is inserted. Otherwise, all new rows are added to memory in one commit.
+	 * @param rowList column values of every new row
+	 * @param newPrimaryKey receives the primary keys of the new rows
+	 * @return null or error message
+	 */
+	protected String insertRows(List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		String errorMsg = validateBatch(rowList, null);
+		if (errorMsg != null)
+			return errorMsg;
+
+		errorMsg = writeRows(rowList, newPrimaryKey, true);
+		if (errorMsg != null)
+			return errorMsg;
+
+		mVersionManager.commit(commit -> {
+			for (int i=0; i<rowList.size(); i++) {
+				recordChange(newPrimaryKey[i]);
+				AlphaNumRow row = createRow(rowList.get(i), newPrimaryKey[i]);
+				for (int fkIndex=0; fkIndex<mForeignKeyCount; fkIndex++)
+					updateReferencedRow(commit, row, fkIndex);
+				addRow(commit, row);
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Updates multiple rows in one storage transaction.
+	 * All rows are validated first. If any row is invalid or any statement fails,
+	 * then nothing is updated. Otherwise, all changed rows are committed to memory at once.
+	 * @param rowList new column values of every row; the primary key column is not part of them
+	 * @param primaryKey primary keys of the rows to be updated
+	 * @return null or error message
+	 */
+	protected String updateRows(List<TreeMap<String,String>> rowList, int[] primaryKey) {
+		for (int i=0; i<rowList.size(); i++)
+			if (getRowByPrimaryKey(primaryKey[i]) == null)
+				return "Row "+(i+1)+": primary key '"+primaryKey[i]+"' not found in table '"+mTableDisplayName+"'.";
+
+		String errorMsg = validateBatch(rowList, primaryKey);
+		if (errorMsg != null)
+			return errorMsg;
+
+		errorMsg = flushWriteBehind();
+		if (errorMsg != null)
+			return errorMsg;
+
+		errorMsg = writeRows(rowList, primaryKey, false);
+		if (errorMsg != null)
+			return errorMsg;
+
+		mVersionManager.commit(commit -> {
+			for (int i=0; i<rowList.size(); i++) {
+				final TreeMap<String,String> columnValueMap = rowList.get(i);
+				recordChange(primaryKey[i]);
+				changeRow(primaryKey[i], newRow -> {
+					for (int column=0; column<mColumnName.length; column++) {
+						String newValue = columnValueMap.get(mColumnName[column]);
+						if (newValue != null)
+							setValue(newRow, column, newValue);
+					}
+					setDerivedValues(newRow, columnValueMap);
+				});
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Checks all values of one new row, including that its ID, if any, does not exist yet.
+	 * @param columnValueMap
+	 * @return null or error message
+	 */
+	protected String checkValues(TreeMap<String,String> columnValueMap) {
+		for (int column=0; column<mColumnName.length; column++) {
+			String value = columnValueMap.get(mColumnName[column]);
+			if (value != null) {
+				String errorMsg = checkValue(value, column);
+				if (errorMsg != null)
+					return errorMsg;
+				if (column == mIDColumn && mIDToPKMap.containsKey(value.getBytes(StandardCharsets.UTF_8)))
+					return mColumnName[column].concat(" '".concat(value).concat("' does already exist."));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks all values of all rows and makes sure that IDs stay unique.
+	 * @param primaryKey null for inserts; otherwise keys of the rows to be updated
+	 * @return null or error message
+	 */
+	private String validateBatch(List<TreeMap<String,String>> rowList, int[] primaryKey) {
+		if (rowList.isEmpty())
+			return "No rows found.";
+
+		TreeMap<byte[],Integer> batchIDToPKMap = new TreeMap<>(new ByteArrayComparator());
+		for (int i=0; i<rowList.size(); i++) {
+			TreeMap<String,String> columnValueMap = rowList.get(i);
+			if (columnValueMap.isEmpty())
+				return "Row "+(i+1)+": No column values found.";
+
+			for (int column=0; column<mColumnName.length; column++) {
+				String value = columnValueMap.get(mColumnName[column]);
+				if (value != null) {
+					String errorMsg = checkValue(value, column);
+					if (errorMsg != null)
+						return "Row "+(i+1)+": "+errorMsg;
+				}
+			}
+
+			if (mIDColumn != -1) {
+				String id = columnValueMap.get(mColumnName[mIDColumn]);
+				if (id != null) {
+					byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+					Integer existingPK = mIDToPKMap.get(idBytes);
+					if ((existingPK != null && (primaryKey == null || existingPK != primaryKey[i]))
+					 || batchIDToPKMap.put(idBytes, i) != null)
+						return "Row "+(i+1)+": "+mColumnName[mIDColumn]+" '"+id+"' does already exist.";
 				}
-				stmt.close();
-				return null;
 			}
 		}
-		catch (SQLException e) {
-			return "SQL exception: "+ e.getMessage();
+		return null;
+	}
+
+	/**
+	 * Inserts or updates all rows within one storage transaction.
+	 * @param primaryKey receives the new keys of inserted rows or contains the keys of updated rows
+	 * @param isInsert
+	 * @return null or error message
+	 */
+	private String writeRows(List<TreeMap<String,String>> rowList, int[] primaryKey, boolean isInsert) {
+		notifyModification();
+
+		return mStorage.runTransaction(() -> {
+			if (!isInsert)
+				return mStorage.updateRows(this, rowList, primaryKey);
+
+			String errorMsg = mStorage.insertRows(this, rowList, primaryKey);
+			return (errorMsg != null) ? errorMsg : completeInsertedRows(rowList, primaryKey);
+		});
+	}
+
+	/**
+	 * @param columnValueMap
+	 * @param includeDerived whether to include derived columns
+	 * @return columns, for which the map contains values, in table order; derived column i as -1-i
+	 */
+	ArrayList<Integer> getWrittenColumns(TreeMap<String,String> columnValueMap, boolean includeDerived) {
+		ArrayList<Integer> columnList = new ArrayList<>();
+		for (int column=0; column<mColumnName.length; column++)
+			if (column != mPrimaryKeyColumn && columnValueMap.get(mColumnName[column]) != null)
+				columnList.add(column);
+		if (includeDerived) {
+			String[] derivedColumnName = getDerivedColumnNames();
+			for (int i=0; i<derivedColumnName.length; i++)
+				if (columnValueMap.get(derivedColumnName[i]) != null)
+					columnList.add(-1-i);
+		}
+		return columnList;
+	}
+
+	/**
+	 * Returns the parameterized INSERT or UPDATE statement for the given columns. Statements are built
+	 * from the column metadata once per combination of columns and then reused. Thus, prepared statements,
+	 * which are cached per connection, are reused as well. UPDATE statements have the primary key as last parameter.
+	 * @param isInsert
+	 * @param columnList as returned by getWrittenColumns()
+	 * @return
+	 */
+	String getWriteSQL(boolean isInsert, ArrayList<Integer> columnList) {
+		String key = (isInsert ? "I" : "U").concat(columnList.toString());
+		return mWriteSQLMap.computeIfAbsent(key, k -> {
+			String[] derivedColumnName = getDerivedColumnNames();
+			StringBuilder sql = new StringBuilder(isInsert ? "INSERT INTO " : "UPDATE ");
+			sql.append(mTableLongName);
+			for (int i=0; i<columnList.size(); i++) {
+				int column = columnList.get(i);
+				sql.append(isInsert ? (i == 0 ? " (" : ",") : (i == 0 ? " SET " : ","));
+				sql.append(column >= 0 ? mColumnName[column] : derivedColumnName[-1-column]);
+				if (!isInsert)
+					sql.append("=?");
+			}
+			if (isInsert) {
+				sql.append(") VALUES (");
+				for (int i=0; i<columnList.size(); i++)
+					sql.append(i == 0 ? "?" : ",?");
+				sql.append(")");
+			}
+			else {
+				sql.append(" WHERE ");
+				sql.append(mColumnName[mPrimaryKeyColumn]);
+				sql.append("=?");
+			}
+			return sql.toString();
+		});
+	}
+
+	/**
+	 * Binds the values of the given columns to the parameters of a statement from getWriteSQL().
+	 * @return index of the next parameter
+	 */
+	int bindValues(PreparedStatement stmt, ArrayList<Integer> columnList, TreeMap<String,String> columnValueMap) throws SQLException {
+		String[] derivedColumnName = getDerivedColumnNames();
+		for (int i=0; i<columnList.size(); i++) {
+			int column = columnList.get(i);
+			if (column >= 0)
+				bindValue(stmt, i+1, mColumnType[column], columnValueMap.get(mColumnName[column]));
+			else
+				stmt.setString(i+1, columnValueMap.get(derivedColumnName[-1-column]));
 		}
-		return "Error: Server engine cannot connect to database.";
+		return columnList.size()+1;
+	}
+
+	/**
+	 * Binds a column value with the type of the column. An empty value is bound as NULL.
+	 * @param type column type, e.g. COLUMN_TYPE_NUM
+	 */
+	protected static void bindValue(PreparedStatement stmt, int index, int type, String value) throws SQLException {
+		if (value == null || value.isEmpty())
+			stmt.setNull(index, type == COLUMN_TYPE_NUM ? Types.FLOAT
+							  : type == COLUMN_TYPE_DATE ? Types.DATE
+							  : (type == COLUMN_TYPE_PK || type == COLUMN_TYPE_FK) ? Types.INTEGER : Types.VARCHAR);
+		else if (type == COLUMN_TYPE_NUM)
+			stmt.setFloat(index, Float.parseFloat(value));
+		else if (type == COLUMN_TYPE_DATE)
+			stmt.setDate(index, Date.valueOf(value));
+		else if (type == COLUMN_TYPE_PK || type == COLUMN_TYPE_FK)
+			stmt.setInt(index, parseKey(value));
+		else
+			stmt.setString(index, value);
+	}
+
+	/**
+	 * Derived columns are database columns, which are not part of the column specification,
+	 * but are calculated from column values, e.g. structure columns of compound tables.
+	 * Batch writes store their values, if they are contained in a row's column values.
+	 * @return names of derived columns, which may be written by batch inserts or updates
+	 */
+	protected String[] getDerivedColumnNames() {
+		return new String[0];
+	}
+
+	/**
+	 * Sets the values of derived columns of a new row version, if they are contained in the column values.
+	 * @param row uncommitted row
+	 * @param columnValueMap
+	 */
+	protected void setDerivedValues(AlphaNumRow row, TreeMap<String,String> columnValueMap) {
+	}
+
+	/**
+	 * Is called within the transaction of a batch insert, after all rows were inserted and their
+	 * primary keys are known. Derived classes may store and add column values, which depend on the primary key.
+	 * @param rowList
+	 * @param newPrimaryKey
+	 * @return null or error message, which causes a rollback
+	 */
+	protected String completeInsertedRows(List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		return null;
+	}
+
+	/**
+	 * Starts recording primary keys of all rows, which are inserted, updated or deleted through this table.
+	 */
+	public synchronized void startChangeRecording() {
+		mChangedKeys = new IntIntMap();
+	}
+
+	/**
+	 * @return primary keys of all rows changed since startChangeRecording()
+	 */
+	public synchronized int[] stopChangeRecording() {
+		int[] keys = (mChangedKeys == null) ? new int[0] : mChangedKeys.getKeys();
+		mChangedKeys = null;
+		return keys;
+	}
+
+	protected synchronized void recordChange(int primaryKey) {
+		if (mChangedKeys != null)
+			mChangedKeys.put(primaryKey, 0);
+	}
+
+	/**
+	 * @param listener is called before any SQL statement modifies the database table
+	 */
+	public void setModificationListener(Runnable listener) {
+		mModificationListener = listener;
+	}
+
+	/**
+	 * Must be called before any modification of the database table.
+	 */
+	protected void notifyModification() {
+		Runnable listener = mModificationListener;
+		if (listener != null)
+			listener.run();
+	}
+
+	/**
+	 * @return parameterized DELETE statement with the primary key as parameter
+	 */
+	String getDeleteSQL() {
+		return mDeleteSQL;
 	}
 
 	protected void addDerivedColumnsToSQL(StringBuilder sql) {
@@ -506,57 +1236,265 @@ public class AlphaNumTable implements ConfigurationKeys {
 
 	protected void addTableCreationSQLStructureColumns(StringBuilder script) {}
 
-	public boolean loadData(DatabaseConnector connector) {
-		if (!connector.ensureConnection())
+	/**
+	 * Loads all rows in two stages: The calling thread only fetches raw column values
+	 * from the result set, while batches of fetched rows are converted into rows by the decodeExecutor.
+	 * At most MAX_PENDING_BATCHES batches are waiting for conversion at any time.
+	 * Rows are streamed from the database rather than buffered completely by the JDBC driver.
+	 * If pageSize is positive, then rows are fetched with multiple queries of pageSize rows each,
+	 * paginated by primary key, which works also with drivers that cannot stream.
+	 * @param connection connection, which is used exclusively by this method
+	 * @param decodeExecutor
+	 * @param fetchSize number of rows per database round trip
+	 * @param pageSize 0 or maximum number of rows per query
+	 * @return
+	 */
+	public boolean loadData(Connection connection, Executor decodeExecutor, int fetchSize, int pageSize) {
+		RowFetcher fetcher;
+		try {
+			fetcher = new RowFetcher(countRows(connection), decodeExecutor);
+
+			if (pageSize <= 0) {
+				Statement stmt = createStreamingStatement(connection, fetchSize);
+				ResultSet rset = stmt.executeQuery(buildSelectSQL());
+				fetcher.fetch(rset);
+				rset.close();
+				stmt.close();
+			}
+			else {
+				String pkName = mColumnName[mPrimaryKeyColumn];
+				PreparedStatement stmt = connection.prepareStatement(buildSelectSQL()
+						+" WHERE "+pkName+">? ORDER BY "+pkName+" LIMIT "+pageSize,
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				stmt.setFetchSize(Math.min(fetchSize, pageSize));
+				int lastPrimaryKey = -1;
+				while (true) {
+					stmt.setInt(1, lastPrimaryKey);
+					ResultSet rset = stmt.executeQuery();
+					int rowCount = fetcher.fetch(rset);
+					rset.close();
+					if (rowCount < pageSize)
+						break;
+					lastPrimaryKey = fetcher.getLastPrimaryKey();
+				}
+				stmt.close();
+			}
+		}
+		catch (SQLException | InterruptedException e) {
+			System.out.println("Exception when reading table data: "+ e.getMessage());
 			return false;
+		}
 
-//		String time = getString(DATE_SQL);
-//		if (time == null)
-//			return false;
+		ArrayList<AlphaNumRow> rowList = fetcher.getRows();
+		if (rowList == null)
+			return false;
 
-		try {
-			mRowList = new ArrayList<>();
+		setLoadedRows(rowList);
+		System.out.println("Loaded "+rowList.size()+" rows from "+getName());
 
-			Statement stmt = connector.getConnection().createStatement();
-			ResultSet rset = stmt.executeQuery(buildSelectSQL());
+		return true;
+	}
 
-			while (rset.next())
-				mRowList.add(createRow(rset));
+	/**
+	 * Replaces all table content with rows created from raw column values, e.g. from a LogStore.
+	 * @param valueList raw column values of all rows in the order of buildSelectSQL()
+	 * @return
+	 */
+	public boolean loadData(List<String[]> valueList) {
+		ArrayList<AlphaNumRow> rowList = new ArrayList<>(valueList.size());
+		for (String[] value:valueList)
+			rowList.add(createRow(value));
 
-			rset.close();
-			stmt.close();
+		setLoadedRows(rowList);
+		System.out.println("Loaded "+rowList.size()+" rows from "+getName());
+		return true;
+	}
 
-//			mRecentUpdate = time;
+	/**
+	 * @return number of rows in the database table to presize row storage
+	 */
+	private int countRows(Connection connection) throws SQLException {
+		int count = 0;
+		Statement stmt = connection.createStatement();
+		ResultSet rset = stmt.executeQuery("SELECT COUNT(*) FROM "+mTableLongName);
+		if (rset.next())
+			count = rset.getInt(1);
+		rset.close();
+		stmt.close();
+		return count;
+	}
+
+	/**
+	 * Creates a forward-only, read-only statement, which lets the driver stream the result
+	 * rather than keeping all rows in memory. MySQL Connector/J streams row by row with a
+	 * fetch size of Integer.MIN_VALUE, unless cursor fetch is enabled in the connect string.
+	 * PostgreSQL uses a cursor only if auto-commit is off.
+	 */
+	private Statement createStreamingStatement(Connection connection, int fetchSize) throws SQLException {
+		String url = connection.getMetaData().getURL();
+		boolean isMySQL = (url != null && url.startsWith("jdbc:mysql:"));
+		boolean isCursorFetch = (url != null && url.contains("useCursorFetch=true"));
+		if (!isMySQL)
+			connection.setAutoCommit(false);
+
+		Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		stmt.setFetchSize(isMySQL && !isCursorFetch ? Integer.MIN_VALUE : fetchSize);
+		return stmt;
+	}
+
+	/**
+	 * Collects raw column values from one or more result sets into batches,
+	 * which are converted into rows by the decode executor.
+	 */
+	private class RowFetcher {
+		private final ArrayList<CompletableFuture<AlphaNumRow[]>> mBatchList;
+		private final Semaphore mPendingBatches;
+		private final Executor mDecodeExecutor;
+		private final int mExpectedRowCount;
+		private String[][] mBatch;
+		private int mBatchSize,mLastPrimaryKey;
+
+		public RowFetcher(int expectedRowCount, Executor decodeExecutor) {
+			mExpectedRowCount = expectedRowCount;
+			mBatchList = new ArrayList<>(1 + expectedRowCount / LOAD_BATCH_SIZE);
+			mPendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+			mDecodeExecutor = decodeExecutor;
+			mBatch = new String[LOAD_BATCH_SIZE][];
+		}
+
+		/**
+		 * @return number of fetched rows
+		 */
+		public int fetch(ResultSet rset) throws SQLException, InterruptedException {
+			int columnCount = rset.getMetaData().getColumnCount();
+			int rowCount = 0;
+			while (rset.next()) {
+				String[] value = new String[columnCount];
+				for (int i=0; i<columnCount; i++)
+					value[i] = rset.getString(i+1);
+				mLastPrimaryKey = parseKey(value[mPrimaryKeyColumn]);
+				mBatch[mBatchSize++] = value;
+				if (mBatchSize == LOAD_BATCH_SIZE)
+					submitBatch();
+				rowCount++;
 			}
-		catch (SQLException e) {
-			System.out.println("Exception when reading table data: "+ e.getMessage());
-			return false;
+			return rowCount;
+		}
+
+		public int getLastPrimaryKey() {
+			return mLastPrimaryKey;
 		}
 
-		mPKToRowMap = new TreeMap<>(new ByteArrayComparator());
-		for (AlphaNumRow row:mRowList)
-			mPKToRowMap.put(row.getData(mPrimaryKeyColumn), row);
+		private void submitBatch() throws InterruptedException {
+			mBatchList.add(decodeBatch(mBatch, mBatchSize, mDecodeExecutor, mPendingBatches));
+			mBatch = new String[LOAD_BATCH_SIZE][];
+			mBatchSize = 0;
+		}
 
-		if (mIDColumn != -1) {
-			mIDToPKMap = new TreeMap<>(new ByteArrayComparator());
-			for (AlphaNumRow row:mRowList)
-				mIDToPKMap.put(row.getData(mIDColumn), row.getData(mPrimaryKeyColumn));
+		/**
+		 * Waits for all batches to be converted.
+		 * @return all rows in fetched order or null, if a conversion failed
+		 */
+		public ArrayList<AlphaNumRow> getRows() {
+			try {
+				if (mBatchSize != 0)
+					submitBatch();
+
+				ArrayList<AlphaNumRow> rowList = new ArrayList<>(mExpectedRowCount);
+				for (CompletableFuture<AlphaNumRow[]> decodedBatch:mBatchList)
+					rowList.addAll(Arrays.asList(decodedBatch.join()));
+				return rowList;
+			}
+			catch (InterruptedException e) {
+				System.out.println("Interrupted when decoding table data.");
+				return null;
+			}
+			catch (CompletionException e) {
+				System.out.println("Exception when decoding table data: "+ e.getCause());
+				return null;
+			}
 		}
+	}
 
-		System.out.println("Loaded "+mRowList.size()+" rows from "+getName());
+	private CompletableFuture<AlphaNumRow[]> decodeBatch(final String[][] batch, final int batchSize,
+			Executor decodeExecutor, final Semaphore pendingBatches) throws InterruptedException {
+		pendingBatches.acquire();
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				AlphaNumRow[] row = new AlphaNumRow[batchSize];
+				for (int i=0; i<batchSize; i++)
+					row[i] = createRow(batch[i]);
+				return row;
+			}
+			finally {
+				pendingBatches.release();
+			}
+		}, decodeExecutor);
+	}
 
-		return true;
+	/**
+	 * Replaces all table content with the given rows and builds the indexes.
+	 * Foreign key references still need to be built afterwards.
+	 * @param rowList
+	 */
+	protected void setLoadedRows(ArrayList<AlphaNumRow> rowList) {
+		if (mIDColumn != -1) {
+			mIDToPKMap = new ConcurrentSkipListMap<>(new ByteArrayComparator());
+			for (AlphaNumRow row:rowList)
+				if (row.getData(mIDColumn) != null)
+					mIDToPKMap.put(row.getData(mIDColumn), row.getPrimaryKey());
 		}
 
+		mVersionManager.commit(commit -> {
+			commit.replace(this, TableVersion.create(rowList, commit.getVersion()));
+			mFreeSlotCount = 0;
+		});
+	}
+
+	/**
+	 * @return list of all rows of the latest committed version
+	 */
+	public ArrayList<AlphaNumRow> getLiveRowList() {
+		return getCurrentVersion().getLiveRowList();
+	}
+
+	/**
+	 * @return highest primary key of all rows or AlphaNumRow.NO_KEY, if the table is empty
+	 */
+	public int getMaxPrimaryKey() {
+		TableVersion tableVersion = getCurrentVersion();
+		int max = AlphaNumRow.NO_KEY;
+		for (int slot=0; slot<tableVersion.getSlotCount(); slot++)
+			if (tableVersion.getRow(slot) != null)
+				max = Math.max(max, tableVersion.getRow(slot).getPrimaryKey());
+		return max;
+	}
+
+	/**
+	 * @return SQL query that returns row count and highest primary key of the database table
+	 */
+	public String buildCountAndMaxKeySQL() {
+		String pkName = mColumnName[mPrimaryKeyColumn];
+		return "SELECT CONCAT(COUNT(*),':',COALESCE(MAX("+pkName+"),-1)) FROM "+mTableLongName;
+	}
+
+	/**
+	 * Sets the references of all loaded rows. This changes rows in place and, therefore,
+	 * must be called before the loaded data is used by any search.
+	 */
 	public boolean buildForeignKeyReferences() {
-		for (AlphaNumRow row : mRowList) {
+		TableVersion tableVersion = getCurrentVersion();
+		for (int slot=0; slot<tableVersion.getSlotCount(); slot++) {
+			AlphaNumRow row = tableVersion.getRow(slot);
+			if (row == null)
+				continue;
 			AlphaNumRow[] referencedRows = new AlphaNumRow[mForeignKeyCount];
 			for (int column = 0; column<mForeignKeyCount; column++) {
-				byte[] fk = row.getData(column);
-				if (fk != null) {
-					referencedRows[column] = mForeignKey[column].getReferencedTable().getRow(fk);
+				int fk = row.getForeignKey(column);
+				if (fk != AlphaNumRow.NO_KEY) {
+					referencedRows[column] = mForeignKey[column].getReferencedTable().getRowByPrimaryKey(fk);
 					if (referencedRows[column] == null) {
-						System.out.println("Could not find primary key '"+new String(fk)+"' in table '"+ mForeignKey[column].getReferencedTable().getName()+"'");
+						System.out.println("Could not find primary key '"+fk+"' in table '"+ mForeignKey[column].getReferencedTable().getName()+"'");
 						return false;
 					}
 				}
@@ -566,32 +1504,48 @@ public class AlphaNumTable implements ConfigurationKeys {
 		return true;
 	}
 
-	public AlphaNumRow getRow(int i) {
-		return mRowList.get(i);
-	}
-
 	public AlphaNumRow createRow() {
-		return new AlphaNumRow(getColumnCount());
+		return new AlphaNumRow(getColumnCount(), mForeignKeyCount);
 	}
 
-	protected AlphaNumRow createRow(ResultSet rset) throws SQLException {
+	/**
+	 * Creates a row from raw column values as fetched from the database.
+	 * @param value column values in the order of buildSelectSQL(); null for SQL NULL
+	 * @return
+	 */
+	protected AlphaNumRow createRow(String[] value) {
 		AlphaNumRow row = createRow();
+		setRowValues(row, value);
+		return row;
+	}
 
+	/**
+	 * Sets all column values of a new or existing row from raw column values as fetched from the database.
+	 * @param row
+	 * @param value column values in the order of buildSelectSQL(); null for SQL NULL
+	 */
+	protected void setRowValues(AlphaNumRow row, String[] value) {
 		for (int column=0; column<getColumnCount(); column++) {
-			String s = rset.getString(column+1);
-			if (s != null) {
-				row.setData(column, s.getBytes(StandardCharsets.UTF_8));
-				if (mColumnType[column] == COLUMN_TYPE_NUM) {
-					try {
-						row.setFloat(Float.parseFloat(s), column);
-					}
-					catch (NumberFormatException nfe) {
-						row.setFloat(Float.NaN, column);
-					}
+			if (mColumnType[column] == COLUMN_TYPE_PK || mColumnType[column] == COLUMN_TYPE_FK) {
+				int key = parseKey(value[column]);
+				row.setData(column, key == AlphaNumRow.NO_KEY ? null : Integer.toString(key).getBytes(StandardCharsets.UTF_8));
+				if (column == mPrimaryKeyColumn)
+					row.setPrimaryKey(key);
+				else
+					row.setForeignKey(column, key);
+				continue;
+			}
+
+			String s = value[column];
+			row.setData(column, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+			if (s != null && mColumnType[column] == COLUMN_TYPE_NUM) {
+				try {
+					row.setFloat(Float.parseFloat(s), column);
+				}
+				catch (NumberFormatException nfe) {
+					row.setFloat(Float.NaN, column);
 				}
 			}
 		}
-
-		return row;
 	}
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ public class Authorizer {
 
 	private final TreeMap<String,Token> mTokenMap;
 	private final TreeMap<String,LoginTries> mLoginTriesMap;
+	private final CredentialCache mCredentialCache;
 	private String mAdminUser,mAdminHash;
 
 	public static Authorizer getInstance() {
@@ -25,6 +26,16 @@ public class Authorizer {
 			mAdminUser = user;
 			mAdminHash = hash;
 		}
+
+		String ttl = config.getProperty(ConfigurationKeys.CREDENTIAL_CACHE_TTL);
+		if (ttl != null) {
+			try {
+				mCredentialCache.setTTL(Integer.parseInt(ttl.trim()));
+			}
+			catch (NumberFormatException nfe) {
+				System.out.println("Invalid "+ConfigurationKeys.CREDENTIAL_CACHE_TTL+" value: "+ttl);
+			}
+		}
 	}
 
 	public static String getPasswordHash(String password) {
@@ -34,6 +45,7 @@ public class Authorizer {
 	private Authorizer() {
 		mTokenMap = new TreeMap<>();
 		mLoginTriesMap = new TreeMap<>();
+		mCredentialCache = new CredentialCache();
 
 		new Timer().schedule(new TimerTask() {
 			@Override
@@ -52,6 +64,8 @@ public class Authorizer {
 						keysToRemove.add(key);
 				for (String key:keysToRemove)
 					mLoginTriesMap.remove(key);
+
+				mCredentialCache.purge();
 			}
 		}, Token.VALIDITY, Token.VALIDITY);
 	}
@@ -71,7 +85,12 @@ public class Authorizer {
 			mTokenMap.put(token.key, token);
 			return token.key;
 		}
-		if (DatabaseConnector.isAuthorized(user, password)) {
+		boolean isAuthorized = mCredentialCache.isVerified(user, password);
+		if (!isAuthorized && DatabaseConnector.isAuthorized(user, password)) {
+			mCredentialCache.put(user, password);	// a cache hit keeps the original expiry
+			isAuthorized = true;
+		}
+		if (isAuthorized) {
 			Token token = new Token();
 			mTokenMap.put(token.key, token);
 			return token.toString();
@@ -79,11 +98,28 @@ public class Authorizer {
 		return null;
 	}
 
+	/**
+	 * Forces the next login of the given user or of all users to be verified by the database again,
+	 * e.g. after a password was changed or an account was locked.
+	 * @param user null for all users
+	 */
+	public void invalidateCredentials(String user) {
+		if (user == null)
+			mCredentialCache.invalidateAll();
+		else
+			mCredentialCache.invalidate(user);
+	}
+
 	public boolean isValidToken(String key) {
 		Token token = mTokenMap.get(key);
 		return token != null && token.isValid(System.currentTimeMillis());
 	}
 
+	public boolean isValidAdminToken(String key) {
+		Token token = mTokenMap.get(key);
+		return token != null && token.access == Token.ADMIN && token.isValid(System.currentTimeMillis());
+	}
+
 	private static class Token	{
 		private final String[] ACCESS = { "read", "write", "admin" };
 		protected static final int READ = 0;
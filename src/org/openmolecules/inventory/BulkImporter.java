@@ -0,0 +1,429 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.io.SDFileParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * Imports compounds and optionally one bottle per compound from an SD-file, a SMILES file or a TSV file.
+ * The file is read record by record and records are inserted in batches of BATCH_SIZE, such that memory use
+ * does not depend on the file size. The mapping assigns file fields to compound and bottle columns,
+ * e.g. 'compound.name=Name,bottle.amount=Amount,bottle.supplier=Supplier'. A foreign key column gets the
+ * [id] of the referenced row, e.g. the name of the supplier, which is translated into its primary key.
+ * The reference from bottle to compound is set automatically. In TSV files the SMILES column is mapped with
+ * 'structure=<column>'; in SMILES files every line contains the SMILES and optionally the field 'name'.
+ * Records with invalid structures or values are skipped; an error in a batch insert stops the import.
+ * Batches, which were inserted before, stay in the database.
+ */
+public class BulkImporter {
+	public static final String FORMAT_SDF = "sdf";
+	public static final String FORMAT_SMILES = "smiles";
+	public static final String FORMAT_TSV = "tsv";
+	public static final String TARGET_STRUCTURE = "structure";
+	public static final String SMILES_FIELD_NAME = "name";
+
+	private static final int BATCH_SIZE = 500;
+	private static final int MAX_REPORTED_ERRORS = 10;
+	private static final AtomicInteger sNextID = new AtomicInteger(1);
+
+	private final int mID;
+	private final Supplier<InMemoryData> mDataSupplier;
+	private final Lock mModificationLock;
+	private final String mFormat;
+	private final ArrayList<String> mFieldList,mErrorList;
+	private final ArrayList<int[]> mCompoundMapping,mBottleMapping;	// column index and field index
+	private int mStructureField;
+	private volatile int mRecordCount,mCompoundCount,mBottleCount,mSkippedCount;
+	private volatile boolean mIsStarted,mIsFinished;
+	private volatile String mError;
+
+	private static class Record {
+		final int number;
+		final String idcode,coords;
+		final String[] value;
+
+		Record(int number, String idcode, String coords, String[] value) {
+			this.number = number;
+			this.idcode = idcode;
+			this.coords = coords;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @param dataSupplier provides the current data for every batch
+	 * @param modificationLock lock to hold while inserting a batch
+	 * @param format one of FORMAT_SDF, FORMAT_SMILES, FORMAT_TSV
+	 */
+	public BulkImporter(Supplier<InMemoryData> dataSupplier, Lock modificationLock, String format) {
+		mID = sNextID.getAndIncrement();
+		mDataSupplier = dataSupplier;
+		mModificationLock = modificationLock;
+		mFormat = format;
+		mFieldList = new ArrayList<>();
+		mErrorList = new ArrayList<>();
+		mCompoundMapping = new ArrayList<>();
+		mBottleMapping = new ArrayList<>();
+		mStructureField = -1;
+	}
+
+	public int getID() {
+		return mID;
+	}
+
+	public boolean isStarted() {
+		return mIsStarted;
+	}
+
+	public boolean isRunning() {
+		return mIsStarted && !mIsFinished;
+	}
+
+	/**
+	 * @param mapping comma separated entries '<table>.<column>=<field>' or 'structure=<field>'
+	 * @return null or error message
+	 */
+	public String initialize(String mapping) {
+		if (!FORMAT_SDF.equals(mFormat) && !FORMAT_SMILES.equals(mFormat) && !FORMAT_TSV.equals(mFormat))
+			return "Invalid format '"+mFormat+"'. Use '"+FORMAT_SDF+"', '"+FORMAT_SMILES+"' or '"+FORMAT_TSV+"'.";
+		if (mapping == null)
+			return "Missing mapping.";
+
+		InMemoryData data = mDataSupplier.get();
+		for (String entry:mapping.split("[,;\\n]")) {
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+
+			int index = entry.indexOf('=');
+			if (index <= 0 || index == entry.length()-1)
+				return "Invalid mapping entry '"+entry+"'.";
+			String target = entry.substring(0, index).trim();
+			int field = getFieldIndex(entry.substring(index+1).trim());
+
+			if (target.equals(TARGET_STRUCTURE)) {
+				if (!FORMAT_TSV.equals(mFormat))
+					return "'"+TARGET_STRUCTURE+"' can only be mapped in TSV files.";
+				mStructureField = field;
+				continue;
+			}
+
+			int dot = target.indexOf('.');
+			AlphaNumTable table = (dot == -1) ? null : getTable(data, target.substring(0, dot));
+			if (table == null)
+				return "Mapping target '"+target+"' is not a compound or bottle column.";
+			int column = table.getColumnIndex(target.substring(dot+1));
+			if (column == -1)
+				return "Column '"+target.substring(dot+1)+"' not found in table '"+table.getName()+"'.";
+			if (column == table.getPrimaryKeyColumn()
+			 || (table == data.getBottleTable() && column == data.getCompoundForeignKeyIndex()))
+				return "Column '"+table.getColumnName(column)+"' is assigned automatically.";
+
+			(table == data.getCompoundTable() ? mCompoundMapping : mBottleMapping).add(new int[] { column, field });
+		}
+
+		if (FORMAT_SMILES.equals(mFormat) && (mFieldList.size() > 1 || (mFieldList.size() == 1 && !mFieldList.get(0).equals(SMILES_FIELD_NAME))))
+			return "SMILES files only provide the field '"+SMILES_FIELD_NAME+"'.";
+		if (FORMAT_TSV.equals(mFormat) && mStructureField == -1)
+			return "Missing '"+TARGET_STRUCTURE+"' mapping of the SMILES column.";
+
+		return null;
+	}
+
+	private AlphaNumTable getTable(InMemoryData data, String name) {
+		for (AlphaNumTable table:new AlphaNumTable[] { data.getCompoundTable(), data.getBottleTable() })
+			if (name.equals(table.getName()) || name.equals(table.getLongName()) || name.equals(table.getAliasName()))
+				return table;
+		return null;
+	}
+
+	private int getFieldIndex(String fieldName) {
+		int index = mFieldList.indexOf(fieldName);
+		if (index == -1) {
+			index = mFieldList.size();
+			mFieldList.add(fieldName);
+		}
+		return index;
+	}
+
+	/**
+	 * Reads all records and inserts them batch by batch. Closes the reader.
+	 * @param reader
+	 * @return null or error message, which stopped the import
+	 */
+	public String run(Reader reader) {
+		mIsStarted = true;
+		System.out.println("Bulk import "+mID+" started ("+mFormat+")");
+		try {
+			String[] fieldName = mFieldList.toArray(new String[0]);
+			ArrayList<Record> batch = new ArrayList<>(BATCH_SIZE);
+			if (FORMAT_SDF.equals(mFormat)) {
+				SDFileParser parser = new SDFileParser(reader, fieldName);
+				while (mError == null && parser.next()) {
+					String[] value = new String[fieldName.length];
+					for (int i=0; i<value.length; i++)
+						value[i] = parser.getFieldData(i);
+					addRecord(batch, parser.getMolecule(), value);
+				}
+				parser.close();
+			}
+			else {
+				BufferedReader lineReader = new BufferedReader(reader);
+				int[] fieldColumn = null;
+				int structureColumn = 0;
+				if (FORMAT_TSV.equals(mFormat)) {
+					String header = lineReader.readLine();
+					String[] columnName = (header == null) ? new String[0] : header.split("\t", -1);
+					fieldColumn = new int[fieldName.length];
+					for (int i=0; i<fieldName.length; i++) {
+						fieldColumn[i] = indexOf(columnName, fieldName[i]);
+						if (fieldColumn[i] == -1) {
+							mError = "Column '"+fieldName[i]+"' not found in TSV header.";
+							return mError;
+						}
+					}
+					structureColumn = fieldColumn[mStructureField];
+				}
+
+				String line;
+				while (mError == null && (line = lineReader.readLine()) != null) {
+					if (line.trim().isEmpty())
+						continue;
+
+					String[] token = FORMAT_TSV.equals(mFormat) ? line.split("\t", -1) : line.trim().split("\\s+", 2);
+					String[] value = new String[fieldName.length];
+					for (int i=0; i<value.length; i++) {
+						int column = (fieldColumn == null) ? 1 : fieldColumn[i];
+						value[i] = (column < token.length) ? token[column] : null;
+					}
+					addRecord(batch, parseSmiles(structureColumn < token.length ? token[structureColumn] : null), value);
+				}
+			}
+
+			if (mError == null && !batch.isEmpty())
+				insertBatch(batch);
+		}
+		catch (IOException ioe) {
+			mError = "Could not read file: "+ioe.getMessage();
+		}
+		finally {
+			try {
+				reader.close();
+			}
+			catch (IOException ioe) {}
+			mIsFinished = true;
+		}
+
+		System.out.println("Bulk import "+getStatus());
+		return mError;
+	}
+
+	private static int indexOf(String[] array, String value) {
+		for (int i=0; i<array.length; i++)
+			if (array[i].equals(value))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param smiles
+	 * @return parsed molecule, empty molecule if there is no SMILES, or null if it is invalid
+	 */
+	private StereoMolecule parseSmiles(String smiles) {
+		StereoMolecule mol = new StereoMolecule();
+		if (smiles != null && !smiles.trim().isEmpty()) {
+			try {
+				new SmilesParser().parse(mol, smiles.trim());
+			}
+			catch (Exception e) {
+				return null;
+			}
+		}
+		return mol;
+	}
+
+	/**
+	 * Adds the next record to the batch and inserts the batch, when it is full.
+	 * @param batch
+	 * @param mol null if the structure could not be parsed
+	 * @param value field values
+	 */
+	private void addRecord(ArrayList<Record> batch, StereoMolecule mol, String[] value) {
+		int number = ++mRecordCount;
+		if (mol == null) {
+			skipRecord(number, "invalid structure");
+			return;
+		}
+
+		if (mol.getAllAtoms() == 0) {
+			batch.add(new Record(number, "", null, value));
+		}
+		else {
+			Canonizer canonizer = new Canonizer(mol);
+			batch.add(new Record(number, canonizer.getIDCode(), canonizer.getEncodedCoordinates(), value));
+		}
+
+		if (batch.size() == BATCH_SIZE) {
+			insertBatch(batch);
+			batch.clear();
+		}
+	}
+
+	private void skipRecord(int number, String message) {
+		mSkippedCount++;
+		synchronized (mErrorList) {
+			if (mErrorList.size() < MAX_REPORTED_ERRORS)
+				mErrorList.add("record "+number+": "+message);
+		}
+	}
+
+	/**
+	 * Resolves foreign keys, checks values and inserts the compounds and bottles of all valid records.
+	 * Sets mError, if a batch insert fails.
+	 * @param batch
+	 */
+	private void insertBatch(ArrayList<Record> batch) {
+		mModificationLock.lock();
+		try {
+			InMemoryData data = mDataSupplier.get();
+			CompoundTable compoundTable = data.getCompoundTable();
+			AlphaNumTable bottleTable = data.getBottleTable();
+			boolean withBottles = !mBottleMapping.isEmpty();
+
+			ArrayList<Record> validList = new ArrayList<>(batch.size());
+			ArrayList<TreeMap<String,String>> compoundRowList = new ArrayList<>(batch.size());
+			ArrayList<TreeMap<String,String>> bottleRowList = new ArrayList<>(batch.size());
+			for (Record record:batch) {
+				TreeMap<String,String> compoundValueMap = new TreeMap<>();
+				compoundValueMap.put("idcode", record.idcode);
+				if (record.coords != null)
+					compoundValueMap.put("idcoords", record.coords);
+				String error = putValues(compoundTable, mCompoundMapping, record.value, compoundValueMap);
+				TreeMap<String,String> bottleValueMap = new TreeMap<>();
+				if (error == null && withBottles)
+					error = putValues(bottleTable, mBottleMapping, record.value, bottleValueMap);
+				if (error != null) {
+					skipRecord(record.number, error);
+					continue;
+				}
+				validList.add(record);
+				compoundRowList.add(compoundValueMap);
+				bottleRowList.add(bottleValueMap);
+			}
+			if (validList.isEmpty())
+				return;
+
+			String range = " of records "+validList.get(0).number+" to "+batch.get(batch.size()-1).number+": ";
+			String prepareError = compoundTable.prepareStructures(compoundRowList);	// outside of the UnitOfWork
+			if (prepareError != null) {
+				mError = "Compounds"+range+prepareError;
+				return;
+			}
+
+			UnitOfWork.Work insert = () -> {
+				int[] compoundPK = new int[validList.size()];
+				String insertError = compoundTable.insertPreparedRows(compoundRowList, compoundPK);
+				if (insertError != null || !withBottles)
+					return (insertError == null) ? null : "Compounds"+range+insertError;
+
+				String compoundFKName = bottleTable.getColumnName(data.getCompoundForeignKeyIndex());
+				for (int i=0; i<bottleRowList.size(); i++)
+					bottleRowList.get(i).put(compoundFKName, Integer.toString(compoundPK[i]));
+				insertError = bottleTable.insertRows(bottleRowList, new int[validList.size()]);
+				return (insertError == null) ? null : "Bottles"+range+insertError;
+			};
+			String error = withBottles ? compoundTable.runStructureLockedUnitOfWork(compoundRowList, insert) : insert.run();	// compounds and bottles or nothing
+			if (error != null) {
+				mError = error;
+				return;
+			}
+			mCompoundCount += validList.size();
+			if (withBottles)
+				mBottleCount += validList.size();
+		}
+		finally {
+			mModificationLock.unlock();
+		}
+	}
+
+	/**
+	 * Puts the mapped field values of a record into the column value map, replaces foreign key IDs
+	 * by primary keys and checks all values.
+	 * @param table
+	 * @param mapping
+	 * @param fieldValue
+	 * @param columnValueMap
+	 * @return null or error message
+	 */
+	private String putValues(AlphaNumTable table, ArrayList<int[]> mapping, String[] fieldValue, TreeMap<String,String> columnValueMap) {
+		for (int[] columnAndField:mapping) {
+			int column = columnAndField[0];
+			String value = fieldValue[columnAndField[1]];
+			if (value == null || value.trim().isEmpty())
+				continue;
+
+			value = value.trim();
+			if (table.getColumnType(column) == ConfigurationKeys.COLUMN_TYPE_FK) {
+				AlphaNumTable referencedTable = table.getForeignKeys()[column].getReferencedTable();
+				if (referencedTable.getIDColumn() != -1) {
+					int pk = referencedTable.getPKFromID(value.getBytes(StandardCharsets.UTF_8));
+					if (pk == AlphaNumRow.NO_KEY)
+						return referencedTable.getName()+" '"+value+"' not found";
+					value = Integer.toString(pk);
+				}
+			}
+			columnValueMap.put(table.getColumnName(column), value);
+		}
+		return table.checkValues(columnValueMap);
+	}
+
+	/**
+	 * @return one line describing progress or result of the import
+	 */
+	public String getStatus() {
+		StringBuilder status = new StringBuilder(Integer.toString(mID)).append(": ");
+		status.append(!mIsStarted ? "not started; " : !mIsFinished ? "running; " : mError == null ? "finished; " : "stopped; ");
+		status.append(mRecordCount).append(" records read, ").append(mCompoundCount).append(" compounds");
+		if (!mBottleMapping.isEmpty())
+			status.append(" and ").append(mBottleCount).append(" bottles");
+		status.append(" registered");
+		if (mSkippedCount != 0)
+			status.append(", ").append(mSkippedCount).append(" skipped");
+		if (mError != null)
+			status.append("; ").append(mError);
+		synchronized (mErrorList) {
+			if (!mErrorList.isEmpty())
+				status.append("; ").append(String.join("; ", mErrorList));
+		}
+		return status.toString();
+	}
+}
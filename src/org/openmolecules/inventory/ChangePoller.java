@@ -0,0 +1,272 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Periodically pulls rows, which were inserted, changed or deleted in the database by other clients,
+ * and applies them to the in-memory tables. Three modes are supported:<br>
+ * SYNC_MODE_TIMESTAMP: every table has a modification timestamp column; rows changed since
+ * the previous poll are fetched; deleted rows are found by comparing primary keys.<br>
+ * SYNC_MODE_CHANGELOG: a change log table, typically filled by triggers, lists table name and primary key
+ * of every inserted, changed or deleted row with an increasing change_id. Listed rows are fetched;
+ * if a row doesn't exist anymore, it is removed from memory.<br>
+ * SYNC_MODE_PKDIFF: primary keys of database and memory are compared. This finds inserted and deleted
+ * rows, but no changes of existing rows.
+ */
+public class ChangePoller implements ConfigurationKeys {
+	private final AlphaNumTable[] mTable;
+	private final DatabaseConnector mConnector;
+	private final String mMode,mTimestampColumn,mChangeLogTable;
+	private String mLastSyncTime;
+	private long mLastChangeID;
+	private volatile String mStatus;
+
+	/**
+	 * @param table all tables in the order of InMemoryData.getTables(), i.e. referenced tables first
+	 * @param connector
+	 * @param mode one of SYNC_MODE_TIMESTAMP, SYNC_MODE_CHANGELOG, SYNC_MODE_PKDIFF
+	 * @param timestampColumn modification timestamp column name, if mode is SYNC_MODE_TIMESTAMP
+	 * @param changeLogTable change log table name, if mode is SYNC_MODE_CHANGELOG
+	 */
+	public ChangePoller(AlphaNumTable[] table, DatabaseConnector connector, String mode, String timestampColumn, String changeLogTable) {
+		mTable = table;
+		mConnector = connector;
+		mMode = mode;
+		mTimestampColumn = timestampColumn;
+		mChangeLogTable = changeLogTable;
+	}
+
+	/**
+	 * Determines the database state to poll changes from. Must be called before the tables are loaded,
+	 * such that changes during the load are applied by the first poll.
+	 * @return error message or null
+	 */
+	public String initialize() {
+		if (SYNC_MODE_TIMESTAMP.equals(mMode)) {
+			if (mTimestampColumn == null || mTimestampColumn.isEmpty())
+				return "'"+SYNC_TIMESTAMP_COLUMN+"' missing in config file.";
+			mLastSyncTime = mConnector.getString("SELECT CURRENT_TIMESTAMP");
+			return mLastSyncTime == null ? "Could not get database time." : null;
+		}
+		if (SYNC_MODE_CHANGELOG.equals(mMode)) {
+			if (mChangeLogTable == null || mChangeLogTable.isEmpty())
+				return "'"+SYNC_CHANGELOG_TABLE+"' missing in config file.";
+			String maxID = mConnector.getString("SELECT COALESCE(MAX(change_id),0) FROM "+mChangeLogTable);
+			if (maxID == null)
+				return "Could not access change log table '"+mChangeLogTable+"'.";
+			mLastChangeID = Long.parseLong(maxID.trim());
+			return null;
+		}
+		if (SYNC_MODE_PKDIFF.equals(mMode))
+			return null;
+
+		return "Invalid '"+SYNC_MODE+"' in config file: "+mMode;
+	}
+
+	/**
+	 * @return null or result of the most recent poll
+	 */
+	public String getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * Fetches all changes since the previous poll and applies them to the in-memory tables.
+	 */
+	public synchronized void poll() {
+		WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+		if (writeBehindQueue != null && !writeBehindQueue.flush(true)) {	// otherwise rows would be synced back to older values
+			mStatus = "Database sync postponed: "+WriteBehindQueue.ERROR_NOT_FLUSHED;
+			return;
+		}
+
+		Connection connection = mConnector.createConnection();
+		if (connection == null) {
+			mStatus = "Database sync failed: no connection";
+			return;
+		}
+
+		try {
+			int[] count = SYNC_MODE_TIMESTAMP.equals(mMode) ? pollTimestamps(connection)
+						: SYNC_MODE_CHANGELOG.equals(mMode) ? pollChangeLog(connection)
+						: pollPrimaryKeys(connection, true);
+			mStatus = "Database sync "+new Date()+": "+count[0]+" rows updated, "+count[1]+" rows deleted";
+			if (count[0] != 0 || count[1] != 0)
+				System.out.println(mStatus);
+		}
+		catch (SQLException e) {
+			mStatus = "Database sync failed: "+e.getMessage();
+			System.out.println(mStatus);
+		}
+		finally {
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {}
+		}
+	}
+
+	private int[] pollTimestamps(Connection connection) throws SQLException {
+		String syncTime = getString(connection, "SELECT CURRENT_TIMESTAMP");
+
+		int updateCount = 0;
+		for (AlphaNumTable table:mTable)    // referenced tables first
+			for (String[] value:table.selectRawRows(connection, mTimestampColumn+">='"+mLastSyncTime+"'"))
+				if (table.syncRow(value))
+					updateCount++;
+
+		mLastSyncTime = syncTime;
+		int[] deleteCount = pollPrimaryKeys(connection, false);
+		return new int[] { updateCount, deleteCount[1] };
+	}
+
+	private int[] pollChangeLog(Connection connection) throws SQLException {
+		HashMap<AlphaNumTable,ArrayList<Integer>> changeMap = new HashMap<>();
+		long lastChangeID = mLastChangeID;
+		Statement stmt = connection.createStatement();
+		ResultSet rset = stmt.executeQuery("SELECT change_id,table_name,row_key FROM "+mChangeLogTable
+				+" WHERE change_id>"+mLastChangeID+" ORDER BY change_id");
+		while (rset.next()) {
+			lastChangeID = rset.getLong(1);
+			AlphaNumTable table = getTable(rset.getString(2));
+			if (table != null)
+				changeMap.computeIfAbsent(table, k -> new ArrayList<>()).add(rset.getInt(3));
+		}
+		rset.close();
+		stmt.close();
+
+		int updateCount = 0;
+		IntIntMap[] foundKeys = new IntIntMap[mTable.length];
+		for (int i=0; i<mTable.length; i++) {    // referenced tables first
+			ArrayList<Integer> keyList = changeMap.get(mTable[i]);
+			if (keyList != null) {
+				foundKeys[i] = new IntIntMap();
+				for (String[] value:selectRows(connection, mTable[i], keyList)) {
+					if (mTable[i].syncRow(value)) {
+						foundKeys[i].put(AlphaNumTable.parseKey(value[mTable[i].getPrimaryKeyColumn()]), 0);
+						updateCount++;
+					}
+				}
+			}
+		}
+
+		int deleteCount = 0;
+		for (int i=mTable.length-1; i>=0; i--) {    // referencing tables first
+			ArrayList<Integer> keyList = changeMap.get(mTable[i]);
+			if (keyList != null) {
+				for (int key:keyList) {
+					if (!foundKeys[i].containsKey(key) && mTable[i].getRowByPrimaryKey(key) != null) {
+						mTable[i].syncDelete(key);
+						deleteCount++;
+					}
+				}
+			}
+		}
+
+		mLastChangeID = lastChangeID;
+		return new int[] { updateCount, deleteCount };
+	}
+
+	/**
+	 * Compares primary keys of database and memory. Removes rows from memory, which don't exist
+	 * in the database anymore, and optionally fetches rows, which are missing in memory.
+	 * @return number of inserted and deleted rows
+	 */
+	private int[] pollPrimaryKeys(Connection connection, boolean fetchNewRows) throws SQLException {
+		// Keys in memory must be taken before database keys; otherwise rows inserted meanwhile would be removed.
+		int[][] memoryKeys = new int[mTable.length][];
+		for (int i=0; i<mTable.length; i++)
+			memoryKeys[i] = getPrimaryKeys(mTable[i]);
+
+		IntIntMap[] databaseKeys = new IntIntMap[mTable.length];
+		int insertCount = 0;
+		for (int i=0; i<mTable.length; i++) {    // referenced tables first
+			int[] key = mTable[i].selectPrimaryKeys(connection);
+			databaseKeys[i] = new IntIntMap(key.length);
+			for (int k:key)
+				databaseKeys[i].put(k, 0);
+
+			if (fetchNewRows) {
+				ArrayList<Integer> newKeyList = new ArrayList<>();
+				for (int k:key)
+					if (mTable[i].getRowByPrimaryKey(k) == null)
+						newKeyList.add(k);
+				for (String[] value:selectRows(connection, mTable[i], newKeyList))
+					if (mTable[i].syncRow(value))
+						insertCount++;
+			}
+		}
+
+		int deleteCount = 0;
+		for (int i=mTable.length-1; i>=0; i--) {    // referencing tables first
+			for (int key:memoryKeys[i]) {
+				if (!databaseKeys[i].containsKey(key) && mTable[i].getRowByPrimaryKey(key) != null) {
+					mTable[i].syncDelete(key);
+					deleteCount++;
+				}
+			}
+		}
+
+		return new int[] { insertCount, deleteCount };
+	}
+
+	private int[] getPrimaryKeys(AlphaNumTable table) {
+		ArrayList<AlphaNumRow> rowList = table.getLiveRowList();
+		int[] key = new int[rowList.size()];
+		for (int i=0; i<key.length; i++)
+			key[i] = rowList.get(i).getPrimaryKey();
+		return key;
+	}
+
+	/**
+	 * @return raw column values of all existing rows with the given primary keys
+	 */
+	private ArrayList<String[]> selectRows(Connection connection, AlphaNumTable table, ArrayList<Integer> keyList) throws SQLException {
+		int[] key = new int[keyList.size()];
+		for (int i=0; i<key.length; i++)
+			key[i] = keyList.get(i);
+		return table.selectRawRows(connection, key);
+	}
+
+	private AlphaNumTable getTable(String name) {
+		for (AlphaNumTable table:mTable)
+			if (table.getName().equalsIgnoreCase(name) || table.getLongName().equalsIgnoreCase(name))
+				return table;
+		return null;
+	}
+
+	private String getString(Connection connection, String sql) throws SQLException {
+		String result = null;
+		Statement stmt = connection.createStatement();
+		ResultSet rset = stmt.executeQuery(sql);
+		if (rset.next())
+			result = rset.getString(1);
+		rset.close();
+		stmt.close();
+		return result;
+	}
+}
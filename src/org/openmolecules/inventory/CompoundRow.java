@@ -21,13 +21,37 @@ package org.openmolecules.inventory;
 import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
 import com.actelion.research.chem.descriptor.DescriptorHandlerSkeletonSpheres;
 
+import java.io.PrintStream;
+
+/**
+ * Compound row with chemical structure and descriptors. The decoded FragFp is always kept,
+ * because substructure searches need it for every row. Depending on the 'compact' flag
+ * passed to setStructure(), the encoded FragFp is either kept or re-encoded whenever needed,
+ * and SkeletonSpheres are either decoded immediately or kept encoded until first used
+ * by a similarity search.
+ */
 public class CompoundRow extends AlphaNumRow {
 	private byte[] mIDCode,mCoords,mFFPBytes;
 	private long[] mFFP;
-	private byte[] mSkelSpheres;
+	private volatile byte[] mSkelSpheres,mEncodedSkelSpheres;
+
+	public CompoundRow(int columnCount, int foreignKeyCount) {
+		super(columnCount, foreignKeyCount);
+	}
+
+	protected CompoundRow(CompoundRow row) {
+		super(row);
+		mIDCode = row.mIDCode;
+		mCoords = row.mCoords;
+		mFFPBytes = row.mFFPBytes;
+		mFFP = row.mFFP;
+		mSkelSpheres = row.mSkelSpheres;
+		mEncodedSkelSpheres = row.mEncodedSkelSpheres;
+	}
 
-	public CompoundRow(int columnCount) {
-		super(columnCount);
+	@Override
+	public CompoundRow copy() {
+		return new CompoundRow(this);
 	}
 
 	public byte[] getIDCode() {
@@ -39,22 +63,114 @@ public class CompoundRow extends AlphaNumRow {
 	}
 
 	public byte[] getFFPBytes() {
-		return mFFPBytes;
+		return mFFPBytes != null ? mFFPBytes : encodeFFP(mFFP);
+	}
+
+	protected static byte[] encodeFFP(long[] ffp) {
+		return ffp == null ? null : DescriptorHandlerLongFFP512.getDefaultInstance().encode(ffp).getBytes();
+	}
+
+	protected static long[] decodeFFP(String encodedFFP) {
+		return encodedFFP == null || encodedFFP.isEmpty() ? null : DescriptorHandlerLongFFP512.getDefaultInstance().decode(encodedFFP);
 	}
 
 	public long[] getFFP() {
 		return mFFP;
 	}
 
+	/**
+	 * Lets derived classes, which keep the other structure fields elsewhere, set the decoded FragFp.
+	 * @param ffp
+	 */
+	protected void setFFP(long[] ffp) {
+		mFFP = ffp;
+	}
+
+	/**
+	 * If SkeletonSpheres are still encoded, then they are decoded now and the encoded form is released.
+	 * @return decoded SkeletonSpheres descriptor or null
+	 */
 	public byte[] getSkelSpheres() {
-		return mSkelSpheres;
+		byte[] skelSpheres = mSkelSpheres;
+		if (skelSpheres == null) {
+			byte[] encoded = mEncodedSkelSpheres;
+			if (encoded == null)
+				return mSkelSpheres;	// may have been decoded by another thread meanwhile
+
+			skelSpheres = DescriptorHandlerSkeletonSpheres.getDefaultInstance().decode(encoded);
+			mSkelSpheres = skelSpheres;
+			mEncodedSkelSpheres = null;
+		}
+		return skelSpheres;
+	}
+
+	/**
+	 * @return true, if the row has a structure, but FragFp or SkeletonSpheres are missing
+	 */
+	public boolean isMissingDescriptors() {
+		return mIDCode != null && (mFFP == null || (mSkelSpheres == null && mEncodedSkelSpheres == null));
+	}
+
+	/**
+	 * @return encoded SkeletonSpheres descriptor or null
+	 */
+	public byte[] getEncodedSkelSpheres() {
+		byte[] encoded = mEncodedSkelSpheres;
+		if (encoded != null)
+			return encoded;
+
+		byte[] skelSpheres = mSkelSpheres;
+		return skelSpheres == null ? null : DescriptorHandlerSkeletonSpheres.getDefaultInstance().encode(skelSpheres).getBytes();
+	}
+
+	/**
+	 * Prints the idcode, coordinates or encoded FragFp, if not null, without creating a String.
+	 * @param field one of StructureArena.FIELD_IDCODE, FIELD_COORDS, FIELD_FFP
+	 * @param body
+	 */
+	public void printStructureField(int field, PrintStream body) {
+		byte[] data = (field == StructureArena.FIELD_IDCODE) ? getIDCode()
+					: (field == StructureArena.FIELD_COORDS) ? getCoords()
+					: (field == StructureArena.FIELD_FFP) ? getFFPBytes() : null;
+		if (data != null)
+			body.write(data, 0, data.length);
+	}
+
+	/**
+	 * @param idcode
+	 * @param coords
+	 * @param ffp decoded FragFp or null, if it shall be decoded from encodedFFP
+	 * @param encodedFFP
+	 * @param encodedSkelSpheres
+	 * @param compact if true, then the encoded FragFp is not kept and SkeletonSpheres are decoded lazily
+	 */
+	public void setStructure(String idcode, String coords, long[] ffp, String encodedFFP, String encodedSkelSpheres, boolean compact) {
+		boolean hasStructure = (idcode != null && !idcode.isEmpty());
+		boolean hasSkelSpheres = (hasStructure && encodedSkelSpheres != null && !encodedSkelSpheres.isEmpty());
+		mIDCode = hasStructure ? idcode.getBytes() : null;
+		mCoords = (!hasStructure || coords == null || coords.isEmpty()) ? null : coords.getBytes();
+		mFFP = !hasStructure ? null : ffp != null ? ffp : decodeFFP(encodedFFP);
+		mFFPBytes = (compact || !hasStructure || encodedFFP == null || encodedFFP.isEmpty()) ? null : encodedFFP.getBytes();
+		mEncodedSkelSpheres = (compact && hasSkelSpheres) ? encodedSkelSpheres.getBytes() : null;
+		mSkelSpheres = (!compact && hasSkelSpheres) ? DescriptorHandlerSkeletonSpheres.getDefaultInstance().decode(encodedSkelSpheres) : null;
 	}
 
-	public void setStructure(String idcode, String coords, long[] ffp, String encodedFFP, String encodedSkelSpheres) {
-		mIDCode = (idcode == null || idcode.isEmpty()) ? null : idcode.getBytes();
-		mCoords = (idcode == null || coords == null || coords.isEmpty()) ? null : coords.getBytes();
-		mFFPBytes = (idcode == null || encodedFFP == null || encodedFFP.isEmpty()) ? null : encodedFFP.getBytes();
-		mFFP = (idcode == null) ? null : ffp != null ? ffp : encodedFFP != null && !encodedFFP.isEmpty() ? DescriptorHandlerLongFFP512.getDefaultInstance().decode(encodedFFP) : null;
-		mSkelSpheres = (idcode == null || encodedSkelSpheres == null || encodedSkelSpheres.isEmpty()) ? null : DescriptorHandlerSkeletonSpheres.getDefaultInstance().decode(encodedSkelSpheres);
+	/**
+	 * Sets structure and descriptors from a snapshot, where they are kept in the same form
+	 * as in memory, such that nothing needs to be decoded.
+	 * @param idcode null, if the row has no structure
+	 * @param coords
+	 * @param ffp decoded FragFp
+	 * @param skelSpheres SkeletonSpheres, encoded if compact, decoded otherwise
+	 * @param compact
+	 */
+	public void restoreStructure(byte[] idcode, byte[] coords, long[] ffp, byte[] skelSpheres, boolean compact) {
+		boolean hasStructure = (idcode != null);
+		mIDCode = idcode;
+		mCoords = hasStructure ? coords : null;
+		mFFP = hasStructure ? ffp : null;
+		mFFPBytes = (compact || !hasStructure) ? null : encodeFFP(ffp);
+		mEncodedSkelSpheres = (compact && hasStructure) ? skelSpheres : null;
+		mSkelSpheres = (!compact && hasStructure) ? skelSpheres : null;
 	}
 }
@@ -21,29 +21,69 @@ package org.openmolecules.inventory;
 import com.actelion.research.chem.*;
 import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
 import com.actelion.research.chem.descriptor.DescriptorHandlerSkeletonSpheres;
-import com.actelion.research.util.ByteArrayComparator;
 import com.actelion.research.util.DoubleFormat;
 
-import java.sql.ResultSet;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.function.Supplier;
 
 public class CompoundTable extends AlphaNumTable {
 	public static final String[] STRUCTURE_COLUMN_TITLE = { "Structure", "ID-Coords", "FragFp" };
 	private static final String SELECT_COLUMNS = "idcode,idcoords,fragfp,skelspheres";
+	private static final String[] DERIVED_COLUMN_NAME = { "idcode", "idcoords", "fragfp", "skelspheres" };
+	private static final String ERROR_AUTO_ID = "Couldn't generate automatic compound ID due to too few available digits.";
 	private static final String[] CREATE_COLUMNS = {
 			"idcode varchar(255)", "idcoords varchar(255)", "fragfp varchar(255)", "skelspheres varchar(1023)" };
 
 	private int mMWColumn, mMFColumn;
 	private final boolean mCheckNovelty;
 	private final String mAutoIDFormat;
-	private TreeMap<byte[],byte[]> mIDCodeToPKMap;
+	private static final long MIN_ARENA_WASTE = 1L << 26;	// bytes of unused records before the arena is compacted
+	private static final int STRUCTURE_LOCK_COUNT = 64;
+	private static final int ROW_LOCK_COUNT = 64;
+
+	private volatile StructureArena mArena;
+	private final Supplier<StructureArena> mCurrentArena = () -> mArena;
+	private final boolean mCompactDescriptors;
+	private final StructureIndex mStructureIndex;
+	private final KeyLock mStructureLock,mRowLock;
+	private StructurePipeline mPipeline;
+
+	/**
+	 * Column values of one compound on their way through the StructurePipeline.
+	 */
+	protected static class StructureValues {
+		final TreeMap<String,String> columnValueMap;
+		StereoMolecule mol;
+
+		StructureValues(TreeMap<String,String> columnValueMap) {
+			this.columnValueMap = columnValueMap;
+		}
+	}
 
-	public CompoundTable(boolean checkNovelty, String autoIDFormat) {
+	/**
+	 * @param checkNovelty
+	 * @param autoIDFormat
+	 * @param arena null to keep structure payloads on the heap; otherwise off-heap storage
+	 * @param compactDescriptors whether to keep FragFp decoded only and to decode SkeletonSpheres lazily
+	 */
+	public CompoundTable(boolean checkNovelty, String autoIDFormat, StructureArena arena, boolean compactDescriptors) {
 		super();
+		mArena = arena;
+		mCompactDescriptors = compactDescriptors;
 		mCheckNovelty = checkNovelty;
 		mAutoIDFormat = autoIDFormat == null || autoIDFormat.trim().isEmpty() ? null : autoIDFormat;
-		mIDCodeToPKMap = checkNovelty ? new TreeMap<>(new ByteArrayComparator()) : null;
+		mStructureIndex = new StructureIndex();
+		mStructureLock = new KeyLock(STRUCTURE_LOCK_COUNT);
+		mRowLock = new KeyLock(ROW_LOCK_COUNT);
 
 		mMWColumn = -1;
 		mMFColumn = -1;
@@ -78,190 +118,590 @@ public class CompoundTable extends AlphaNumTable {
 
 	@Override
 	public AlphaNumRow createRow() {
-		return new CompoundRow(getColumnCount());
+		return (mArena == null) ? new CompoundRow(getColumnCount(), getForeignKeys().length)
+							   : new MappedCompoundRow(getColumnCount(), getForeignKeys().length, mCurrentArena);
+	}
+
+	/**
+	 * @return null or the arena, to which new structure records are written
+	 */
+	public StructureArena getArena() {
+		return mArena;
+	}
+
+	/**
+	 * If more than the given fraction of the structure arena is occupied by records, which no current
+	 * row uses anymore, then all current rows are replaced by copies, whose records are written to a new arena.
+	 * Row versions, which are still used by running searches, keep reading from the old arena, whose file is
+	 * deleted, but stays mapped until these rows are garbage collected.
+	 * @param threshold
+	 * @return true, if the arena was compacted
+	 */
+	public boolean compactArena(float threshold) {
+		StructureArena arena = mArena;
+		if (arena == null)
+			return false;
+
+		long liveSize = 0;
+		for (AlphaNumRow row:getLiveRowList())
+			if (((MappedCompoundRow)row).getArena() == arena)
+				liveSize += ((MappedCompoundRow)row).getRecordSize();
+		long waste = arena.getSize() - liveSize;
+		if (waste < MIN_ARENA_WASTE || waste <= threshold * arena.getSize())
+			return false;
+
+		StructureArena newArena;
+		try {
+			newArena = arena.createSuccessor();
+		}
+		catch (IOException ioe) {
+			System.out.println("Could not create structure storage file: "+ioe.getMessage());
+			return false;
+		}
+
+		int[] count = new int[1];
+		getVersionManager().commit(commit -> {
+			mArena = newArena;
+			commit.onRollback(() -> {
+				mArena = arena;
+				newArena.close();
+				newArena.getFile().delete();
+			});
+
+			TableVersion.Editor editor = commit.edit(this);
+			for (int slot=0; slot<editor.getSlotCount(); slot++) {
+				MappedCompoundRow row = (MappedCompoundRow)editor.getRow(slot);
+				if (row != null && row.getArena() != null) {
+					MappedCompoundRow newRow = row.copy();
+					newRow.moveToCurrentArena();
+					replaceRow(commit, row, newRow);
+					count[0]++;
+				}
+			}
+		});
+
+		arena.close();    // mapped segments stay readable until garbage collected
+		arena.getFile().delete();
+		System.out.println("Compacted structure storage: "+count[0]+" records, "+(waste >> 20)+" MB released");
+		return true;
 	}
 
 	@Override
-	protected AlphaNumRow createRow(ResultSet rset) throws SQLException {
-		CompoundRow row = (CompoundRow)super.createRow(rset);
+	protected void setRowValues(AlphaNumRow row, String[] value) {
+		super.setRowValues(row, value);
 
 		int column = getColumnCount();
-		String idcode = rset.getString(++column);
-		String coords = rset.getString(++column);
-		String ffp = rset.getString(++column);
-		String skelspheres = rset.getString(++column);
-		row.setStructure(idcode, coords, null, ffp, skelspheres);
+		String idcode = value[column++];
+		String coords = value[column++];
+		String ffp = value[column++];
+		String skelspheres = value[column];
+		((CompoundRow)row).setStructure(idcode, coords, null, ffp, skelspheres, mCompactDescriptors);
+	}
 
-		return row;
+	/**
+	 * @return true, if the encoded FragFp is not kept and SkeletonSpheres are kept encoded until needed
+	 */
+	public boolean isCompactDescriptors() {
+		return mCompactDescriptors;
 	}
 
+	/**
+	 * @param pipeline null to process structures of batch inserts and updates on the request thread
+	 */
+	public void setStructurePipeline(StructurePipeline pipeline) {
+		mPipeline = pipeline;
+	}
+
+	/**
+	 * Updates alphanumerical columns and the structure of a compound in one UnitOfWork,
+	 * while the row is locked against other compound updates.
+	 * The structure is standardized and its descriptors are calculated before.
+	 */
 	@Override
-	protected String updateRow(TreeMap<String,String> columnValueMap, byte[] primaryKey, boolean issueErrorIfNoChange) {
-		String idcode = columnValueMap.get("idcode");
-		String coords = columnValueMap.get("idcoords");
-		if (idcode != null && idcode.isEmpty())
-			idcode = null;
-		if (coords != null && coords.isEmpty())
-			coords = null;
-		StereoMolecule mol = null;
-		if (idcode != null) {
-			try {
-				mol = MoleculeStandardizer.getStandardized(idcode, coords, 0);
-				Canonizer canonizer = new Canonizer(mol);
-				idcode = canonizer.getIDCode();
-				coords = canonizer.getEncodedCoordinates();
-			}
-			catch (Exception e) {
-				mol = new IDCodeParser().getCompactMolecule(idcode, coords);
-			}
+	protected String updateRow(TreeMap<String,String> columnValueMap, int primaryKey, boolean issueErrorIfNoChange) {
+		putStructureValues(columnValueMap);
+		int[] lock = mRowLock.lock(Collections.singletonList(primaryKey));
+		try {
+			return runUnitOfWork(() -> updateRowAndStructure(columnValueMap, primaryKey, issueErrorIfNoChange));
+		}
+		finally {
+			mRowLock.unlock(lock);
 		}
-		calculateMWAndMF(columnValueMap, mol);
+	}
 
-		boolean structureChanged = false;
-		CompoundRow row = (CompoundRow)getRow(primaryKey);
-		if (row.getIDCode() == null || !new String(row.getIDCode()).equals(idcode))
-			structureChanged = true;
-		if (row.getCoords() == null || !new String(row.getCoords()).equals(coords))
-			structureChanged = true;
+	private String updateRowAndStructure(TreeMap<String,String> columnValueMap, int primaryKey, boolean issueErrorIfNoChange) {
+		CompoundRow row = (CompoundRow)getRowByPrimaryKey(primaryKey);
+		if (row == null)
+			return "Primary key '"+primaryKey+"' not found in table '"+getName()+"'.";
+		boolean structureChanged = !columnValueMap.get("idcode").equals(row.getIDCode() == null ? "" : new String(row.getIDCode()))
+								|| !columnValueMap.get("idcoords").equals(row.getCoords() == null ? "" : new String(row.getCoords()));
 
 		String errorMsg = super.updateRow(columnValueMap, primaryKey, issueErrorIfNoChange && !structureChanged);
-		if (errorMsg != null)
+		if (errorMsg != null || !structureChanged)
 			return errorMsg;
 
-		return updateIDCodeAndDescriptors(mol, idcode, coords, primaryKey);
+		TreeMap<String,String> structureMap = new TreeMap<>();
+		for (String columnName:DERIVED_COLUMN_NAME)
+			structureMap.put(columnName, columnValueMap.get(columnName));
+		return updatePreparedRows(Collections.singletonList(structureMap), new int[] { primaryKey });
 	}
 
+	/**
+	 * Registers a new compound. Standardization, MW, MF and descriptors are calculated before
+	 * anything is written. The row including all structure columns is then written with one
+	 * INSERT statement, or, if an automatic compound ID is needed, which depends on the new
+	 * primary key, with INSERT and UPDATE in one transaction.
+	 * If novelty is checked and the compound exists already, then the existing key is returned.
+	 * Novelty check and insert run in one UnitOfWork with the structure locked, such that
+	 * concurrent registrations of the same structure cannot both succeed.
+	 */
 	@Override
-	protected String insertRow(TreeMap<String,String> columnValueMap, byte[][] newPrimaryKeyHolder) {
-		String idcode = columnValueMap.get("idcode");
-		String coords = columnValueMap.get("idcoords");
-		if (idcode != null && idcode.isEmpty())
-			idcode = null;
-		if (coords != null && coords.isEmpty())
-			coords = null;
-
-		if (mCheckNovelty && idcode != null) {
-			try {
-				StereoMolecule mol = MoleculeStandardizer.getStandardized(idcode, coords, 0);
-				Canonizer canonizer = new Canonizer(mol);
-				idcode = canonizer.getIDCode();
-				coords = canonizer.getEncodedCoordinates();
-			}
-			catch (Exception e) {
-				// We keep the non standardized version
-				//  return "Couldn't standardize molecule: "+idcode;
-			}
-
-			byte[] pk = mIDCodeToPKMap.get(idcode.getBytes());
-			if (pk != null) {
+	protected String insertRow(TreeMap<String,String> columnValueMap, int[] newPrimaryKeyHolder) {
+		putStructureValues(columnValueMap);
+		if (!mCheckNovelty)
+			return super.insertRow(columnValueMap, newPrimaryKeyHolder);
+
+		return runStructureLockedUnitOfWork(Collections.singletonList(columnValueMap), () -> {
+			String idcode = columnValueMap.get("idcode");
+			int pk = idcode.isEmpty() ? StructureIndex.NO_KEY : mStructureIndex.get(idcode.getBytes());
+			if (pk != StructureIndex.NO_KEY) {
 				newPrimaryKeyHolder[0] = pk;
 				return null;
 			}
-		}
 
-		StereoMolecule mol = (idcode == null) ? null : new IDCodeParser().getCompactMolecule(idcode, coords);
-		calculateMWAndMF(columnValueMap, mol);
+			return super.insertRow(columnValueMap, newPrimaryKeyHolder);
+		});
+	}
 
-		String errorMsg = super.insertRow(columnValueMap, newPrimaryKeyHolder);
-		if (errorMsg != null)
-			return errorMsg;
+	@Override
+	protected String writeNewRow(TreeMap<String,String> columnValueMap, int[] newPrimaryKeyHolder) {
+		if (mAutoIDFormat == null)
+			return super.writeNewRow(columnValueMap, newPrimaryKeyHolder);
+
+		notifyModification();
+		StorageBackend storage = getStorage();
+		return storage.runTransaction(() -> {
+			int[] primaryKey = new int[1];
+			String errorMsg = storage.insertRows(this, Collections.singletonList(columnValueMap), primaryKey);
+			if (errorMsg != null)
+				return errorMsg;
+
+			byte[] autoID = createAutoID(primaryKey[0]);
+			if (autoID == null)
+				return ERROR_AUTO_ID;
+
+			TreeMap<String,String> autoIDMap = new TreeMap<>();
+			autoIDMap.put(getColumnName(getIDColumn()), new String(autoID));
+			errorMsg = storage.updateRows(this, Collections.singletonList(autoIDMap), primaryKey);
+			if (errorMsg != null)
+				return errorMsg;
+
+			columnValueMap.put(getColumnName(getIDColumn()), new String(autoID));
+			newPrimaryKeyHolder[0] = primaryKey[0];
+			return null;
+		});
+	}
 
-		if (idcode != null)
-			mIDCodeToPKMap.put(idcode.getBytes(), newPrimaryKeyHolder[0]);
-
-		if (mAutoIDFormat != null) {
-			byte[] autoID = mAutoIDFormat.getBytes();
-			byte[] primaryKey = newPrimaryKeyHolder[0];
-			int autoIDIndex = autoID.length-1;
-			for (int pkIndex=primaryKey.length-1; pkIndex>=0; pkIndex--) {
-				while (autoIDIndex >= 0 && autoID[autoIDIndex] != '0')
-					autoIDIndex--;
-				if (autoIDIndex == -1)
-					return "Couldn't generate automatic compound ID due to too few available digits.";
-				autoID[autoIDIndex] = primaryKey[pkIndex];
+	/**
+	 * Inserts multiple compounds in one transaction. Structures are standardized and
+	 * descriptors are calculated in parallel by the StructurePipeline before anything
+	 * is written. If novelty is checked, then
+	 * compounds, which exist already or earlier in the batch, are not inserted again;
+	 * the primary key of the existing compound is returned instead.
+	 */
+	@Override
+	protected String insertRows(List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		String errorMsg = prepareStructures(rowList);
+		return (errorMsg != null) ? errorMsg : insertPreparedRows(rowList, newPrimaryKey);
+	}
+
+	/**
+	 * Inserts multiple compounds like insertRows(), whose structure column values were already
+	 * prepared with prepareStructures(). Callers, which insert compounds within their own
+	 * UnitOfWork, use this to keep the expensive structure processing out of it.
+	 * @param rowList
+	 * @param newPrimaryKey
+	 * @return null or error message
+	 */
+	protected String insertPreparedRows(List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		if (!mCheckNovelty)
+			return super.insertRows(rowList, newPrimaryKey);
+
+		return runStructureLockedUnitOfWork(rowList, () -> {
+			ArrayList<TreeMap<String,String>> newRowList = new ArrayList<>();
+			int[] newRowIndex = new int[rowList.size()];	// -1 for existing compounds
+			HashMap<String,Integer> batchIDCodeMap = new HashMap<>();
+			for (int i=0; i<rowList.size(); i++) {
+				TreeMap<String,String> columnValueMap = rowList.get(i);
+				String idcode = columnValueMap.get("idcode");
+				if (!idcode.isEmpty()) {
+					int pk = mStructureIndex.get(idcode.getBytes());
+					if (pk != StructureIndex.NO_KEY) {
+						newPrimaryKey[i] = pk;
+						newRowIndex[i] = -1;
+						continue;
+					}
+					Integer index = batchIDCodeMap.putIfAbsent(idcode, newRowList.size());
+					if (index != null) {
+						newRowIndex[i] = index;
+						continue;
+					}
+				}
+				newRowIndex[i] = newRowList.size();
+				newRowList.add(columnValueMap);
 			}
-			updateAutomaticID(autoID, primaryKey);
+
+			if (newRowList.isEmpty())
+				return null;
+
+			int[] primaryKey = new int[newRowList.size()];
+			String insertErrorMsg = super.insertRows(newRowList, primaryKey);
+			if (insertErrorMsg != null)
+				return insertErrorMsg;
+
+			for (int i=0; i<rowList.size(); i++)
+				if (newRowIndex[i] != -1)
+					newPrimaryKey[i] = primaryKey[newRowIndex[i]];
+
+			return null;
+		});
+	}
+
+	/**
+	 * Runs a UnitOfWork, while the structures of the given prepared rows are locked against
+	 * concurrent novelty checked registrations. Novelty checks within the work thus stay valid
+	 * until its changes are published. Callers, which insert compounds within their own
+	 * UnitOfWork, must use this for their UnitOfWork.
+	 * @param rowList rows with standardized 'idcode' values
+	 * @param work
+	 * @return null or error message, if nothing was changed
+	 */
+	protected String runStructureLockedUnitOfWork(List<TreeMap<String,String>> rowList, UnitOfWork.Work work) {
+		ArrayList<String> idcodeList = new ArrayList<>(rowList.size());
+		for (TreeMap<String,String> columnValueMap:rowList) {
+			String idcode = columnValueMap.get("idcode");
+			if (idcode != null && !idcode.isEmpty())
+				idcodeList.add(idcode);
 		}
 
-		return updateIDCodeAndDescriptors(mol, idcode, coords, newPrimaryKeyHolder[0]);
+		int[] lock = mStructureLock.lock(idcodeList);
+		try {
+			return runUnitOfWork(work);
+		}
+		finally {
+			mStructureLock.unlock(lock);
+		}
 	}
 
-	private void calculateMWAndMF(TreeMap<String,String> columnValueMap, StereoMolecule mol) {
-		if (mol != null && (mMFColumn != -1 || mMWColumn != -1)) {
-			MolecularFormula formula = new MolecularFormula(mol);
-			if (mMFColumn != -1)
-				columnValueMap.put(getColumnName(mMFColumn), formula.getFormula());
-			if (mMWColumn != -1)
-				columnValueMap.put(getColumnName(mMWColumn), DoubleFormat.toString(formula.getRelativeWeight(), 4));
+	/**
+	 * Updates multiple compounds in one transaction. The structure of a compound is only
+	 * changed, if its column values contain an 'idcode', which may be empty to remove it.
+	 * Changed structures are processed in parallel by the StructurePipeline.
+	 */
+	@Override
+	protected String updateRows(List<TreeMap<String,String>> rowList, int[] primaryKey) {
+		ArrayList<TreeMap<String,String>> structureRowList = new ArrayList<>();
+		for (TreeMap<String,String> columnValueMap:rowList) {
+			if (columnValueMap.containsKey("idcode"))
+				structureRowList.add(columnValueMap);
+			else
+				columnValueMap.remove("idcoords");
 		}
+
+		String errorMsg = prepareStructures(structureRowList);
+		return (errorMsg != null) ? errorMsg : updatePreparedRows(rowList, primaryKey);
 	}
 
-	private String updateAutomaticID(byte[] autoID, byte[] primaryKey) {
-		StringBuilder sql = new StringBuilder("UPDATE ");
-		sql.append(getLongName());
-		sql.append(" SET ").append(getColumnName(getIDColumn())).append("='");
-		sql.append(new String(autoID));
-		sql.append("' WHERE ");
-		sql.append(getColumnName(getPrimaryKeyColumn()));
-		sql.append('=');
-		sql.append(new String(primaryKey));
+	/**
+	 * Updates multiple compounds in one transaction, whose structure column values, if any,
+	 * were already standardized and completed with MW, MF and descriptors.
+	 * @param rowList
+	 * @param primaryKey
+	 * @return null or error message
+	 */
+	protected String updatePreparedRows(List<TreeMap<String,String>> rowList, int[] primaryKey) {
+		return updatePreparedRows(rowList, primaryKey, null, null);
+	}
 
-		String errorMsg = runUpdateSQL(sql.toString(), null);
-		if (errorMsg != null)
-			return errorMsg;
+	/**
+	 * Updates multiple compounds like updatePreparedRows(), but skips compounds, whose structure
+	 * isn't the expected one anymore. Check and update run in one UnitOfWork, while the rows are
+	 * locked against other compound updates, such that no client change can get lost.
+	 * @param rowList
+	 * @param primaryKey
+	 * @param expectedIDCode null or idcode of every compound, from which its new column values were derived
+	 * @param updateCountHolder null or receives the number of updated compounds
+	 * @return null or error message
+	 */
+	protected String updatePreparedRows(List<TreeMap<String,String>> rowList, int[] primaryKey,
+										byte[][] expectedIDCode, int[] updateCountHolder) {
+		ArrayList<Integer> keyList = new ArrayList<>(primaryKey.length);
+		for (int key:primaryKey)
+			keyList.add(key);
+
+		int[] lock = mRowLock.lock(keyList);
+		try {
+			return runUnitOfWork(() -> {
+				List<TreeMap<String,String>> updateList = rowList;
+				int[] updateKey = primaryKey;
+				if (expectedIDCode != null) {
+					updateList = new ArrayList<>(rowList.size());
+					updateKey = new int[primaryKey.length];
+					for (int i=0; i<rowList.size(); i++) {
+						CompoundRow row = (CompoundRow)getRowByPrimaryKey(primaryKey[i]);
+						if (row != null && Arrays.equals(row.getIDCode(), expectedIDCode[i])) {
+							updateKey[updateList.size()] = primaryKey[i];
+							updateList.add(rowList.get(i));
+						}
+					}
+					updateKey = Arrays.copyOf(updateKey, updateList.size());
+				}
+
+				if (updateCountHolder != null)
+					updateCountHolder[0] = updateList.size();
+				return updateList.isEmpty() ? null : super.updateRows(updateList, updateKey);
+			});
+		}
+		finally {
+			mRowLock.unlock(lock);
+		}
+	}
 
-		CompoundRow row = (CompoundRow)getRow(primaryKey);
-		row.setData(getIDColumn(), autoID);
-		return null;
+	/**
+	 * Standardizes the given structure like a newly registered one and looks it up in the structure index.
+	 * @param idcode
+	 * @return ascending primary keys of all compounds with this structure or null, if there are none
+	 */
+	public int[] lookupStructure(String idcode) {
+		StructureValues values = new StructureValues(new TreeMap<>());
+		values.columnValueMap.put("idcode", idcode);
+		standardizeStructure(values);
+		String standardized = values.columnValueMap.get("idcode");
+		return standardized.isEmpty() ? null : mStructureIndex.getAll(standardized.getBytes());
+	}
+
+	/**
+	 * @return number of distinct structures in the structure index
+	 */
+	public int getStructureCount() {
+		return mStructureIndex.size();
+	}
+
+	@Override
+	protected void setLoadedRows(ArrayList<AlphaNumRow> rowList) {
+		super.setLoadedRows(rowList);
+		mStructureIndex.build(rowList);
+	}
+
+	@Override
+	protected void rowChanged(AlphaNumRow row, AlphaNumRow newRow) {
+		if (row == null)
+			mStructureIndex.add(((CompoundRow)newRow).getIDCode(), newRow.getPrimaryKey());
+		else if (newRow == null)
+			mStructureIndex.remove(((CompoundRow)row).getIDCode(), row.getPrimaryKey());
+		else
+			mStructureIndex.replace(((CompoundRow)row).getIDCode(), ((CompoundRow)newRow).getIDCode(), row.getPrimaryKey());
+	}
+
+	/**
+	 * Standardizes the structure given as 'idcode' and 'idcoords' column values, calculates
+	 * MW, MF and descriptors, and puts the values of all structure columns into the map.
+	 * If no structure is given, then empty structure column values are put.
+	 */
+	private void putStructureValues(TreeMap<String,String> columnValueMap) {
+		StructureValues values = new StructureValues(columnValueMap);
+		standardizeStructure(values);
+		putDescriptorValues(values);
+	}
+
+	/**
+	 * Does the same as putStructureValues() for all rows, but uses the StructurePipeline, if available.
+	 * @param rowList
+	 * @return null or error message
+	 */
+	protected String prepareStructures(List<TreeMap<String,String>> rowList) {
+		if (mPipeline == null || rowList.size() < 2) {
+			for (TreeMap<String,String> columnValueMap:rowList)
+				putStructureValues(columnValueMap);
+			return null;
+		}
+
+		ArrayList<StructureValues> valuesList = new ArrayList<>(rowList.size());
+		for (TreeMap<String,String> columnValueMap:rowList)
+			valuesList.add(new StructureValues(columnValueMap));
+		return mPipeline.process(valuesList, this::standardizeStructure, this::putDescriptorValues);
+	}
+
+	/**
+	 * First pipeline stage: parses and standardizes the structure and puts canonical
+	 * 'idcode' and 'idcoords' values into the map, which are empty if there is no structure.
+	 * @param values
+	 */
+	protected void standardizeStructure(StructureValues values) {
+		String idcode = values.columnValueMap.get("idcode");
+		String coords = values.columnValueMap.get("idcoords");
+		if (coords != null && coords.isEmpty())
+			coords = null;
+		StereoMolecule mol = null;
+		if (idcode != null && !idcode.isEmpty()) {
+			StructureCache.Structure structure = StructureCache.getInstance().getStandardized(idcode, coords);
+			idcode = structure.idcode;
+			coords = structure.coords;
+			mol = structure.getMolecule();
+		}
+
+		values.mol = mol;
+		values.columnValueMap.put("idcode", mol == null ? "" : idcode);
+		values.columnValueMap.put("idcoords", mol == null || coords == null ? "" : coords);
 	}
 
-	private String updateIDCodeAndDescriptors(StereoMolecule mol, String idcode, String coords, byte[] primaryKey) {
-		long[] ffp = null;
+	/**
+	 * Second pipeline stage: calculates MW, MF and descriptors of the standardized structure.
+	 * @param values
+	 */
+	protected void putDescriptorValues(StructureValues values) {
+		StereoMolecule mol = values.mol;
+		calculateMWAndMF(values.columnValueMap, mol);
+
 		String encodedFFP = "";
 		String encodedSkelSpheres = "";
-		if (idcode == null)
-			idcode = "";
-		if (coords == null)
-			coords = "";
-		if (mol == null) {
-			idcode = "";
-			coords = "";
+		if (mol != null) {
+			encodedFFP = DescriptorHandlerLongFFP512.getDefaultInstance().encode(
+					DescriptorHandlerLongFFP512.getDefaultInstance().createDescriptor(mol));
+			encodedSkelSpheres = DescriptorHandlerSkeletonSpheres.getDefaultInstance().encode(
+					DescriptorHandlerSkeletonSpheres.getDefaultInstance().createDescriptor(mol));
 		}
-		else {
-			ffp = DescriptorHandlerLongFFP512.getDefaultInstance().createDescriptor(mol);
-			encodedFFP = DescriptorHandlerLongFFP512.getDefaultInstance().encode(ffp);
-			byte[] skelSpheres = DescriptorHandlerSkeletonSpheres.getDefaultInstance().createDescriptor(mol);
-			encodedSkelSpheres = DescriptorHandlerSkeletonSpheres.getDefaultInstance().encode(skelSpheres);
+
+		values.columnValueMap.put("fragfp", encodedFFP);
+		values.columnValueMap.put("skelspheres", encodedSkelSpheres);
+		values.mol = null;	// not needed anymore
+	}
+
+	@Override
+	protected String[] getDerivedColumnNames() {
+		return DERIVED_COLUMN_NAME;
+	}
+
+	@Override
+	protected void setDerivedValues(AlphaNumRow row, TreeMap<String,String> columnValueMap) {
+		String idcode = columnValueMap.get("idcode");
+		if (idcode != null)
+			((CompoundRow)row).setStructure(idcode, columnValueMap.get("idcoords"), null,
+					columnValueMap.get("fragfp"), columnValueMap.get("skelspheres"), mCompactDescriptors);
+	}
+
+	/**
+	 * Writes automatic compound IDs of all inserted compounds within the batch transaction.
+	 */
+	@Override
+	protected String completeInsertedRows(List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		if (mAutoIDFormat == null)
+			return null;
+
+		String idColumnName = getColumnName(getIDColumn());
+		ArrayList<TreeMap<String,String>> autoIDList = new ArrayList<>(rowList.size());
+		for (int i=0; i<rowList.size(); i++) {
+			byte[] autoID = createAutoID(newPrimaryKey[i]);
+			if (autoID == null)
+				return ERROR_AUTO_ID;
+			TreeMap<String,String> autoIDMap = new TreeMap<>();
+			autoIDMap.put(idColumnName, new String(autoID));
+			autoIDList.add(autoIDMap);
 		}
 
-		StringBuilder sql = new StringBuilder("UPDATE ");
-		sql.append(getLongName());
-		sql.append(" SET idcode='");
-		sql.append(idcode);
-		sql.append("',idcoords='");
-		sql.append(coords);
-		sql.append("',fragfp='");
-		sql.append(encodedFFP);
-		sql.append("',skelspheres='");
-		sql.append(encodedSkelSpheres);
-		sql.append("' WHERE ");
-		sql.append(getColumnName(getPrimaryKeyColumn()));
-		sql.append('=');
-		sql.append(new String(primaryKey));
-
-		String errorMsg = runUpdateSQL(sql.toString(), null);
+		String errorMsg = getStorage().updateRows(this, autoIDList, newPrimaryKey);
 		if (errorMsg != null)
 			return errorMsg;
 
-		CompoundRow row = (CompoundRow)getRow(primaryKey);
-		if (mCheckNovelty) {
-			byte[] oldIDCode = row.getIDCode();
-			if (oldIDCode != null)
-				mIDCodeToPKMap.remove(primaryKey);
-			if (!idcode.isEmpty())
-				mIDCodeToPKMap.put(primaryKey, idcode.getBytes());
+		for (int i=0; i<rowList.size(); i++)
+			rowList.get(i).putAll(autoIDList.get(i));
+		return null;
+	}
+
+	/**
+	 * @param primaryKey
+	 * @return automatic compound ID derived from the primary key or null, if the format has too few digits
+	 */
+	private byte[] createAutoID(int primaryKey) {
+		byte[] autoID = mAutoIDFormat.getBytes();
+		byte[] pkBytes = Integer.toString(primaryKey).getBytes();
+		int autoIDIndex = autoID.length-1;
+		for (int pkIndex=pkBytes.length-1; pkIndex>=0; pkIndex--) {
+			while (autoIDIndex >= 0 && autoID[autoIDIndex] != '0')
+				autoIDIndex--;
+			if (autoIDIndex == -1)
+				return null;
+			autoID[autoIDIndex] = pkBytes[pkIndex];
 		}
-		row.setStructure(idcode, coords, ffp, encodedFFP, encodedFFP);
+		return autoID;
+	}
+
+	private void calculateMWAndMF(TreeMap<String,String> columnValueMap, StereoMolecule mol) {
+		if (mol != null && (mMFColumn != -1 || mMWColumn != -1)) {
+			MolecularFormula formula = new MolecularFormula(mol);
+			if (mMFColumn != -1)
+				columnValueMap.put(getColumnName(mMFColumn), formula.getFormula());
+			if (mMWColumn != -1)
+				columnValueMap.put(getColumnName(mMWColumn), DoubleFormat.toString(formula.getRelativeWeight(), 4));
+		}
+	}
+
+	/**
+	 * Writes newly calculated descriptors of multiple rows to the database in one transaction
+	 * and updates the current versions of the rows in memory. Rows, whose structure was changed
+	 * or which were deleted since the descriptors were calculated, are skipped.
+	 * @param connection connection, which is used exclusively by the caller
+	 * @param descriptorList
+	 * @return null or error message
+	 */
+	protected String updateDescriptors(Connection connection, List<DescriptorBackfill.Descriptors> descriptorList) {
+		notifyModification();
+
+		String pkName = getColumnName(getPrimaryKeyColumn());
+		PreparedStatement stmt = null;
+		try {
+			connection.setAutoCommit(false);
+			stmt = connection.prepareStatement("UPDATE "+getLongName()
+					+" SET fragfp=?,skelspheres=? WHERE "+pkName+"=? AND idcode=?");
+			for (DescriptorBackfill.Descriptors descriptors:descriptorList) {
+				stmt.setString(1, descriptors.encodedFFP);
+				stmt.setString(2, descriptors.encodedSkelSpheres);
+				stmt.setInt(3, descriptors.row.getPrimaryKey());
+				stmt.setString(4, new String(descriptors.idcode));
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			connection.commit();
+		}
+		catch (SQLException e) {
+			try {
+				connection.rollback();
+			}
+			catch (SQLException rbe) {}
+			return "SQL exception: "+ e.getMessage();
+		}
+		finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+				connection.setAutoCommit(true);
+			}
+			catch (SQLException e) {}
+		}
+
+		getVersionManager().commit(commit -> {
+			for (DescriptorBackfill.Descriptors descriptors:descriptorList) {
+				// other columns may have changed meanwhile; the database was updated, if the structure is the same
+				CompoundRow row = (CompoundRow)commit.getRowByPrimaryKey(this, descriptors.row.getPrimaryKey());
+				if (row != null && Arrays.equals(row.getIDCode(), descriptors.idcode)) {
+					CompoundRow newRow = row.copy();
+					byte[] coords = row.getCoords();
+					newRow.setStructure(new String(descriptors.idcode), coords == null ? null : new String(coords), descriptors.ffp,
+							descriptors.encodedFFP, descriptors.encodedSkelSpheres, mCompactDescriptors);
+					replaceRow(commit, row, newRow);
+				}
+			}
+		});
 		return null;
 	}
 }
@@ -41,6 +41,40 @@ public interface ConfigurationKeys {
 	String ADMIN_HASH = "admin_hash";
 	String CHECK_NOVELTY = "check_novelty";
 	String AUTO_COMPOUND_ID = "auto_compound_id";
+	String COMPACTION_THRESHOLD = "compaction_threshold";
+	String STRUCTURE_STORAGE = "structure_storage";
+	String STRUCTURE_STORAGE_FILE = "structure_storage_file";
+	String STRUCTURE_STORAGE_HEAP = "heap";
+	String STRUCTURE_STORAGE_MAPPED = "mapped";
+	String DESCRIPTOR_STORAGE = "descriptor_storage";
+	String DESCRIPTOR_STORAGE_COMPACT = "compact";
+	String DESCRIPTOR_STORAGE_EAGER = "eager";
+	String LOAD_FETCH_SIZE = "load_fetch_size";
+	String LOAD_PAGE_SIZE = "load_page_size";
+	String SNAPSHOT_FILE = "snapshot_file";
+	String SNAPSHOT_INTERVAL = "snapshot_interval";
+	String SNAPSHOT_CHANGE_MARKER = "snapshot_change_marker";
+	String DESCRIPTOR_BACKFILL = "descriptor_backfill";
+	String SYNC_INTERVAL = "sync_interval";
+	String SYNC_MODE = "sync_mode";
+	String SYNC_MODE_TIMESTAMP = "timestamp";
+	String SYNC_MODE_CHANGELOG = "changelog";
+	String SYNC_MODE_PKDIFF = "pkdiff";
+	String SYNC_TIMESTAMP_COLUMN = "sync_timestamp_column";
+	String SYNC_CHANGELOG_TABLE = "sync_changelog_table";
+	String RELOAD_INTERVAL = "reload_interval";
+	String PIPELINE_WORKERS = "pipeline_workers";
+	String STRUCTURE_CACHE_SIZE = "structure_cache_size";
+	String WRITE_BEHIND_JOURNAL = "write_behind_journal";
+	String WRITE_BEHIND_INTERVAL = "write_behind_interval";
+	String WRITE_BEHIND_BATCH_SIZE = "write_behind_batch_size";
+	String DB_POOL_MIN_SIZE = "db_pool_min_size";
+	String DB_POOL_MAX_SIZE = "db_pool_max_size";
+	String DB_POOL_TIMEOUT = "db_pool_timeout";
+	String DB_POOL_IDLE_TIMEOUT = "db_pool_idle_timeout";
+	String CREDENTIAL_CACHE_TTL = "credential_cache_ttl";
+	String LOCAL_STORAGE = "local_storage";
+	String LOCAL_STORAGE_SYNC = "local_storage_sync";
 	String COMPOUND_TABLE = "compoundTable";
 	String BOTTLE_TABLE = "bottleTable";
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pool of database connections, each with its own cache of prepared statements. A borrowed connection
+ * is used by one thread only, until it is returned. At most maxSize connections exist at any time;
+ * borrowers wait up to the acquisition timeout for one to be returned. Connections, which were idle for
+ * more than VALIDATION_IDLE_TIME, are validated before they are handed out. Connections, which were idle
+ * for longer than the idle timeout, are closed, as long as more than minSize connections remain.
+ * Idle connections are reused in LIFO order, such that unneeded connections become idle long enough
+ * to be evicted.
+ */
+public class ConnectionPool {
+	private static final long VALIDATION_IDLE_TIME = 1000;	// milliseconds
+	private static final int VALIDATION_TIMEOUT = 5;	// seconds
+	private static final int MAX_CACHED_STATEMENTS = 256;
+
+	private final Supplier<Connection> mConnectionFactory;
+	private final int mMinSize,mMaxSize;
+	private final long mTimeout,mIdleTimeout;
+	private final Semaphore mPermits;
+	private final ArrayDeque<PooledConnection> mIdleQueue;
+	private final Timer mEvictionTimer;
+	private int mOpenCount;
+	private long mBorrowCount,mTimeoutCount,mCreatedCount,mTotalWaitNanos,mMaxWaitNanos;
+
+	/**
+	 * A connection of the pool with its prepared statement cache.
+	 */
+	public static class PooledConnection {
+		private final StatementCache mCache;
+		private long mLastUsed;
+
+		private PooledConnection(Connection connection) {
+			mCache = new StatementCache(connection, MAX_CACHED_STATEMENTS);
+		}
+
+		public Connection getConnection() {
+			return mCache.getConnection();
+		}
+
+		public StatementCache getStatementCache() {
+			return mCache;
+		}
+
+		private void close() {
+			mCache.close();
+			try {
+				mCache.getConnection().close();
+			}
+			catch (SQLException e) {}
+		}
+	}
+
+	/**
+	 * @param connectionFactory creates new connections in auto-commit mode or returns null
+	 * @param minSize number of connections, which are kept open when idle
+	 * @param maxSize maximum number of open connections
+	 * @param timeout maximum milliseconds to wait for a connection
+	 * @param idleTimeout milliseconds after which idle connections are closed
+	 */
+	public ConnectionPool(Supplier<Connection> connectionFactory, int minSize, int maxSize, long timeout, long idleTimeout) {
+		mConnectionFactory = connectionFactory;
+		mMaxSize = Math.max(1, maxSize);
+		mMinSize = Math.max(0, Math.min(minSize, mMaxSize));
+		mTimeout = timeout;
+		mIdleTimeout = idleTimeout;
+		mPermits = new Semaphore(mMaxSize, true);
+		mIdleQueue = new ArrayDeque<>();
+
+		mEvictionTimer = new Timer("Connection Pool Eviction", true);
+		long period = Math.max(1000, idleTimeout / 2);
+		mEvictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Hands out an idle connection after validation, if needed, or opens a new one.
+	 * The connection must be returned with release().
+	 * @return connection or null, if no connection could be obtained within the timeout
+	 */
+	public PooledConnection borrow() {
+		long start = System.nanoTime();
+		try {
+			if (!mPermits.tryAcquire(mTimeout, TimeUnit.MILLISECONDS)) {
+				synchronized (this) {
+					mTimeoutCount++;
+				}
+				System.out.println("No database connection available within "+mTimeout+" ms.");
+				return null;
+			}
+		}
+		catch (InterruptedException ie) {
+			return null;
+		}
+
+		long waitNanos = System.nanoTime() - start;
+		synchronized (this) {
+			mBorrowCount++;
+			mTotalWaitNanos += waitNanos;
+			mMaxWaitNanos = Math.max(mMaxWaitNanos, waitNanos);
+		}
+
+		while (true) {
+			PooledConnection pc;
+			synchronized (this) {
+				pc = mIdleQueue.pollLast();
+			}
+			if (pc == null)
+				break;
+
+			if (System.currentTimeMillis() - pc.mLastUsed < VALIDATION_IDLE_TIME || isValid(pc))
+				return pc;
+
+			discard(pc);
+		}
+
+		Connection connection = mConnectionFactory.get();
+		if (connection == null) {
+			mPermits.release();
+			return null;
+		}
+
+		synchronized (this) {
+			mOpenCount++;
+			mCreatedCount++;
+		}
+		return new PooledConnection(connection);
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool.
+	 * @param pc
+	 * @param isBroken true, if the connection failed and should be closed
+	 */
+	public void release(PooledConnection pc, boolean isBroken) {
+		if (isBroken) {
+			discard(pc);
+		}
+		else {
+			pc.mLastUsed = System.currentTimeMillis();
+			synchronized (this) {
+				mIdleQueue.addLast(pc);
+			}
+		}
+		mPermits.release();
+	}
+
+	public boolean isValid(PooledConnection pc) {
+		try {
+			return pc.getConnection().isValid(VALIDATION_TIMEOUT);
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc) {
+		synchronized (this) {
+			mOpenCount--;
+		}
+		pc.close();
+	}
+
+	/**
+	 * Closes connections, which were idle for longer than the idle timeout, keeping at least minSize connections.
+	 */
+	private void evictIdleConnections() {
+		ArrayList<PooledConnection> evictedList = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			// the least recently used connections are at the head of the queue
+			while (mOpenCount - evictedList.size() > mMinSize && !mIdleQueue.isEmpty()
+				&& now - mIdleQueue.peekFirst().mLastUsed > mIdleTimeout)
+				evictedList.add(mIdleQueue.pollFirst());
+		}
+		for (PooledConnection pc:evictedList)
+			discard(pc);
+	}
+
+	/**
+	 * @return one line with pool size, usage and wait times
+	 */
+	public synchronized String getStatus() {
+		int idleCount = mIdleQueue.size();
+		return "Connection pool: "+(mOpenCount - idleCount)+" active, "+idleCount+" idle, max "+mMaxSize
+				+"; "+mBorrowCount+" borrowed, "+mCreatedCount+" opened"
+				+", wait avg "+(mBorrowCount == 0 ? 0 : mTotalWaitNanos / mBorrowCount / 1000)+" us"
+				+", max "+(mMaxWaitNanos / 1000000)+" ms"
+				+(mTimeoutCount == 0 ? "" : ", "+mTimeoutCount+" timeouts");
+	}
+}
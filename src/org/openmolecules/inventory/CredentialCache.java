@@ -0,0 +1,131 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers for a short time which user/password combinations the database has accepted, such that
+ * repeated logins, e.g. of many clients at shift start, don't need a database round trip each.
+ * Only a salted SHA-256 hash of user and password is kept; the salt is random and created per server run.
+ * Rejected logins are never cached. If a password is changed or revoked in the database, then the old
+ * password is accepted until its entry expires or is invalidated explicitly.
+ */
+public class CredentialCache {
+	public static final int DEFAULT_TTL = 300;	// seconds
+
+	private final byte[] mSalt;
+	private final ConcurrentHashMap<String,Entry> mEntryMap;
+	private volatile long mTTL;
+
+	private static class Entry {
+		final byte[] hash;
+		final long expiry;
+
+		Entry(byte[] hash, long expiry) {
+			this.hash = hash;
+			this.expiry = expiry;
+		}
+	}
+
+	public CredentialCache() {
+		mSalt = new byte[16];
+		new SecureRandom().nextBytes(mSalt);
+		mEntryMap = new ConcurrentHashMap<>();
+		mTTL = 1000L * DEFAULT_TTL;
+	}
+
+	/**
+	 * @param ttl seconds that verified credentials are remembered; 0 disables the cache
+	 */
+	public void setTTL(int ttl) {
+		mTTL = 1000L * Math.max(0, ttl);
+		if (mTTL == 0)
+			mEntryMap.clear();
+	}
+
+	/**
+	 * @param user
+	 * @param password
+	 * @return true, if the database accepted this user and password recently
+	 */
+	public boolean isVerified(String user, String password) {
+		Entry entry = mEntryMap.get(user);
+		if (entry == null)
+			return false;
+
+		if (entry.expiry < System.currentTimeMillis()) {
+			mEntryMap.remove(user, entry);
+			return false;
+		}
+
+		return MessageDigest.isEqual(entry.hash, hash(user, password));
+	}
+
+	/**
+	 * Remembers user and password after the database has accepted them.
+	 * @param user
+	 * @param password
+	 */
+	public void put(String user, String password) {
+		if (mTTL != 0)
+			mEntryMap.put(user, new Entry(hash(user, password), System.currentTimeMillis() + mTTL));
+	}
+
+	/**
+	 * Forgets the credentials of one user, e.g. after a password change.
+	 * @param user
+	 */
+	public void invalidate(String user) {
+		mEntryMap.remove(user);
+	}
+
+	public void invalidateAll() {
+		mEntryMap.clear();
+	}
+
+	/**
+	 * Removes expired entries.
+	 */
+	public void purge() {
+		long now = System.currentTimeMillis();
+		mEntryMap.values().removeIf(entry -> entry.expiry < now);
+	}
+
+	public int size() {
+		return mEntryMap.size();
+	}
+
+	private byte[] hash(String user, String password) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(mSalt);
+			digest.update(user.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte)0);
+			return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException nsae) {	// every JRE must support SHA-256
+			throw new IllegalStateException(nsae);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+/**
+ * Immutable, consistent state of all tables of one InMemoryData after a given commit.
+ * A search pins the current DataVersion when it starts and reads all rows through it.
+ * Thus, it neither sees changes committed later nor needs any lock.
+ */
+public class DataVersion {
+	private final long mVersion;
+	private final TableVersion[] mTableVersion;
+
+	protected DataVersion(long version, TableVersion[] tableVersion) {
+		mVersion = version;
+		mTableVersion = tableVersion;
+	}
+
+	/**
+	 * @return number of the commit, which created this version
+	 */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	public TableVersion getTableVersion(AlphaNumTable table) {
+		return mTableVersion[table.getVersionIndex()];
+	}
+
+	protected TableVersion getTableVersion(int index) {
+		return mTableVersion[index];
+	}
+
+	protected int getTableCount() {
+		return mTableVersion.length;
+	}
+
+	/**
+	 * @param row row of this version
+	 * @param fkIndex
+	 * @return version of the referenced row, which belongs to this version, or null
+	 */
+	public AlphaNumRow getReferencedRow(AlphaNumRow row, int fkIndex) {
+		return row.getReferencedRow(fkIndex, mVersion);
+	}
+}
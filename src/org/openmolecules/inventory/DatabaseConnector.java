@@ -18,18 +18,46 @@
 
 package org.openmolecules.inventory;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.sql.*;
 
+/**
+ * Database access of the server. Statements of requests run on connections of a ConnectionPool, such that
+ * concurrent requests use separate connections. Every pooled connection has its own prepared statement cache.
+ * Long running jobs, e.g. table loading, use dedicated connections from createConnection().
+ * Logins are verified on a separate small pool, whose connections are re-authenticated with the user's
+ * credentials and then switched back, if the database supports it (MySQL).
+ */
 public class DatabaseConnector {
-	private static final long CONNECTION_CHECK_DELAY = 60000;
+	public static final String ERROR_NO_CONNECTION = "Error: Server engine cannot connect to database.";
+
+	public static final int DEFAULT_POOL_MIN_SIZE = 1;
+	public static final int DEFAULT_POOL_TIMEOUT = 10000;	// milliseconds
+	public static final int DEFAULT_POOL_IDLE_TIMEOUT = 300;	// seconds
+	private static final int LOGIN_POOL_MAX_SIZE = 4;
+	private static final String SQL_STATE_ACCESS_DENIED = "28000";
 
 	private static boolean sDriverRegistered;
 	private static String sConnectString;
 	private static DatabaseConnector sInstance;
+	private static int sDefaultPoolMaxSize = 16;
 
-	private Connection mConnection;
 	private final String mUser,mPassword;
-	private long mLastKnownValidConnection;
+	private volatile ConnectionPool mPool,mLoginPool;
+	private final ThreadLocal<StatementCache> mTransactionCache;	// open transaction of the thread
+
+	/**
+	 * Work of one database transaction, which is run by runTransaction().
+	 */
+	public interface Transaction {
+		/**
+		 * @param cache prepared statements of the transaction connection
+		 * @return null to commit or error message to roll back
+		 * @throws SQLException causes a rollback
+		 */
+		String run(StatementCache cache) throws SQLException;
+	}
 
 	public static void setConnectString(String connectString) {
 		sConnectString = connectString;
@@ -37,8 +65,28 @@ public class DatabaseConnector {
 			sConnectString = sConnectString.substring(5);
 	}
 
+	/**
+	 * The server sets this to its number of request threads, such that every request thread may
+	 * get a connection. It is used, if the configuration doesn't define the pool size.
+	 * @param size
+	 */
+	public static void setDefaultPoolMaxSize(int size) {
+		sDefaultPoolMaxSize = size;
+	}
+
+	public static int getDefaultPoolMaxSize() {
+		return sDefaultPoolMaxSize;
+	}
+
 	public static boolean isAuthorized(String user, String password) {
 		if (sConnectString != null && sDriverRegistered) {
+			DatabaseConnector connector = sInstance;
+			if (connector != null) {
+				Boolean isAuthorized = connector.reauthenticate(user, password);
+				if (isAuthorized != null)
+					return isAuthorized;
+			}
+
 			try {
 				Connection c = DriverManager.getConnection("jdbc:"+sConnectString, user, password);
 				c.close();
@@ -63,50 +111,88 @@ public class DatabaseConnector {
 	private DatabaseConnector(String user, String password) {
 		mUser = user;
 		mPassword = password;
+		mTransactionCache = new ThreadLocal<>();
+	}
+
+	/**
+	 * Creates the connection pool, unless it exists already.
+	 * @param minSize number of connections kept open when idle
+	 * @param maxSize maximum number of connections
+	 * @param timeout maximum milliseconds to wait for a connection
+	 * @param idleTimeout seconds after which idle connections are closed
+	 */
+	public synchronized void initializePool(int minSize, int maxSize, int timeout, int idleTimeout) {
+		if (mPool == null)
+			mPool = new ConnectionPool(this::createConnection, minSize, maxSize, timeout, 1000L * idleTimeout);
 	}
 
-	public boolean ensureConnection() {
+	/**
+	 * Verifies user and password by switching a connection of the login pool to the given user and back
+	 * to the server's user. This avoids the connection setup of a new connection per login.
+	 * Connections of the request pool are never switched, because that resets their session state.
+	 * @param user
+	 * @param password
+	 * @return whether the database accepted the credentials or null, if this is not supported or failed
+	 */
+	private Boolean reauthenticate(String user, String password) {
+		if (!sConnectString.startsWith("mysql:") || mUser == null)
+			return null;
+
+		ConnectionPool pool;
+		synchronized (this) {
+			if (mLoginPool == null)
+				mLoginPool = new ConnectionPool(this::createConnection, 0, LOGIN_POOL_MAX_SIZE,
+						DEFAULT_POOL_TIMEOUT, 1000L * DEFAULT_POOL_IDLE_TIMEOUT);
+			pool = mLoginPool;
+		}
+
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		if (pc == null)
+			return null;
+
+		Boolean isAuthorized = null;
+		boolean isBroken = true;
 		try {
-			if (mConnection != null) {
-				long now = System.currentTimeMillis();
-				if (mLastKnownValidConnection< now - CONNECTION_CHECK_DELAY) {
-					if (mConnection.isValid(5))
-						mLastKnownValidConnection = now;
-					else
-						mConnection = null;
-					}
-				}
+			Connection connection = pc.getConnection();
+			Method changeUser = connection.getClass().getMethod("changeUser", String.class, String.class);
+			try {
+				changeUser.invoke(connection, user, password);
+				isAuthorized = Boolean.TRUE;
 			}
-		catch (SQLException sqle) {
-			mConnection = null;
+			catch (InvocationTargetException ite) {
+				if (ite.getCause() instanceof SQLException
+				 && SQL_STATE_ACCESS_DENIED.equals(((SQLException)ite.getCause()).getSQLState()))
+					isAuthorized = Boolean.FALSE;
 			}
+			changeUser.invoke(connection, mUser, mPassword);
+			isBroken = false;
+		}
+		catch (Exception e) {}	// connection is closed; the verification result is still valid
+		finally {
+			pool.release(pc, isBroken);
+		}
+		return isAuthorized;
+	}
 
-		if (mConnection == null) {
-			if (sConnectString.startsWith("mysql:")) {
-				try {
-					if (registerMySQLDriver()) {
-						mConnection = DriverManager.getConnection("jdbc:" + sConnectString, mUser, mPassword);
-						mLastKnownValidConnection = System.currentTimeMillis();
-					}
-				}
-				catch (Exception e) {
-					System.out.println("Exception when connecting to MySQL database: "+ e.getMessage());
-				}
-			}
+	private ConnectionPool getPool() {
+		if (mPool == null)
+			initializePool(DEFAULT_POOL_MIN_SIZE, sDefaultPoolMaxSize, DEFAULT_POOL_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT);
+		return mPool;
+	}
 
-			if (sConnectString.startsWith("postgresql:")) {
-				try {
-					if (registerPostgreSQLDriver()) {
-						mConnection = DriverManager.getConnection("jdbc:" + sConnectString, mUser, mPassword);
-						mLastKnownValidConnection = System.currentTimeMillis();
-					}
-				}
-				catch (Exception e) {
-					System.out.println("Exception when connecting to PostgreSQL database: "+ e.getMessage());
-				}
-			}
-		}
-		return mConnection != null;
+	/**
+	 * @return null or one line with usage and wait times of the connection pool
+	 */
+	public String getPoolStatus() {
+		return (mPool == null) ? null : mPool.getStatus();
+	}
+
+	private boolean registerDriver() {
+		if (sConnectString.startsWith("mysql:"))
+			return registerMySQLDriver();
+		if (sConnectString.startsWith("postgresql:"))
+			return registerPostgreSQLDriver();
+		return false;
 	}
 
 	private boolean registerMySQLDriver() {
@@ -137,35 +223,148 @@ public class DatabaseConnector {
 		return sDriverRegistered;
 	}
 
-	public Connection getConnection() {
-		return mConnection;
+	/**
+	 * Runs statements in auto-commit mode on a pooled connection. If the calling thread runs
+	 * a transaction, then the statements become part of it.
+	 * @param work
+	 * @return null or error message
+	 */
+	public String runStatement(Transaction work) {
+		StatementCache transactionCache = mTransactionCache.get();
+		if (transactionCache != null)
+			return runNested(work, transactionCache);
+
+		ConnectionPool pool = getPool();
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		if (pc == null)
+			return ERROR_NO_CONNECTION;
+
+		boolean isBroken = false;
+		try {
+			return work.run(pc.getStatementCache());
+		}
+		catch (SQLException e) {
+			isBroken = !pool.isValid(pc);
+			return "SQL exception: "+ e.getMessage();
+		}
+		finally {
+			pool.release(pc, isBroken);
+		}
+	}
+
+	/**
+	 * Runs multiple statements in one transaction on a pooled connection. Transactions of different
+	 * threads run concurrently on different connections.<br>
+	 * If called from within a transaction, e.g. by a UnitOfWork, then the inner transaction becomes part
+	 * of the outer one and is neither committed nor rolled back separately. Its error message must then be
+	 * returned by the outer transaction to roll back both.
+	 * @param transaction
+	 * @return null or error message, if the transaction was rolled back
+	 */
+	public String runTransaction(Transaction transaction) {
+		StatementCache transactionCache = mTransactionCache.get();
+		if (transactionCache != null)
+			return runNested(transaction, transactionCache);
+
+		ConnectionPool pool = getPool();
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		if (pc == null)
+			return ERROR_NO_CONNECTION;
+
+		Connection connection = pc.getConnection();
+		boolean isBroken = false;
+		try {
+			connection.setAutoCommit(false);
+		}
+		catch (SQLException e) {
+			pool.release(pc, true);
+			return "SQL exception: "+ e.getMessage();
+		}
+
+		mTransactionCache.set(pc.getStatementCache());
+		try {
+			String errorMsg = transaction.run(pc.getStatementCache());
+			if (errorMsg == null)
+				connection.commit();
+			else
+				connection.rollback();
+			return errorMsg;
+		}
+		catch (SQLException e) {
+			isBroken = !rollback(connection);
+			return "SQL exception: "+ e.getMessage();
+		}
+		catch (RuntimeException e) {	// don't leave uncommitted statements for the next transaction
+			isBroken = !rollback(connection);
+			throw e;
+		}
+		finally {
+			mTransactionCache.remove();
+			try {
+				connection.setAutoCommit(true);
+			}
+			catch (SQLException e) {
+				isBroken = true;
+			}
+			pool.release(pc, isBroken);
+		}
 	}
 
-	public String getString(String sql) {
-		if (!ensureConnection())
-			return null;
+	private String runNested(Transaction transaction, StatementCache cache) {
+		try {
+			return transaction.run(cache);
+		}
+		catch (SQLException e) {
+			return "SQL exception: "+ e.getMessage();
+		}
+	}
 
-		String result = null;
-		Statement stmt = null;
-		ResultSet rset = null;
+	/**
+	 * @return false, if the rollback failed
+	 */
+	private boolean rollback(Connection connection) {
 		try {
-			stmt = mConnection.createStatement();
-			rset = stmt.executeQuery(sql);
-			if (rset.next())
-				result = rset.getString(1);
+			connection.rollback();
+			return true;
 		}
-		catch (Exception e) {
-			System.out.println("Exception when executing SQL: "+ e.getMessage());
+		catch (SQLException rbe) {
+			return false;
 		}
+	}
+
+	/**
+	 * Opens an additional connection with the same credentials, e.g. to load tables in parallel.
+	 * @return new connection, which must be closed by the caller, or null
+	 */
+	public Connection createConnection() {
+		if (!registerDriver())
+			return null;
 
 		try {
-			if (rset != null)
-				rset.close();
-			if (stmt != null)
-				stmt.close();
+			return DriverManager.getConnection("jdbc:"+sConnectString, mUser, mPassword);
+		}
+		catch (SQLException e) {
+			System.out.println("Exception when connecting to database: "+ e.getMessage());
+			return null;
 		}
-		catch (SQLException e) {}
+	}
 
-		return result;
+	/**
+	 * @param sql query with one result column
+	 * @return value of the first result row or null
+	 */
+	public String getString(String sql) {
+		String[] result = new String[1];
+		String errorMsg = runStatement(cache -> {
+			try (Statement stmt = cache.getConnection().createStatement();
+				 ResultSet rset = stmt.executeQuery(sql)) {
+				if (rset.next())
+					result[0] = rset.getString(1);
+			}
+			return null;
+		});
+		if (errorMsg != null)
+			System.out.println("Exception when executing SQL: "+ errorMsg);
+		return result[0];
 	}
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Loads all tables from the database into a new InMemoryData in the background, while searches and
+ * modifications continue on the current data. Modifications made during the load are recorded and
+ * re-applied to the new data, before the search engine switches to it. The old data is released
+ * afterwards, when the last search on it has finished. Note that both datasets are in memory
+ * while reloading, i.e. the heap must have room for twice the data.
+ */
+public class DatasetReloader implements ConfigurationKeys {
+	private final InventorySearchEngine mSearchEngine;
+	private final Properties mConfig;
+	private int mGeneration;
+	private volatile boolean mIsRunning;
+	private volatile String mStatus;
+
+	public DatasetReloader(InventorySearchEngine searchEngine, Properties config) {
+		mSearchEngine = searchEngine;
+		mConfig = config;
+	}
+
+	/**
+	 * Schedules a reload every 'reload_interval' hours, if defined in the configuration.
+	 */
+	public void startScheduledReload() {
+		String value = mConfig.getProperty(RELOAD_INTERVAL);
+		if (value == null)
+			return;
+
+		try {
+			long millis = 3600000L * Integer.parseInt(value.trim());
+			if (millis > 0) {
+				new Timer(true).schedule(new TimerTask() {
+					@Override
+					public void run() {
+						start();
+					}
+				}, millis, millis);
+			}
+		}
+		catch (NumberFormatException nfe) {
+			System.out.println("'"+RELOAD_INTERVAL+"' is not numerical. No scheduled reload.");
+		}
+	}
+
+	/**
+	 * Starts a background reload unless one is already running.
+	 * @return error message or null
+	 */
+	public synchronized String start() {
+		if (mIsRunning)
+			return "Reload is already running.";
+
+		mIsRunning = true;
+		Thread thread = new Thread(this::reload, "Dataset Reload");
+		thread.setDaemon(true);
+		thread.start();
+		return null;
+	}
+
+	private void reload() {
+		long millis = System.currentTimeMillis();
+		long headroomBefore = getHeapHeadroom();
+		mStatus = "Reload: started "+new Date(millis)+"; free heap "+(headroomBefore >> 20)+" MB";
+		System.out.println(mStatus);
+
+		InMemoryData oldData = mSearchEngine.getInMemoryData();
+		oldData.startChangeRecording();
+
+		InMemoryData newData = new InMemoryData(mConfig, ++mGeneration);
+		String error = null;
+		if (!newData.load(false))
+			error = "Could not load database content.";
+
+		if (error == null) {
+			ResultBuilder resultBuilder = new ResultBuilder(newData);
+			if (!resultBuilder.initialize(mConfig))
+				error = "Could not initialize result builder.";
+			else
+				error = mSearchEngine.replaceData(newData, resultBuilder);
+		}
+
+		if (error != null) {
+			oldData.stopChangeRecording();
+			newData.close();
+			mStatus = "Reload failed: "+error;
+		}
+		else {
+			mStatus = "Reload: finished "+new Date()+" in "+(System.currentTimeMillis()-millis)+" ms"
+					+"; free heap before "+(headroomBefore >> 20)+" MB, after "+(getHeapHeadroom() >> 20)+" MB";
+		}
+
+		System.out.println(mStatus);
+		mIsRunning = false;
+	}
+
+	/**
+	 * @return bytes, which the heap may still grow by
+	 */
+	private static long getHeapHeadroom() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * @return null or status of the current or most recent reload
+	 */
+	public String getStatus() {
+		return mStatus;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
+import com.actelion.research.chem.descriptor.DescriptorHandlerSkeletonSpheres;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Background job, which calculates FragFp and SkeletonSpheres of all compounds that have a structure,
+ * but no or no decodable descriptors, e.g. because they were inserted into the database by other tools.
+ * Descriptors are calculated in parallel by low priority threads and written to the database
+ * in batches of BATCH_SIZE rows. Without descriptors a compound would not be found by structure searches.
+ */
+public class DescriptorBackfill implements Runnable {
+	private static final int BATCH_SIZE = 500;
+
+	private final CompoundTable mTable;
+	private final DatabaseConnector mConnector;
+	private volatile int mTotalCount,mDoneCount,mFailedCount;
+	private volatile boolean mIsStarted,mIsFinished,mIsStopped;
+	private volatile String mError;
+
+	public static class Descriptors {
+		final CompoundRow row;
+		final byte[] idcode;
+		long[] ffp;
+		String encodedFFP,encodedSkelSpheres;
+
+		Descriptors(CompoundRow row, byte[] idcode) {
+			this.row = row;
+			this.idcode = idcode;
+		}
+	}
+
+	public DescriptorBackfill(CompoundTable table, DatabaseConnector connector) {
+		mTable = table;
+		mConnector = connector;
+	}
+
+	public void start() {
+		Thread thread = new Thread(this, "Descriptor Backfill");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		mIsStarted = true;
+
+		ArrayList<CompoundRow> rowList = new ArrayList<>();
+		for (AlphaNumRow row:mTable.getLiveRowList())
+			if (((CompoundRow)row).isMissingDescriptors())
+				rowList.add((CompoundRow)row);
+
+		mTotalCount = rowList.size();
+		if (rowList.isEmpty()) {
+			mIsFinished = true;
+			return;
+		}
+
+		System.out.println("Calculating missing descriptors of "+rowList.size()+" compounds in the background...");
+
+		Connection connection = mConnector.createConnection();
+		if (connection == null) {
+			mError = "Could not connect to database.";
+			mIsFinished = true;
+			return;
+		}
+
+		int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+
+		try {
+			for (int start=0; start<rowList.size() && !mIsStopped; start+=BATCH_SIZE) {
+				List<CompoundRow> batch = rowList.subList(start, Math.min(start+BATCH_SIZE, rowList.size()));
+				ArrayList<CompletableFuture<Descriptors>> futureList = new ArrayList<>(batch.size());
+				for (CompoundRow row:batch)
+					futureList.add(CompletableFuture.supplyAsync(() -> calculateDescriptors(row), executor));
+
+				ArrayList<Descriptors> descriptorList = new ArrayList<>(batch.size());
+				for (CompletableFuture<Descriptors> future:futureList) {
+					Descriptors descriptors = null;
+					try {
+						descriptors = future.join();
+					}
+					catch (CompletionException e) {}
+					if (descriptors != null)
+						descriptorList.add(descriptors);
+					else
+						mFailedCount++;
+				}
+
+				if (!descriptorList.isEmpty()) {
+					String error = mTable.updateDescriptors(connection, descriptorList);
+					if (error != null) {
+						mError = error;
+						break;
+					}
+				}
+				mDoneCount += descriptorList.size();
+			}
+		}
+		finally {
+			executor.shutdown();
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {}
+			mIsFinished = true;
+		}
+
+		System.out.println(getStatus());
+	}
+
+	/**
+	 * Stops the backfill after the current batch.
+	 */
+	public void stop() {
+		mIsStopped = true;
+	}
+
+	/**
+	 * @param row
+	 * @return descriptors or null, if they could not be calculated
+	 */
+	private Descriptors calculateDescriptors(CompoundRow row) {
+		byte[] idcode = row.getIDCode();
+		if (idcode == null)
+			return null;	// deleted structure
+
+		StereoMolecule mol = new IDCodeParser().getCompactMolecule(idcode, null);
+		if (mol == null)
+			return null;
+
+		Descriptors descriptors = new Descriptors(row, idcode);
+		descriptors.ffp = DescriptorHandlerLongFFP512.getDefaultInstance().createDescriptor(mol);
+		if (DescriptorHandlerLongFFP512.getDefaultInstance().calculationFailed(descriptors.ffp))
+			return null;
+		byte[] skelSpheres = DescriptorHandlerSkeletonSpheres.getDefaultInstance().createDescriptor(mol);
+		if (DescriptorHandlerSkeletonSpheres.getDefaultInstance().calculationFailed(skelSpheres))
+			return null;
+
+		descriptors.encodedFFP = DescriptorHandlerLongFFP512.getDefaultInstance().encode(descriptors.ffp);
+		descriptors.encodedSkelSpheres = DescriptorHandlerSkeletonSpheres.getDefaultInstance().encode(skelSpheres);
+		return descriptors;
+	}
+
+	/**
+	 * @return one line describing progress or result of the backfill
+	 */
+	public String getStatus() {
+		if (!mIsStarted)
+			return "Descriptor backfill: not started";
+		if (!mIsFinished)
+			return "Descriptor backfill: "+mDoneCount+" of "+mTotalCount+" compounds updated"
+					+(mFailedCount == 0 ? "" : ", "+mFailedCount+" failed");
+		return "Descriptor backfill: finished; "+mDoneCount+" of "+mTotalCount+" compounds updated"
+				+(mFailedCount == 0 ? "" : ", "+mFailedCount+" failed")
+				+(mError == null ? "" : "; stopped: "+mError);
+	}
+}
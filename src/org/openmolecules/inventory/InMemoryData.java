@@ -22,17 +22,62 @@ import com.actelion.research.chem.StructureSearchDataSource;
 import com.actelion.research.chem.StructureSearchSpecification;
 import com.actelion.research.chem.descriptor.DescriptorConstants;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+public class InMemoryData implements ConfigurationKeys {
+	private static final long COMPACTION_CHECK_INTERVAL = 60000;
+	private static final float DEFAULT_COMPACTION_THRESHOLD = 0.2f;
+	private static final int DEFAULT_SNAPSHOT_INTERVAL = 60;	// minutes
+	private static final int DEFAULT_LOAD_FETCH_SIZE = 1000;
+	private static final int DEFAULT_WRITE_BEHIND_INTERVAL = 200;	// milliseconds
+	private static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 1000;
 
-public class InMemoryData implements ConfigurationKeys,StructureSearchDataSource {
 	private final Properties mConfig;
+	private final int mGeneration;
+	private final Timer mTimer;
 	private AlphaNumTable mBottleTable;
 	private CompoundTable mCompoundTable;
 	private AlphaNumTable[] mAllTables; // includes mCompoundTable and mBottleTable at the end
 	private int mCompoundForeignKeyIndex;
+	private VersionManager mVersionManager;
+	private StorageBackend mStorage;
+	private SnapshotFile mSnapshot;
+	private Thread mShutdownHook;	// writes the snapshot at shutdown; removed when this data is replaced
+	private DescriptorBackfill mDescriptorBackfill;
+	private StructurePipeline mStructurePipeline;
+	private Restandardizer mRestandardizer;
+	private ChangePoller mChangePoller;
 
 	public InMemoryData(Properties config) {
+		this(config, 0);
+	}
+
+	/**
+	 * @param config
+	 * @param generation 0 for the initial data; incremented with every reload that replaces the previous data
+	 */
+	public InMemoryData(Properties config, int generation) {
 		mConfig = config;
+		mGeneration = generation;
+		mTimer = new Timer(true);
+	}
+
+	public Properties getConfiguration() {
+		return mConfig;
+	}
+
+	public int getGeneration() {
+		return mGeneration;
 	}
 
 	public boolean createTableCreationScript() {
@@ -90,7 +135,33 @@ public class InMemoryData implements ConfigurationKeys,StructureSearchDataSource
 			}
 		}
 
-		mCompoundTable = new CompoundTable("true".equals(mConfig.getProperty(CHECK_NOVELTY)), mConfig.getProperty(AUTO_COMPOUND_ID));
+		StructureArena arena = null;
+		String storage = mConfig.getProperty(STRUCTURE_STORAGE, STRUCTURE_STORAGE_HEAP);
+		if (STRUCTURE_STORAGE_MAPPED.equals(storage)) {
+			String path = mConfig.getProperty(STRUCTURE_STORAGE_FILE);
+			if (path != null && !path.isEmpty() && mGeneration != 0)
+				path = path+"."+mGeneration;	// previous data may still be used by running searches
+			try {
+				arena = new StructureArena(path == null || path.isEmpty() ? null : new File(path));
+			}
+			catch (IOException ioe) {
+				System.out.println("Could not create structure storage file: "+ioe.getMessage());
+				return false;
+			}
+		}
+		else if (!STRUCTURE_STORAGE_HEAP.equals(storage)) {
+			System.out.println("Invalid '"+STRUCTURE_STORAGE+"' in config file: "+storage);
+			return false;
+		}
+
+		String descriptorStorage = mConfig.getProperty(DESCRIPTOR_STORAGE, DESCRIPTOR_STORAGE_COMPACT);
+		if (!DESCRIPTOR_STORAGE_COMPACT.equals(descriptorStorage) && !DESCRIPTOR_STORAGE_EAGER.equals(descriptorStorage)) {
+			System.out.println("Invalid '"+DESCRIPTOR_STORAGE+"' in config file: "+descriptorStorage);
+			return false;
+		}
+
+		mCompoundTable = new CompoundTable("true".equals(mConfig.getProperty(CHECK_NOVELTY)), mConfig.getProperty(AUTO_COMPOUND_ID),
+				arena, DESCRIPTOR_STORAGE_COMPACT.equals(descriptorStorage));
 		if (!mCompoundTable.initialize(compoundDef)) {
 			System.out.println("Could not initialize compound table. Check config!");
 			return false;
@@ -115,6 +186,8 @@ public class InMemoryData implements ConfigurationKeys,StructureSearchDataSource
 			if (!table.validateForeignKeys(mAllTables))
 				return false;
 
+		mVersionManager = new VersionManager(mAllTables);
+
 		mCompoundForeignKeyIndex = -1;
 		for (int i = 0; i<mBottleTable.getForeignKeys().length; i++) {
 			if (mBottleTable.getForeignKeys()[i].getReferencedTable() == mCompoundTable) {
@@ -153,93 +226,507 @@ public class InMemoryData implements ConfigurationKeys,StructureSearchDataSource
 		return mCompoundTable;
 	}
 
-	public CompoundRow getCompoundRow(AlphaNumRow bottleRow) {
-		return (CompoundRow)bottleRow.getReferencedRow(mCompoundForeignKeyIndex);
+	/**
+	 * @return index of the bottle table's foreign key column, which refers to the compound table
+	 */
+	public int getCompoundForeignKeyIndex() {
+		return mCompoundForeignKeyIndex;
+	}
+
+	/**
+	 * Searches must pin the data version once and use it for all row access.
+	 * @return latest committed state of all tables
+	 */
+	public DataVersion pinVersion() {
+		return mVersionManager.getCurrentVersion();
+	}
+
+	/**
+	 * @param dataVersion pinned data version
+	 * @param bottleRow bottle row of the pinned data version
+	 * @return compound row of the pinned data version or null
+	 */
+	public CompoundRow getCompoundRow(DataVersion dataVersion, AlphaNumRow bottleRow) {
+		return (CompoundRow)dataVersion.getReferencedRow(bottleRow, mCompoundForeignKeyIndex);
+	}
+
+	/**
+	 * @param dataVersion pinned data version
+	 * @return structure search view of the bottle table of the given data version
+	 */
+	public StructureSearchDataSource getSearchDataSource(DataVersion dataVersion) {
+		return new SearchDataSource(dataVersion);
 	}
 
 	public boolean load() {
+		return load(true);
+	}
+
+	/**
+	 * @return storage of all tables
+	 */
+	public StorageBackend getStorage() {
+		return mStorage;
+	}
+
+	/**
+	 * Loads all tables and starts background jobs. If 'local_storage' is configured, then tables are
+	 * loaded from and written to a local LogStore and all database related jobs are skipped.
+	 * @param useSnapshot false to load from the database, even if a valid snapshot exists
+	 * @return
+	 */
+	public boolean load(boolean useSnapshot) {
 		if (!initialize())
 			return false;
 
+		String localStoragePath = mConfig.getProperty(LOCAL_STORAGE);
+		if (localStoragePath != null && !localStoragePath.isEmpty()) {
+			String error = LogStore.initialize(new File(localStoragePath), !"false".equals(mConfig.getProperty(LOCAL_STORAGE_SYNC)));
+			if (error != null) {
+				System.out.println(error);
+				return false;
+			}
+			mStorage = LogStore.getInstance();
+			for (AlphaNumTable table:mAllTables)
+				table.setStorage(mStorage);
+			if (!loadTables())
+				return false;
+
+			startBackgroundJobs();
+			return true;
+		}
+
 		DatabaseConnector.setConnectString(mConfig.getProperty(CONNECT_STRING));
 		DatabaseConnector connector = DatabaseConnector.getInstance(mConfig.getProperty(DATABASE_USER), mConfig.getProperty(DATABASE_PASSWORD));
-		for (AlphaNumTable table:mAllTables) {
-			if (!table.loadData(connector)) {
-				System.out.println("Could not load data of table "+table.getName()+".");
+		connector.initializePool(getIntProperty(DB_POOL_MIN_SIZE, DatabaseConnector.DEFAULT_POOL_MIN_SIZE),
+				getIntProperty(DB_POOL_MAX_SIZE, DatabaseConnector.getDefaultPoolMaxSize()),
+				getIntProperty(DB_POOL_TIMEOUT, DatabaseConnector.DEFAULT_POOL_TIMEOUT),
+				getIntProperty(DB_POOL_IDLE_TIMEOUT, DatabaseConnector.DEFAULT_POOL_IDLE_TIMEOUT));
+		mStorage = new JdbcStorage(connector);
+		for (AlphaNumTable table:mAllTables)
+			table.setStorage(mStorage);
+
+		String journalPath = mConfig.getProperty(WRITE_BEHIND_JOURNAL);
+		if (journalPath != null && !journalPath.isEmpty()) {
+			String error = WriteBehindQueue.initialize(new File(journalPath),
+					getIntProperty(WRITE_BEHIND_INTERVAL, DEFAULT_WRITE_BEHIND_INTERVAL),
+					getIntProperty(WRITE_BEHIND_BATCH_SIZE, DEFAULT_WRITE_BEHIND_BATCH_SIZE));
+			if (error != null) {
+				System.out.println(error);
 				return false;
 			}
 		}
-		for (AlphaNumTable table:mAllTables) {
-			if (!table.buildForeignKeyReferences()) {
-				System.out.println("Could not create foreign key references of table "+table.getName()+".");
+
+		int syncInterval = getIntProperty(SYNC_INTERVAL, 0);
+		if (syncInterval > 0) {
+			mChangePoller = new ChangePoller(mAllTables, connector, mConfig.getProperty(SYNC_MODE, SYNC_MODE_PKDIFF),
+					mConfig.getProperty(SYNC_TIMESTAMP_COLUMN), mConfig.getProperty(SYNC_CHANGELOG_TABLE));
+			String error = mChangePoller.initialize();
+			if (error != null) {
+				System.out.println(error);
 				return false;
 			}
 		}
+
+		String snapshotPath = mConfig.getProperty(SNAPSHOT_FILE);
+		if (snapshotPath != null && !snapshotPath.isEmpty())
+			mSnapshot = new SnapshotFile(new File(snapshotPath), mAllTables, mConfig.getProperty(SNAPSHOT_CHANGE_MARKER));
+
+		if (mSnapshot == null || !useSnapshot || !mSnapshot.read(connector)) {
+			if (!loadTables())
+				return false;
+		}
+		else {
+			for (AlphaNumTable table:mAllTables)
+				if (!buildForeignKeyReferences(table))
+					return false;
+		}
+
+		startBackgroundJobs();
+		if (mSnapshot != null)
+			startSnapshotWriter(connector);
+		if (mChangePoller != null) {
+			long millis = 1000L * syncInterval;
+			mTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {	// an exception would cancel the timer and all its tasks
+						mChangePoller.poll();
+					}
+					catch (Throwable t) {
+						System.out.println("Database sync failed: "+t);
+					}
+				}
+			}, millis, millis);
+		}
+		if (!"false".equals(mConfig.getProperty(DESCRIPTOR_BACKFILL))) {
+			mDescriptorBackfill = new DescriptorBackfill(mCompoundTable, connector);
+			mDescriptorBackfill.start();
+		}
 		return true;
 	}
 
-	@Override
-	public int getRowCount() {
-		return mBottleTable.getRowCount();
+	/**
+	 * Starts structure processing and memory compaction, which are needed with any storage.
+	 */
+	private void startBackgroundJobs() {
+		StructureCache.getInstance().initialize(mConfig);
+		int workerCount = getIntProperty(PIPELINE_WORKERS, Runtime.getRuntime().availableProcessors());
+		mStructurePipeline = new StructurePipeline(workerCount);
+		mCompoundTable.setStructurePipeline(mStructurePipeline);
+
+		startCompactor();
 	}
 
-	@Override
-	public int getStructureCount(int row) {
-		return 1;
+	/**
+	 * Stops all background jobs after this data was replaced by a reload. The data itself stays
+	 * accessible for searches, which were started before the replacement.
+	 */
+	public void close() {
+		mTimer.cancel();
+		if (mShutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(mShutdownHook);
+			}
+			catch (IllegalStateException ise) {}	// shutdown in progress
+			mShutdownHook = null;
+		}
+		if (mSnapshot != null)
+			mSnapshot.close();
+		if (mDescriptorBackfill != null)
+			mDescriptorBackfill.stop();
+		synchronized (this) {
+			if (mRestandardizer != null)
+				mRestandardizer.stop();
+		}
+		if (mStructurePipeline != null)
+			mStructurePipeline.shutdown();
+		StructureArena arena = (mCompoundTable == null) ? null : mCompoundTable.getArena();
+		if (arena != null) {
+			arena.close();    // mapped segments stay readable until garbage collected
+			arena.getFile().delete();
+		}
 	}
 
-	@Override
-	public int getDescriptorColumn(String descriptorShortName) {
-		return DescriptorConstants.DESCRIPTOR_FFP512.shortName.equals(descriptorShortName) ? 0
-			 : DescriptorConstants.DESCRIPTOR_SkeletonSpheres.shortName.equals(descriptorShortName) ? 1 : -1;
+	/**
+	 * Starts recording primary keys of rows, which are inserted, updated or deleted by clients of this server.
+	 */
+	public void startChangeRecording() {
+		for (AlphaNumTable table:mAllTables)
+			table.startChangeRecording();
 	}
 
-	@Override
-	public Object getDescriptor(int column, int row, int i, boolean largestFragmentOnly) {
-		CompoundRow compoundRow = getCompoundRow(mBottleTable.getRow(row));
-		return (compoundRow == null) ? null
-				: (column == 0) ? (largestFragmentOnly ? null : compoundRow.getFFP())
-				: (column == 1) ? (largestFragmentOnly ? null : compoundRow.getSkelSpheres())
-				: null;
+	/**
+	 * Stops recording changes, e.g. because a reload failed.
+	 */
+	public void stopChangeRecording() {
+		for (AlphaNumTable table:mAllTables)
+			table.stopChangeRecording();
 	}
 
-	@Override
-	public byte[] getIDCode(int row, int i, boolean largestFragmentOnly) {
-		CompoundRow compoundRow = getCompoundRow(mBottleTable.getRow(row));
-		return (compoundRow == null) ? null : largestFragmentOnly ? null : compoundRow.getIDCode();
+	/**
+	 * Applies all changes recorded by source to this data by reading the current row
+	 * content from storage. Stops the recording of source.
+	 * @param source previous data with the same configuration
+	 * @return number of applied changes or -1, if storage could not be accessed
+	 */
+	public int applyRecordedChanges(InMemoryData source) {
+		int[][] changedKeys = new int[mAllTables.length][];
+		int changeCount = 0;
+		for (int i=0; i<mAllTables.length; i++) {
+			changedKeys[i] = source.mAllTables[i].stopChangeRecording();
+			changeCount += changedKeys[i].length;
+		}
+		if (changeCount == 0)
+			return 0;
+
+		ArrayList<ArrayList<String[]>> changedRows = new ArrayList<>(mAllTables.length);
+		for (int i=0; i<mAllTables.length; i++) {
+			ArrayList<String[]> rowList = mStorage.selectRows(mAllTables[i], changedKeys[i]);
+			if (rowList == null)
+				return -1;
+			changedRows.add(rowList);
+		}
+
+		IntIntMap[] foundKeys = new IntIntMap[mAllTables.length];
+		for (int i=0; i<mAllTables.length; i++) {    // referenced tables first
+			foundKeys[i] = new IntIntMap();
+			for (String[] value:changedRows.get(i))
+				if (mAllTables[i].syncRow(value))
+					foundKeys[i].put(AlphaNumTable.parseKey(value[mAllTables[i].getPrimaryKeyColumn()]), 0);
+		}
+		for (int i=mAllTables.length-1; i>=0; i--)    // referencing tables first
+			for (int key:changedKeys[i])
+				if (!foundKeys[i].containsKey(key) && mAllTables[i].getRowByPrimaryKey(key) != null)
+					mAllTables[i].syncDelete(key);
+		return changeCount;
+	}
+
+	/**
+	 * @return null or result of the most recent synchronization with database changes of other clients
+	 */
+	public String getChangeSyncStatus() {
+		return mChangePoller == null ? null : mChangePoller.getStatus();
+	}
+
+	/**
+	 * @return null or status of the background calculation of missing descriptors
+	 */
+	public String getDescriptorBackfillStatus() {
+		return mDescriptorBackfill == null ? null : mDescriptorBackfill.getStatus();
+	}
+
+	/**
+	 * Starts standardizing all compound structures again in the background.
+	 * @param modificationLock lock to hold while writing changed compounds
+	 * @return null or error message
+	 */
+	public synchronized String startRestandardization(Lock modificationLock) {
+		if (mStructurePipeline == null)
+			return "Data is not loaded.";
+		if (mRestandardizer != null && mRestandardizer.isRunning())
+			return "Re-standardization is already running.";
+		mRestandardizer = new Restandardizer(mCompoundTable, mStructurePipeline, modificationLock);
+		mRestandardizer.start();
+		return null;
+	}
+
+	/**
+	 * @return null or status of the most recent re-standardization of all compounds
+	 */
+	public synchronized String getRestandardizationStatus() {
+		return mRestandardizer == null ? null : mRestandardizer.getStatus();
+	}
+
+	/**
+	 * Loads all tables simultaneously from storage, e.g. each on its own database connection. Fetched rows
+	 * are decoded by a shared thread pool with one thread per core. Foreign key references of a table are built
+	 * as soon as the table itself and all tables it refers to are loaded.
+	 * @return true if all tables were loaded and all references resolved
+	 */
+	private boolean loadTables() {
+		final int fetchSize = getIntProperty(LOAD_FETCH_SIZE, DEFAULT_LOAD_FETCH_SIZE);
+		final int pageSize = getIntProperty(LOAD_PAGE_SIZE, 0);
+
+		long millis = System.currentTimeMillis();
+		final ExecutorService tableExecutor = Executors.newFixedThreadPool(mAllTables.length);
+		final ExecutorService decodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			HashMap<AlphaNumTable,CompletableFuture<Boolean>> loadMap = new HashMap<>();
+			for (final AlphaNumTable table:mAllTables)
+				loadMap.put(table, CompletableFuture.supplyAsync(() -> loadTable(table, decodeExecutor, fetchSize, pageSize), tableExecutor));
+
+			ArrayList<CompletableFuture<Boolean>> referenceList = new ArrayList<>();
+			for (final AlphaNumTable table:mAllTables) {
+				final ArrayList<CompletableFuture<Boolean>> dependencyList = new ArrayList<>();
+				dependencyList.add(loadMap.get(table));
+				for (ForeignKey foreignKey:table.getForeignKeys())
+					dependencyList.add(loadMap.get(foreignKey.getReferencedTable()));
+
+				referenceList.add(CompletableFuture.allOf(dependencyList.toArray(new CompletableFuture<?>[0])).thenApplyAsync(v -> {
+					for (CompletableFuture<Boolean> dependency:dependencyList)
+						if (!dependency.join())
+							return false;
+					return buildForeignKeyReferences(table);
+				}, tableExecutor));
+			}
+
+			boolean success = true;
+			for (CompletableFuture<Boolean> reference:referenceList)
+				success &= reference.join();
+
+			if (success)
+				System.out.println("Loaded all tables in "+(System.currentTimeMillis()-millis)+" ms");
+			return success;
+		}
+		finally {
+			decodeExecutor.shutdown();
+			tableExecutor.shutdown();
+		}
 	}
 
-	@Override
-	public long getNoStereoCode(int row, int i, boolean largestFragmentOnly) {
-		return SEARCH_TYPE_NOT_SUPPORTED;
+	private boolean loadTable(AlphaNumTable table, ExecutorService decodeExecutor, int fetchSize, int pageSize) {
+		if (!mStorage.loadTable(table, decodeExecutor, fetchSize, pageSize)) {
+			System.out.println("Could not load data of table "+table.getName()+".");
+			return false;
+		}
+		return true;
 	}
 
-	@Override
-	public long getTautomerCode(int row, int i, boolean largestFragmentOnly) {
-		return SEARCH_TYPE_NOT_SUPPORTED;
+	private boolean buildForeignKeyReferences(AlphaNumTable table) {
+		if (!table.buildForeignKeyReferences()) {
+			System.out.println("Could not create foreign key references of table "+table.getName()+".");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Lets every table modification and every memory commit invalidate the snapshot and writes a new snapshot
+	 * every 'snapshot_interval' minutes and at shutdown, if tables were modified.
+	 */
+	private void startSnapshotWriter(final DatabaseConnector connector) {
+		for (AlphaNumTable table:mAllTables)
+			table.setModificationListener(mSnapshot::invalidate);
+		mVersionManager.setCommitListener(mSnapshot::invalidate);
+
+		int interval = getIntProperty(SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL);
+		if (interval > 0) {
+			long millis = 60000L * interval;
+			mTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						if (mSnapshot.isModified())
+							mSnapshot.write(connector);
+					}
+					catch (Throwable t) {
+						System.out.println("Could not write snapshot: "+t);
+					}
+				}
+			}, millis, millis);
+		}
+
+		mShutdownHook = new Thread(() -> {
+			if (mSnapshot.isModified())
+				mSnapshot.write(connector);
+		});
+		Runtime.getRuntime().addShutdownHook(mShutdownHook);
 	}
 
-	@Override
-	public long getNoStereoTautomerCode(int row, int i, boolean largestFragmentOnly) {
-		return SEARCH_TYPE_NOT_SUPPORTED;
+	/**
+	 * Starts a background job, which periodically rebuilds dense row storage of those tables,
+	 * where the fraction of deleted row slots exceeds the configured 'compaction_threshold'.
+	 * It also lets rows, which reference replaced row versions, reference the current versions,
+	 * and compacts the structure arena, if the same fraction of it is occupied by unused records.
+	 */
+	private void startCompactor() {
+		float threshold = DEFAULT_COMPACTION_THRESHOLD;
+		String value = mConfig.getProperty(COMPACTION_THRESHOLD);
+		if (value != null) {
+			try {
+				threshold = Float.parseFloat(value);
+			}
+			catch (NumberFormatException nfe) {
+				System.out.println("'"+COMPACTION_THRESHOLD+"' is not numerical. Using default.");
+			}
+		}
+
+		final float compactionThreshold = threshold;
+		mTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					for (AlphaNumTable table:mAllTables) {    // referenced tables first
+						if (table.hasOutdatedReferences())
+							table.updateOutdatedReferences();
+						if (table.getFragmentation() > compactionThreshold)
+							table.compact();
+						if (table == mCompoundTable)
+							mCompoundTable.compactArena(compactionThreshold);
+					}
+				}
+				catch (Throwable t) {
+					System.out.println("Compaction failed: "+t);
+				}
+			}
+		}, COMPACTION_CHECK_INTERVAL, COMPACTION_CHECK_INTERVAL);
 	}
 
-	@Override
-	public long getBackboneCode(int row, int i, boolean largestFragmentOnly) {
-		return SEARCH_TYPE_NOT_SUPPORTED;
+	private int getIntProperty(String key, int defaultValue) {
+		String value = mConfig.getProperty(key);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException nfe) {
+				System.out.println("'"+key+"' is not an integer. Using default.");
+			}
+		}
+		return defaultValue;
 	}
 
-	@Override
-	public boolean isSupportedSearchType(StructureSearchSpecification specification) {
-		return specification.isNoStructureSearch()
-				|| specification.isSubstructureSearch()
-				|| (specification.isSimilaritySearch()
-				&& !specification.isLargestFragmentOnly()
-				&& DescriptorConstants.DESCRIPTOR_FFP512.shortName.equals(specification.getDescriptorShortName()))
-				|| (specification.isSimilaritySearch()
-				&& !specification.isLargestFragmentOnly()
-				&& DescriptorConstants.DESCRIPTOR_SkeletonSpheres.shortName.equals(specification.getDescriptorShortName()))
-				|| (specification.isExactSearch()
-				&& !specification.isLargestFragmentOnly());
+	/**
+	 * Provides the structures of all bottle rows of one pinned DataVersion to StructureSearch.
+	 * Row indexes are bottle table row slots.
+	 */
+	private class SearchDataSource implements StructureSearchDataSource {
+		private final DataVersion mDataVersion;
+		private final TableVersion mBottleVersion;
+
+		private SearchDataSource(DataVersion dataVersion) {
+			mDataVersion = dataVersion;
+			mBottleVersion = dataVersion.getTableVersion(mBottleTable);
+		}
+
+		/**
+		 * @return number of bottle table row slots, which includes slots of deleted rows
+		 */
+		@Override
+		public int getRowCount() {
+			return mBottleVersion.getSlotCount();
+		}
+
+		@Override
+		public int getStructureCount(int row) {
+			return 1;
+		}
+
+		@Override
+		public int getDescriptorColumn(String descriptorShortName) {
+			return DescriptorConstants.DESCRIPTOR_FFP512.shortName.equals(descriptorShortName) ? 0
+				 : DescriptorConstants.DESCRIPTOR_SkeletonSpheres.shortName.equals(descriptorShortName) ? 1 : -1;
+		}
+
+		@Override
+		public Object getDescriptor(int column, int row, int i, boolean largestFragmentOnly) {
+			AlphaNumRow bottleRow = mBottleVersion.getRow(row);
+			CompoundRow compoundRow = (bottleRow == null) ? null : getCompoundRow(mDataVersion, bottleRow);
+			return (compoundRow == null) ? null
+					: (column == 0) ? (largestFragmentOnly ? null : compoundRow.getFFP())
+					: (column == 1) ? (largestFragmentOnly ? null : compoundRow.getSkelSpheres())
+					: null;
+		}
+
+		@Override
+		public byte[] getIDCode(int row, int i, boolean largestFragmentOnly) {
+			AlphaNumRow bottleRow = mBottleVersion.getRow(row);
+			CompoundRow compoundRow = (bottleRow == null) ? null : getCompoundRow(mDataVersion, bottleRow);
+			return (compoundRow == null) ? null : largestFragmentOnly ? null : compoundRow.getIDCode();
+		}
+
+		@Override
+		public long getNoStereoCode(int row, int i, boolean largestFragmentOnly) {
+			return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+		@Override
+		public long getTautomerCode(int row, int i, boolean largestFragmentOnly) {
+			return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+		@Override
+		public long getNoStereoTautomerCode(int row, int i, boolean largestFragmentOnly) {
+			return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+		@Override
+		public long getBackboneCode(int row, int i, boolean largestFragmentOnly) {
+			return SEARCH_TYPE_NOT_SUPPORTED;
+		}
+
+		@Override
+		public boolean isSupportedSearchType(StructureSearchSpecification specification) {
+			return specification.isNoStructureSearch()
+					|| specification.isSubstructureSearch()
+					|| (specification.isSimilaritySearch()
+					&& !specification.isLargestFragmentOnly()
+					&& DescriptorConstants.DESCRIPTOR_FFP512.shortName.equals(specification.getDescriptorShortName()))
+					|| (specification.isSimilaritySearch()
+					&& !specification.isLargestFragmentOnly()
+					&& DescriptorConstants.DESCRIPTOR_SkeletonSpheres.shortName.equals(specification.getDescriptorShortName()))
+					|| (specification.isExactSearch()
+					&& !specification.isLargestFragmentOnly());
+		}
 	}
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with primitive int keys and int values using linear probing.
+ * Used to map integer primary keys to row indexes without boxing and without
+ * the O(log n) comparisons of a TreeMap. Negative values are not allowed as values,
+ * because get() returns NO_VALUE (-1) for missing keys.
+ */
+public class IntIntMap {
+	public static final int NO_VALUE = -1;
+
+	private static final int FREE_KEY = 0;
+	private static final float LOAD_FACTOR = 0.5f;
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] mKey,mValue;
+	private int mSize,mMask,mResizeLimit;
+	private boolean mHasFreeKey;
+	private int mFreeKeyValue;
+
+	public IntIntMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries the map can hold without resizing
+	 */
+	public IntIntMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	private static int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * LOAD_FACTOR < size)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		mKey = new int[capacity];
+		mValue = new int[capacity];
+		mMask = capacity - 1;
+		mResizeLimit = (int)(capacity * LOAD_FACTOR);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != NO_VALUE;
+	}
+
+	/**
+	 * @param key
+	 * @return value associated with key or NO_VALUE, if the key is not in the map
+	 */
+	public int get(int key) {
+		if (key == FREE_KEY)
+			return mHasFreeKey ? mFreeKeyValue : NO_VALUE;
+
+		int index = hash(key) & mMask;
+		while (true) {
+			int k = mKey[index];
+			if (k == key)
+				return mValue[index];
+			if (k == FREE_KEY)
+				return NO_VALUE;
+			index = (index + 1) & mMask;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value must not be negative
+	 * @return previous value associated with key or NO_VALUE
+	 */
+	public int put(int key, int value) {
+		if (key == FREE_KEY) {
+			int previous = mHasFreeKey ? mFreeKeyValue : NO_VALUE;
+			if (!mHasFreeKey)
+				mSize++;
+			mHasFreeKey = true;
+			mFreeKeyValue = value;
+			return previous;
+		}
+
+		int index = hash(key) & mMask;
+		while (true) {
+			int k = mKey[index];
+			if (k == key) {
+				int previous = mValue[index];
+				mValue[index] = value;
+				return previous;
+			}
+			if (k == FREE_KEY) {
+				mKey[index] = key;
+				mValue[index] = value;
+				if (++mSize > mResizeLimit)
+					rehash(mKey.length << 1);
+				return NO_VALUE;
+			}
+			index = (index + 1) & mMask;
+		}
+	}
+
+	/**
+	 * Removes the key and closes the gap by shifting back following entries of the same probe chain.
+	 * @param key
+	 * @return previous value associated with key or NO_VALUE
+	 */
+	public int remove(int key) {
+		if (key == FREE_KEY) {
+			if (!mHasFreeKey)
+				return NO_VALUE;
+			mHasFreeKey = false;
+			mSize--;
+			return mFreeKeyValue;
+		}
+
+		int index = hash(key) & mMask;
+		while (true) {
+			int k = mKey[index];
+			if (k == FREE_KEY)
+				return NO_VALUE;
+			if (k == key)
+				break;
+			index = (index + 1) & mMask;
+		}
+
+		int previous = mValue[index];
+		mSize--;
+
+		int gap = index;
+		index = (index + 1) & mMask;
+		while (mKey[index] != FREE_KEY) {
+			int home = hash(mKey[index]) & mMask;
+			// move the entry into the gap, if its home slot is not between gap (exclusive) and index (inclusive)
+			if (((index - home) & mMask) >= ((index - gap) & mMask)) {
+				mKey[gap] = mKey[index];
+				mValue[gap] = mValue[index];
+				gap = index;
+			}
+			index = (index + 1) & mMask;
+		}
+		mKey[gap] = FREE_KEY;
+		return previous;
+	}
+
+	/**
+	 * @return all keys in no particular order
+	 */
+	public int[] getKeys() {
+		int[] keys = new int[mSize];
+		int count = 0;
+		if (mHasFreeKey)
+			keys[count++] = FREE_KEY;
+		for (int key:mKey)
+			if (key != FREE_KEY)
+				keys[count++] = key;
+		return keys;
+	}
+
+	public void clear() {
+		Arrays.fill(mKey, FREE_KEY);
+		mHasFreeKey = false;
+		mSize = 0;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKey = mKey;
+		int[] oldValue = mValue;
+		allocate(capacity);
+		for (int i=0; i<oldKey.length; i++) {
+			int key = oldKey[i];
+			if (key != FREE_KEY) {
+				int index = hash(key) & mMask;
+				while (mKey[index] != FREE_KEY)
+					index = (index + 1) & mMask;
+				mKey[index] = key;
+				mValue[index] = oldValue[i];
+			}
+		}
+	}
+}
@@ -27,82 +27,215 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class InventorySearchEngine implements ConfigurationKeys,InventoryServerConstants {
 	private static final int MAX_SSS_MATCHES = Integer.MAX_VALUE;		// no limit
 	private static final int MAX_NON_SSS_MATCHES = Integer.MAX_VALUE;	// no limit
 
 	private static final int MAX_ATOMS = 256;
+	private static final int MAX_LISTED_IMPORTS = 16;
 
 	private static final int RESULT_STRUCTURE_COLUMNS = 3;
 	private static final int RESULT_COLUMN_IDCODE = 0;
 	private static final int RESULT_COLUMN_COORDS2D = 1;
 	private static final int RESULT_COLUMN_FFP512 = 2;
 
-	private InMemoryData mData;
-	private ResultBuilder mResultBuilder;
-	private TreeMap<String,QueryColumn> mQueryColumnMap;
+	private volatile Dataset mDataset;
+	private final ReentrantReadWriteLock mModificationLock;
+	private DatasetReloader mReloader;
+	private final ArrayList<BulkImporter> mImporterList;
 	private byte[] mTemplate;
 
+	/**
+	 * Tables, result builder and query columns, which are replaced together when the data is reloaded.
+	 * Searches take the current Dataset when they start and finish on it, even if it is replaced meanwhile.
+	 */
+	private static class Dataset {
+		final InMemoryData data;
+		final ResultBuilder resultBuilder;
+		final TreeMap<String,QueryColumn> queryColumnMap;
+
+		Dataset(InMemoryData data, ResultBuilder resultBuilder) {
+			this.data = data;
+			this.resultBuilder = resultBuilder;
+			this.queryColumnMap = compileQueryColumns(data);
+			}
+		}
+
 	public InventorySearchEngine(InMemoryData data, ResultBuilder resultBuilder) {
-		mData = data;
-		mResultBuilder = resultBuilder;
-		compileQueryColumns();
+		mDataset = new Dataset(data, resultBuilder);
+		mModificationLock = new ReentrantReadWriteLock();
+		mImporterList = new ArrayList<>();
+		}
+
+	public void setReloader(DatasetReloader reloader) {
+		mReloader = reloader;
+		}
+
+	public DatasetReloader getReloader() {
+		return mReloader;
+		}
+
+	/**
+	 * Must be called before inserting, updating or deleting rows, and before getting the table to be changed.
+	 * Modifications may run concurrently, but not while the data is being replaced.
+	 */
+	public void beginModification() {
+		mModificationLock.readLock().lock();
+		}
+
+	public void endModification() {
+		mModificationLock.readLock().unlock();
+		}
+
+	/**
+	 * Replaces tables and result builder by freshly loaded ones. Rows, which were changed in the old tables
+	 * since newData was loaded, are fetched again from the database before the new data becomes visible.
+	 * Modifications are blocked while doing so. Searches running on the old data finish unaffected.
+	 * Afterwards, the old data is closed.
+	 * @param newData loaded data, after the old data's startChangeRecording() had been called
+	 * @param resultBuilder initialized result builder for newData
+	 * @return error message or null
+	 */
+	public String replaceData(InMemoryData newData, ResultBuilder resultBuilder) {
+		Dataset newDataset = new Dataset(newData, resultBuilder);
+		InMemoryData oldData;
+		mModificationLock.writeLock().lock();
+		try {
+			oldData = mDataset.data;
+			WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+			if (writeBehindQueue != null && !writeBehindQueue.flush(true))	// recorded changes are fetched from the database
+				return WriteBehindQueue.ERROR_NOT_FLUSHED;
+			if (newData.applyRecordedChanges(oldData) == -1)
+				return "Could not apply changes made during reload.";
+			mDataset = newDataset;
+			}
+		finally {
+			mModificationLock.writeLock().unlock();
+			}
+
+		oldData.close();
+		return null;
 		}
 
 	public String getSummary() {
+		InMemoryData data = mDataset.data;
 		StringBuilder status = new StringBuilder(InventoryServer.getVersion());
 		status.append('\n');
 		status.append("Launched ").append(InventoryServer.getLaunchDate()).append(" on host '").append(InventoryServer.getHostName()).append("'\n");
-		status.append(mData.getCompoundTable().getRowCount()).append(" ").append(mData.getCompoundTable().getName()).append("s");
-		status.append(", ").append(mData.getBottleTable().getRowCount()).append(" ").append(mData.getBottleTable().getName()).append("s");
-		for (AlphaNumTable table:mData.getTables())
-			if (table != mData.getCompoundTable() && table != mData.getBottleTable())
+		status.append(data.getCompoundTable().getRowCount()).append(" ").append(data.getCompoundTable().getName()).append("s");
+		status.append(" (").append(data.getCompoundTable().getStructureCount()).append(" distinct structures)");
+		status.append(", ").append(data.getBottleTable().getRowCount()).append(" ").append(data.getBottleTable().getName()).append("s");
+		for (AlphaNumTable table:data.getTables())
+			if (table != data.getCompoundTable() && table != data.getBottleTable())
 				status.append(", ").append(table.getRowCount()).append(" ").append(table.getName()).append("s");
 		status.append('\n');
+		String syncStatus = data.getChangeSyncStatus();
+		if (syncStatus != null)
+			status.append(syncStatus).append('\n');
+		String backfillStatus = data.getDescriptorBackfillStatus();
+		if (backfillStatus != null)
+			status.append(backfillStatus).append('\n');
+		String restandardizationStatus = data.getRestandardizationStatus();
+		if (restandardizationStatus != null)
+			status.append(restandardizationStatus).append('\n');
+		if (mReloader != null && mReloader.getStatus() != null)
+			status.append(mReloader.getStatus()).append('\n');
+		WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+		if (writeBehindQueue != null) {
+			status.append("Write-behind: ").append(writeBehindQueue.getQueuedCount()).append(" updates queued\n");
+			if (writeBehindQueue.getStatus() != null)
+				status.append(writeBehindQueue.getStatus()).append('\n');
+			}
+		status.append(StructureCache.getInstance().getStatus()).append('\n');
+		String storageStatus = data.getStorage() == null ? null : data.getStorage().getStatus();
+		if (storageStatus != null)
+			status.append(storageStatus).append('\n');
+		status.append(getImportStatus(true));
 		return status.toString();
 		}
 
 	public String getTableSpecification() {
 		StringBuilder erm = new StringBuilder();
-		for (AlphaNumTable table:mData.getTables()) {
+		for (AlphaNumTable table:mDataset.data.getTables()) {
 			erm.append(table.getSpecification());
 			erm.append('\n');
 			}
 		return erm.toString();
 		}
 
+	/**
+	 * Starts standardizing all compound structures of the current data again in the background.
+	 * Changed compounds are written like other modifications, i.e. not while the data is being replaced.
+	 * @return null or error message
+	 */
+	public String startRestandardization() {
+		return mDataset.data.startRestandardization(mModificationLock.readLock());
+		}
+
+	/**
+	 * Creates a bulk import, which inserts every batch into the data, which is current at that time.
+	 * The import is listed by getImportStatus() until MAX_LISTED_IMPORTS newer imports were created.
+	 * @param format
+	 * @return new importer, which still needs to be initialized
+	 */
+	public BulkImporter createImporter(String format) {
+		BulkImporter importer = new BulkImporter(() -> mDataset.data, mModificationLock.readLock(), format);
+		synchronized (mImporterList) {
+			mImporterList.add(importer);
+			if (mImporterList.size() > MAX_LISTED_IMPORTS)
+				mImporterList.remove(0);
+			}
+		return importer;
+		}
+
+	/**
+	 * @param runningOnly whether to skip finished imports
+	 * @return one line per bulk import with its ID and progress or result; empty if there are none
+	 */
+	public String getImportStatus(boolean runningOnly) {
+		StringBuilder status = new StringBuilder();
+		synchronized (mImporterList) {
+			for (BulkImporter importer:mImporterList)
+				if (runningOnly ? importer.isRunning() : importer.isStarted())
+					status.append("Bulk import ").append(importer.getStatus()).append('\n');
+			}
+		return status.toString();
+		}
+
 	public InMemoryData getInMemoryData() {
-		return mData;
+		return mDataset.data;
 		}
 
-	private void compileQueryColumns() {
-		mQueryColumnMap = new TreeMap<>();
-		for (AlphaNumTable table: mData.getTables()) {
+	private static TreeMap<String,QueryColumn> compileQueryColumns(InMemoryData data) {
+		TreeMap<String,QueryColumn> queryColumnMap = new TreeMap<>();
+		for (AlphaNumTable table: data.getTables()) {
 			for (int column=0; column<table.getColumnCount(); column++) {
 				int type = table.getColumnType(column);
 				if (type == ConfigurationKeys.COLUMN_TYPE_NUM
 				 || type == ConfigurationKeys.COLUMN_TYPE_ID
 				 || type == ConfigurationKeys.COLUMN_TYPE_TEXT) {
 					String key = table.getAliasName()+"."+table.getColumnName(column);
-					mQueryColumnMap.put(key, new QueryColumn(table, column, type));
+					queryColumnMap.put(key, new QueryColumn(table, column, type));
 				}
 			}
 		}
+		return queryColumnMap;
 	}
 
 	/**
 	 * @return array of all query column names in the form '<table-alias>.<column-name>'
 	 */
 	public String[] getQueryColumnNames() {
-		return mQueryColumnMap.keySet().toArray(new String[0]);
+		return mDataset.queryColumnMap.keySet().toArray(new String[0]);
 	}
 
 	/**
 	 * @return Collection of all query columns (queryable database columns)
 	 */
 	public Collection<QueryColumn> getQueryColumns() {
-		return mQueryColumnMap.values();
+		return mDataset.queryColumnMap.values();
 	}
 
 	public byte[][][] getMatchingRowsAsBytes(TreeMap<String,Object> query) throws SearchEngineException {
@@ -126,12 +259,13 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 		ArrayList<QueryColumn> queryColumns = new ArrayList<>();
 		ArrayList<String> queryCriterions = new ArrayList<>();
 
-		AlphaNumTable table = mData.getTable((String)query.get(PARAMETER_TABLE));
+		Dataset dataset = mDataset;
+		AlphaNumTable table = dataset.data.getTable((String)query.get(PARAMETER_TABLE));
 
-		for (String key:mQueryColumnMap.keySet()) {
+		for (String key:dataset.queryColumnMap.keySet()) {
 			String value = (String)query.get(key);
 			if (value != null && value.length() != 0) {
-				queryColumns.add(mQueryColumnMap.get(key));
+				queryColumns.add(dataset.queryColumnMap.get(key));
 				queryCriterions.add(value);
 			}
 		}
@@ -153,7 +287,7 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 		// default is true (unless the query was built from URL parameters)
 		boolean includeStructureColumns = !"false".equals(query.get(PARAMETER_WITH_STRUCTURE));
 
-		return new SearchTask(table, ssSpec, includeStructureColumns, maxRows,
+		return new SearchTask(dataset, table, ssSpec, includeStructureColumns, maxRows,
 				queryColumns.toArray(new QueryColumn[0]), queryCriterions.toArray(new String[0]));
 		}
 
@@ -162,6 +296,10 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 	}
 
 	private class SearchTask implements StructureSearchController {
+		private final InMemoryData mData;
+		private final ResultBuilder mResultBuilder;
+		private final DataVersion mDataVersion;
+		private final TableVersion mSearchedTableVersion;
 		private StructureSearchSpecification mSSSpec;
 		private AlphaNumTable mSearchedSingleTable;   // in case of alphanumerical search on one table only
 		private boolean mIncludeStructureColumns;
@@ -175,16 +313,21 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 
 		/**
 		 * This constructs a standard structure search task on the joined tables with predefined result structure
+		 * @param dataset data to be searched, even if it is replaced or changed while searching
 		 * @param searchedSingleTable null, if using a standard structure search on the predefined result structure
 		 * @param structureSearchSpec null, if search is alphanumerical on a single table
 		 * @param maxRows
 		 * @param queryColumn
 		 * @param queryCriteria
 		 */
-		public SearchTask(AlphaNumTable searchedSingleTable, StructureSearchSpecification structureSearchSpec,
+		public SearchTask(Dataset dataset, AlphaNumTable searchedSingleTable, StructureSearchSpecification structureSearchSpec,
 		                  boolean includeStructureColumns, int maxRows, QueryColumn[] queryColumn, String[] queryCriteria) {
+			mData = dataset.data;
+			mResultBuilder = dataset.resultBuilder;
+			mDataVersion = mData.pinVersion();
 			mSSSpec = structureSearchSpec;
 			mSearchedSingleTable = searchedSingleTable;
+			mSearchedTableVersion = mDataVersion.getTableVersion(getSearchedTable());
 			mIncludeStructureColumns = includeStructureColumns;
 			mMaxRows = maxRows;
 			mQueryCriterion = queryCriteria;
@@ -250,21 +393,26 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 			mQueryText[criterionIndex] = criterion.getBytes();
 		}
 
+		private AlphaNumTable getSearchedTable() {
+			return mSearchedSingleTable != null ? mSearchedSingleTable : mData.getBottleTable();
+		}
+
 		@Override
 		public boolean rowQualifies(int row) {
-			AlphaNumTable table = mSearchedSingleTable != null ? mSearchedSingleTable : mData.getBottleTable();
-			AlphaNumRow bottleRow = table.getRow(row);
+			AlphaNumRow bottleRow = mSearchedTableVersion.getRow(row);
+			if (bottleRow == null)	// empty slot of deleted row
+				return false;
 			for (int i=0; i<mQueryCriterion.length; i++) {
 				if (mQueryColumnType[i] == COLUMN_TYPE_NUM) {
 					float value = (mForeignKeyIndex[i] == -1) ? bottleRow.getFloat(mQueryColumnIndex[i])
-							: bottleRow.getReferencedRow(mForeignKeyIndex[i]).getFloat(mQueryColumnIndex[i]);
+							: mDataVersion.getReferencedRow(bottleRow, mForeignKeyIndex[i]).getFloat(mQueryColumnIndex[i]);
 					if (Float.isNaN(value) || value < mQueryLow[i] || value > mQueryHigh[i])
 						return false;
 				}
 				else if (mQueryColumnType[i] == COLUMN_TYPE_TEXT
 					  || mQueryColumnType[i] == COLUMN_TYPE_ID) {
 					byte[] value = (mForeignKeyIndex[i] == -1) ? bottleRow.getData(mQueryColumnIndex[i])
-							: bottleRow.getReferencedRow(mForeignKeyIndex[i]).getData(mQueryColumnIndex[i]);
+							: mDataVersion.getReferencedRow(bottleRow, mForeignKeyIndex[i]).getData(mQueryColumnIndex[i]);
 					boolean match = false;
 					if (value != null) {
 						for (int j=0; j<value.length-mQueryText[i].length+1; j++) {
@@ -294,9 +442,9 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 		 * @return
 		 */
 		private int[] getSingleTableMatchingRowIndexes() {
-			int[] hitIndex = new int[mSearchedSingleTable.getRowCount()];
+			int[] hitIndex = new int[mSearchedTableVersion.getSlotCount()];
 			int count = 0;
-			for (int i = 0; i<mSearchedSingleTable.getRowCount() && count<mMaxRows; i++)
+			for (int i = 0; i<hitIndex.length && count<mMaxRows; i++)
 			    if (rowQualifies(i))
 					hitIndex[count++] = i;
 
@@ -305,7 +453,7 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 
 		public byte[][][] getMatchingRowBytes() throws SearchEngineException {
 			if (mSSSpec != null) {
-				StructureSearch search = new StructureSearch(mSSSpec, mData, this, null, null);
+				StructureSearch search = new StructureSearch(mSSSpec, mData.getSearchDataSource(mDataVersion), this, null, null);
 				search.setMatchLimit(Math.min(mMaxRows, MAX_SSS_MATCHES), Math.min(mMaxRows, MAX_NON_SSS_MATCHES));
 				int[] hitIndexes = search.start();
 				if (hitIndexes == null)
@@ -316,12 +464,12 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 				if (MAX_NON_SSS_MATCHES != 0 && !mSSSpec.isSubstructureSearch() && hitIndexes.length > MAX_NON_SSS_MATCHES)
 					throw new SearchEngineException("Structure search hit limit exceeded.\nTry to make your search more specific.");
 
-				return mResultBuilder.buildResult(hitIndexes);
+				return mResultBuilder.buildResult(mDataVersion, hitIndexes);
 				}
 
 			if (mSearchedSingleTable != null) {
 				int[] hitIndexes = getSingleTableMatchingRowIndexes();
-				return new SingleTableResultBuilder(mSearchedSingleTable).buildResult(hitIndexes, mIncludeStructureColumns);
+				return new SingleTableResultBuilder(mSearchedSingleTable, mSearchedTableVersion).buildResult(hitIndexes, mIncludeStructureColumns);
 				}
 
 			return null;
@@ -329,7 +477,7 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 
 		public String getMatchingBottleIDs() throws SearchEngineException {
 			if (mSSSpec != null) {
-				StructureSearch search = new StructureSearch(mSSSpec, mData, this, null, null);
+				StructureSearch search = new StructureSearch(mSSSpec, mData.getSearchDataSource(mDataVersion), this, null, null);
 				search.setMatchLimit(Math.min(mMaxRows, MAX_SSS_MATCHES), Math.min(mMaxRows, MAX_NON_SSS_MATCHES));
 				int[] hitIndexes = search.start();
 				if (hitIndexes == null)
@@ -340,13 +488,15 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 				if (MAX_NON_SSS_MATCHES != 0 && !mSSSpec.isSubstructureSearch() && hitIndexes.length > MAX_NON_SSS_MATCHES)
 					throw new SearchEngineException("Structure search hit limit exceeded.\nTry to make your search more specific.");
 
-				AlphaNumTable bottleTable = mData.getBottleTable();
-				int pkColumn = bottleTable.getPrimaryKeyColumn();
+				int pkColumn = mData.getBottleTable().getPrimaryKeyColumn();
 
 				StringBuilder result = new StringBuilder();
 				for (int hitIndex:hitIndexes) {
-					result.append(new String(bottleTable.getRow(hitIndex).getData(pkColumn)));
-					result.append("\n");
+					AlphaNumRow row = mSearchedTableVersion.getRow(hitIndex);
+					if (row != null) {
+						result.append(new String(row.getData(pkColumn)));
+						result.append("\n");
+						}
 					}
 
 				return result.toString();
@@ -357,8 +507,11 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 				int pkColumn = mSearchedSingleTable.getPrimaryKeyColumn();
 				StringBuilder result = new StringBuilder();
 				for (int hitIndex:hitIndexes) {
-					result.append(new String(mSearchedSingleTable.getRow(hitIndex).getData(pkColumn)));
-					result.append("\n");
+					AlphaNumRow row = mSearchedTableVersion.getRow(hitIndex);
+					if (row != null) {
+						result.append(new String(row.getData(pkColumn)));
+						result.append("\n");
+						}
 					}
 
 				return result.toString();
@@ -369,7 +522,7 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 
 		public int printResultRows(PrintStream body) throws SearchEngineException {
 			if (mSSSpec != null) {
-				StructureSearch search = new StructureSearch(mSSSpec, mData, this, null, null);
+				StructureSearch search = new StructureSearch(mSSSpec, mData.getSearchDataSource(mDataVersion), this, null, null);
 				search.setMatchLimit(Math.min(mMaxRows, MAX_SSS_MATCHES), Math.min(mMaxRows, MAX_NON_SSS_MATCHES));
 				int[] hitIndexes = search.start();
 				if (hitIndexes == null)
@@ -380,14 +533,14 @@ public class InventorySearchEngine implements ConfigurationKeys,InventoryServerC
 				if (MAX_NON_SSS_MATCHES != 0 && !mSSSpec.isSubstructureSearch() && hitIndexes.length > MAX_NON_SSS_MATCHES)
 					throw new SearchEngineException("Structure search hit limit exceeded.\nTry to make your search more specific.");
 
-				mResultBuilder.printResult(hitIndexes, body, mIncludeStructureColumns);
+				mResultBuilder.printResult(mDataVersion, hitIndexes, body, mIncludeStructureColumns);
 
 				return hitIndexes.length;
 				}
 
 			if (mSearchedSingleTable != null) {
 				int[] hitIndexes = getSingleTableMatchingRowIndexes();
-				new SingleTableResultBuilder(mSearchedSingleTable).printResult(hitIndexes, body, mIncludeStructureColumns);
+				new SingleTableResultBuilder(mSearchedSingleTable, mSearchedTableVersion).printResult(hitIndexes, body, mIncludeStructureColumns);
 				return hitIndexes.length;
 				}
 
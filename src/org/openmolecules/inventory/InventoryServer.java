@@ -25,15 +25,20 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class InventoryServer implements ConfigurationKeys {
 	private static final int DEFAULT_PORT = 8092;
 	private static final int DEFAULT_THREAD_COUNT = 4;
 	private static final String CONFIG_FILE = "/opt/inventoryserver/config.txt";
 	private static final String VERSION = "Inventory Server 1.0; HTTP(S) version";
+	private static final int PROGRESS_INTERVAL = 10;	// seconds
 
 	private static String sVersion,sLaunchDate,sHostName;
 
@@ -51,12 +56,18 @@ public class InventoryServer implements ConfigurationKeys {
 		System.out.println("  java -cp inventoryserver.jar org.openmolecules.inventory.InventoryServer -tcs [-c path]");
 		System.out.println("Create a password hash, e.g. for the admin_hash in the config file:");
 		System.out.println("  java -cp inventoryserver.jar org.openmolecules.inventory.InventoryServer -hash password");
+		System.out.println("Import compounds and bottles from a file into the database without launching the server with:");
+		System.out.println("  java -cp inventoryserver.jar org.openmolecules.inventory.InventoryServer -import path -mapping spec [-format f] [-c path]");
+		System.out.println("    -format  'sdf' (default), 'smiles' or 'tsv'. -mapping as for the 'import' request, see 'help'.");
 		System.out.println("Launch the server with:");
-		System.out.println("  java -cp inventoryserver.jar org.openmolecules.inventory.InventoryServer [-p port] [-c path] [-s maxRequests] [-dbs]");
+		System.out.println("  java -cp inventoryserver.jar org.openmolecules.inventory.InventoryServer [-p port] [-c path] [-s maxRequests] [-vt] [-dbs]");
 		System.out.println("    -p  Default port is "+DEFAULT_PORT+". Use option -p to choose a different port.");
 		System.out.println("    -c  Alternative config file path. Default is '/opt/inventoryserver/config.txt'.");
 		System.out.println("    -s  Maximum number of simultaneously handled requests (default:"+DEFAULT_THREAD_COUNT+").");
 		System.out.println("        If this is 1, requests are handled synchronously rather than in multiple threads.");
+		System.out.println("    -vt Handles every request on its own virtual thread (Java 21 or newer), such that requests");
+		System.out.println("        waiting for the database don't delay others. Searches run on one thread per core.");
+		System.out.println("        -s then only limits the number of database connections.");
 		}
 
 	public static String getVersion() {
@@ -90,11 +101,49 @@ public class InventoryServer implements ConfigurationKeys {
 		return sLaunchDate;
 		}
 
+	/**
+	 * Imports a file into the loaded database and reports the progress every PROGRESS_INTERVAL seconds.
+	 * @return false, if the import could not be started
+	 */
+	private static boolean importFile(InMemoryData data, String path, String format, String mapping) {
+		BulkImporter importer = new BulkImporter(() -> data, new ReentrantLock(), format);
+		String errorMsg = importer.initialize(mapping);
+		if (errorMsg != null) {
+			System.out.println("ERROR: "+errorMsg);
+			return false;
+			}
+
+		Reader reader;
+		try {
+			reader = new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8);
+			}
+		catch (IOException ioe) {
+			System.out.println("ERROR: Could not open file: "+ioe.getMessage());
+			return false;
+			}
+
+		Timer timer = new Timer(true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				System.out.println("Bulk import "+importer.getStatus());
+				}
+			}, 1000L*PROGRESS_INTERVAL, 1000L*PROGRESS_INTERVAL);
+		importer.run(reader);
+		timer.cancel();
+		data.close();
+		return true;
+		}
+
 	private static boolean parseArguments(String[] args) {
 		int port = DEFAULT_PORT;
 		int threadCount = DEFAULT_THREAD_COUNT;
 		String configFilePath = CONFIG_FILE;
 		boolean createTCS = false;
+		boolean useVirtualThreads = false;
+		String importPath = null;
+		String importFormat = BulkImporter.FORMAT_SDF;
+		String importMapping = null;
 //		boolean isTest = false;
 
 		for (int i=0; i<args.length; i++) {
@@ -120,10 +169,26 @@ public class InventoryServer implements ConfigurationKeys {
 					return false;
 					}
 				}
+			if (args[i].equals("-vt")) {
+				useVirtualThreads = true;
+				continue;
+				}
 			if (args[i].equals("-tcs")) {
 				createTCS = true;
 				continue;
 				}
+			if (args[i].equals("-import") && args.length > i+1) {
+				importPath = args[++i];
+				continue;
+				}
+			if (args[i].equals("-format") && args.length > i+1) {
+				importFormat = args[++i];
+				continue;
+				}
+			if (args[i].equals("-mapping") && args.length > i+1) {
+				importMapping = args[++i];
+				continue;
+				}
 			if (args[i].equals("-hash") && args.length > i+1) {
 				System.out.println("hash: "+Authorizer.getPasswordHash(args[i+1]));
 				return true;
@@ -145,7 +210,9 @@ public class InventoryServer implements ConfigurationKeys {
 
 			config.load(new FileReader(configFile));
 			String connectString = config.getProperty(CONNECT_STRING);
-			if (connectString == null || connectString.length() == 0) {
+			String localStorage = config.getProperty(LOCAL_STORAGE);
+			boolean isLocal = (localStorage != null && localStorage.length() != 0);
+			if (!isLocal && (connectString == null || connectString.length() == 0)) {
 				System.out.println("ERROR: No '"+CONNECT_STRING+"' found in config file.");
 				return false;
 				}
@@ -156,12 +223,16 @@ public class InventoryServer implements ConfigurationKeys {
 				return true;
 			}
 
-			System.out.println("Loading inventory database using ' "+connectString+"'...");
+			DatabaseConnector.setDefaultPoolMaxSize(threadCount);
+			System.out.println("Loading inventory database using ' "+(isLocal ? localStorage : connectString)+"'...");
 			if (!data.load()) {
 				System.out.println("ERROR: Could not load database content.");
 				return false;
 				}
 
+			if (importPath != null)
+				return importFile(data, importPath, importFormat, importMapping);
+
 			final ResultBuilder resultBuilder = new ResultBuilder(data);
 			if (!resultBuilder.initialize(config)) {
 				System.out.println("ERROR: Could not initialize result builder.");
@@ -171,12 +242,18 @@ public class InventoryServer implements ConfigurationKeys {
 			Authorizer.getInstance().initialize(config);
 
 			final InventorySearchEngine searchEngine = new InventorySearchEngine(data, resultBuilder);
+			DatasetReloader reloader = new DatasetReloader(searchEngine, config);
+			searchEngine.setReloader(reloader);
+			reloader.startScheduledReload();
 
 			ServerTaskFactory factory = () -> new InventoryTask(searchEngine);
 
-			ServerCommunicator.initialize(factory, threadCount, port);
+			ServerCommunicator.initialize(factory, threadCount, port, useVirtualThreads);
 
-			System.out.println("listening on port "+port+" (thread pool size:"+threadCount+")"+" ...");
+			if (ServerCommunicator.isVirtualThreadMode())
+				System.out.println("listening on port "+port+" (virtual threads)"+" ...");
+			else
+				System.out.println("listening on port "+port+" (thread pool size:"+threadCount+")"+" ...");
 			System.out.println();
 			}
 		catch (Exception e) {
@@ -35,12 +35,23 @@ public interface InventoryServerConstants {
 	String REQUEST_INSERT = "insert";
 	String REQUEST_UPDATE = "update";
 	String REQUEST_DELETE = "delete";
+	String REQUEST_INSERT_BATCH = "insertBatch";
+	String REQUEST_UPDATE_BATCH = "updateBatch";
+	String REQUEST_RELOAD = "reload";
+	String REQUEST_RESTANDARDIZE = "restandardize";
+	String REQUEST_IMPORT = "import";
+	String REQUEST_IMPORT_STATUS = "importStatus";
+	String REQUEST_LOOKUP_STRUCTURE = "lookupStructure";
+	String REQUEST_INVALIDATE_CREDENTIALS = "invalidateCredentials";
 
 	String QUERY_STRUCTURE_SEARCH_SPEC = "ssspec";
 	String QUERY_MAX_ROWS = "maxrows";
 
 	String PARAMETER_TABLE = "table"; // for insert/update/delete or to define alphanum single table query instead of default
 	String PARAMETER_TOKEN = "token";
+	String PARAMETER_ROWS = "rows";	// TSV with column names in the first line for insertBatch/updateBatch
+	String PARAMETER_FORMAT = "format";	// file format for import: sdf, smiles or tsv
+	String PARAMETER_MAPPING = "mapping";	// assignment of file fields to columns for import
 
 	String RESPONSE_OK = "OK";
 
@@ -51,6 +62,7 @@ public interface InventoryServerConstants {
 	String PARAMETER_WITH_STRUCTURE = "withidcode"; // whether to include structure columns in text result; default is false
 
 	String PARAMETER_SMILES = "smiles";
+	String PARAMETER_IDCODE = "idcode";	// alternative to smiles for lookupStructure
 	String PARAMETER_SEARCH_TYPE = "searchType";
 	String PARAMETER_THRESHOLD = "threshold";
 	String SEARCH_TYPE_SSS = "substructure";
@@ -18,18 +18,20 @@
 
 package org.openmolecules.inventory;
 
-import com.actelion.research.chem.Canonizer;
-import com.actelion.research.chem.SmilesParser;
-import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.StructureSearchSpecification;
+import org.openmolecules.comm.ServerCommunicator;
 import org.openmolecules.comm.ServerTask;
 
 import javax.swing.*;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
 
 public class InventoryTask extends ServerTask implements ConfigurationKeys,InventoryServerConstants {
@@ -108,6 +110,41 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 				  + "    key 'token': A valid token returned by a previous 'login' request.\n"
 				  + "    key 'table': The name of the table name in which to row shall be updated.\n"
 				  + "    key '<column>' ([pk] or [id] column name): the row's primary key or ID.\n\n"
+				  + "  value 'insertBatch': Inserts multiple rows into the specified table in one transaction.\n"
+				  + "    Either all rows are inserted or, if any row is invalid, none. Returns the new primary keys.\n"
+				  + "    key 'token': A valid token returned by a previous 'login' request.\n"
+				  + "    key 'table': The name of the table name in which to insert the new rows.\n"
+				  + "    key 'rows': Tab separated column values with one row per line. The first line contains\n"
+				  + "      the SQL column names. Empty values are stored as null.\n\n"
+				  + "  value 'updateBatch': Updates multiple existing rows of the specified table in one transaction.\n"
+				  + "    key 'token': A valid token returned by a previous 'login' request.\n"
+				  + "    key 'table': The name of the table name in which the rows shall be updated.\n"
+				  + "    key 'rows': Tab separated column values as for 'insertBatch'. Columns must include\n"
+				  + "      the [pk] or [id] column and those columns that need to change.\n\n"
+				  + "  value 'reload': Reloads all tables from the database in the background. Searches and changes\n"
+				  + "    continue on the current data until the reload has finished. Progress is shown by 'summary'.\n"
+				  + "    key 'token': A valid token of the admin user.\n\n"
+				  + "  value 'restandardize': Standardizes all compound structures again in the background and updates\n"
+				  + "    those, whose structure changed, including MW, MF and descriptors. Progress is shown by 'summary'.\n"
+				  + "    key 'token': A valid token of the admin user.\n\n"
+				  + "  value 'invalidateCredentials': Forgets cached logins, such that the next login is verified\n"
+				  + "    by the database again, e.g. after a password change.\n"
+				  + "    key 'token': A valid token of the admin user.\n"
+				  + "    key 'user': Optional user-ID; if missing, cached logins of all users are forgotten.\n\n"
+				  + "  value 'import': Imports compounds and optionally one bottle per compound from a file, which is sent\n"
+				  + "    as request body (e.g. HTTP POST with all other keys as URL parameters). The file is processed record\n"
+				  + "    by record and inserted in batches. Records with invalid structure or values are skipped.\n"
+				  + "    key 'token': A valid token returned by a previous 'login' request.\n"
+				  + "    key 'format': 'sdf' (default), 'smiles' (SMILES and optional name per line) or 'tsv' (with header line).\n"
+				  + "    key 'mapping': Comma separated '<table>.<column>=<field>' entries, which assign SD-fields or TSV\n"
+				  + "      columns to compound or bottle columns, e.g. 'compound.name=Name,bottle.supplier=Supplier'.\n"
+				  + "      Foreign key columns get the [id] of the referenced row. TSV files need 'structure=<SMILES column>';\n"
+				  + "      in SMILES files the name is the field 'name'.\n\n"
+				  + "  value 'importStatus': Lists recent imports with their progress or result.\n\n"
+				  + "  value 'lookupStructure': Returns all compounds with exactly the given structure after standardization\n"
+				  + "    as tab separated lines with [pk] and [id]. Only the header line is returned, if the structure is new.\n"
+				  + "    key 'smiles': SMILES code of the structure.\n"
+				  + "    key 'idcode': idcode of the structure as alternative to 'smiles'.\n\n"
 				  + "Examples (as HTTP(S) GET requests):\n"
 				  + "  http(s)://some.server.com/?what=help\n"
 				  + "    Get this help page.\n\n"
@@ -154,13 +191,13 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 			if (table == null)
 				return;
 
-			byte[] pk = getPrimaryKey(table);
-			if (pk == null)
+			int pk = getPrimaryKey(table);
+			if (pk == AlphaNumRow.NO_KEY)
 				return;
 
-			AlphaNumRow row = table.getRow(pk);
+			AlphaNumRow row = table.getRowByPrimaryKey(pk);
 			if (row == null) {
-				createErrorResponse("Primary key '"+new String(pk)+"' not found in table '"+table.getName()+"'.");
+				createErrorResponse("Primary key '"+pk+"' not found in table '"+table.getName()+"'.");
 				return;
 			}
 
@@ -200,50 +237,106 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 			if (token == null)
 				return;
 
-			AlphaNumTable table = getTable();
-			if (table == null)
+			mSearchEngine.beginModification();	// prevents a reload from replacing the table meanwhile
+			try {
+				modifyRow(what);
+			}
+			finally {
+				mSearchEngine.endModification();
+			}
+			return;
+		}
+
+		if (what.equals(REQUEST_INSERT_BATCH)
+		 || what.equals(REQUEST_UPDATE_BATCH)) {
+			String token = getToken();
+			if (token == null)
+				return;
+
+			mSearchEngine.beginModification();
+			try {
+				modifyRows(what);
+			}
+			finally {
+				mSearchEngine.endModification();
+			}
+			return;
+		}
+
+		if (what.equals(REQUEST_RELOAD)) {
+			String token = getRequestText(PARAMETER_TOKEN);
+			if (token == null || !Authorizer.getInstance().isValidAdminToken(token)) {
+				createErrorResponse(ERROR_INVALID_TOKEN);
 				return;
+			}
+			String errorMsg = mSearchEngine.getReloader().start();
+			if (errorMsg != null)
+				createErrorResponse(errorMsg);
+			else
+				createTextResponse(RESPONSE_OK);
+			return;
+		}
 
-			TreeMap<String,String> columnValueMap = getColumnValues(table);
-			byte[] primaryKey = extractPrimaryKey(columnValueMap, table);
+		if (what.equals(REQUEST_RESTANDARDIZE)) {
+			String token = getRequestText(PARAMETER_TOKEN);
+			if (token == null || !Authorizer.getInstance().isValidAdminToken(token)) {
+				createErrorResponse(ERROR_INVALID_TOKEN);
+				return;
+			}
+			String errorMsg = mSearchEngine.startRestandardization();
+			if (errorMsg != null)
+				createErrorResponse(errorMsg);
+			else
+				createTextResponse(RESPONSE_OK);
+			return;
+		}
 
-			if (!what.equals(REQUEST_DELETE) && columnValueMap.isEmpty()) {
-				if (what.equals(REQUEST_INSERT))
-					createErrorResponse("Insert row into '"+table.getName()+"': No column values found.");
-				else
-					createErrorResponse("Update row of '"+table.getName()+"': No new column values found.");
+		if (what.equals(REQUEST_INVALIDATE_CREDENTIALS)) {
+			String token = getRequestText(PARAMETER_TOKEN);
+			if (token == null || !Authorizer.getInstance().isValidAdminToken(token)) {
+				createErrorResponse(ERROR_INVALID_TOKEN);
 				return;
 			}
+			Authorizer.getInstance().invalidateCredentials(getRequestText(KEY_USER));
+			createTextResponse(RESPONSE_OK);
+			return;
+		}
+
+		if (what.equals(REQUEST_IMPORT)) {
+			String token = getToken();
+			if (token == null)
+				return;
 
-			if (!what.equals(REQUEST_INSERT) && primaryKey == null) {
-				String primaryKeyName = table.getColumnName(table.getPrimaryKeyColumn());
-				createErrorResponse("Primary key '"+primaryKeyName+"' not defined.");
+			String format = getRequestText(PARAMETER_FORMAT);
+			BulkImporter importer = mSearchEngine.createImporter(format == null ? BulkImporter.FORMAT_SDF : format);
+			String errorMsg = importer.initialize(getRequestText(PARAMETER_MAPPING));
+			if (errorMsg != null) {
+				createErrorResponse(errorMsg);
 				return;
 			}
 
-			if (what.equals(REQUEST_DELETE)) {
-				String errorMsg = table.deleteRow(primaryKey);
-				if (errorMsg != null)
-					createErrorResponse(errorMsg);
-				else
-					createTextResponse(RESPONSE_OK);
-			}
-			else if (what.equals(REQUEST_INSERT)) {
-				byte[][] newPrimaryKeyHolder = new byte[1][];
-				String errorMsg = table.insertRow(columnValueMap, newPrimaryKeyHolder);
-				if (errorMsg != null)
-					createErrorResponse(errorMsg);
-				else
-					createTextResponse(RESPONSE_OK+"; "
-							+table.getColumnName(table.getPrimaryKeyColumn())+":"+new String(newPrimaryKeyHolder[0]));
-			}
-			else {  // UPDATE
-				String errorMsg = table.updateRow(columnValueMap, primaryKey, true);
-				if (errorMsg != null)
-					createErrorResponse(errorMsg);
-				else
-					createTextResponse(RESPONSE_OK);
+			try {
+				errorMsg = importer.run(new InputStreamReader(getRequest().getInputStream(), StandardCharsets.UTF_8));
+			}
+			catch (IOException ioe) {
+				errorMsg = "Could not read file: "+ioe.getMessage();
 			}
+			if (errorMsg != null)
+				createErrorResponse("Import "+importer.getStatus());
+			else
+				createTextResponse(RESPONSE_OK+"; import "+importer.getStatus());
+			writeLogEntry(what, importer.getStatus());
+			return;
+		}
+
+		if (what.equals(REQUEST_IMPORT_STATUS)) {
+			String status = mSearchEngine.getImportStatus(false);
+			createTextResponse(status.isEmpty() ? "No imports." : status);
+			return;
+		}
+
+		if (what.equals(REQUEST_LOOKUP_STRUCTURE)) {
+			lookupStructure();
 			return;
 		}
 
@@ -270,9 +363,21 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 
 					long startmillis = System.currentTimeMillis();
 
+					// The table is built on the compute pool, but sent from the request thread,
+					// so that a slow client cannot block a compute thread.
+					// The response PrintStream uses ISO-8859-1 for text/plain without a charset.
+					final TreeMap<String,Object> parameterQuery = query;
+					final ByteArrayOutputStream resultTable = new ByteArrayOutputStream();
+					int resultRowCount = ServerCommunicator.compute(() -> {
+						PrintStream resultStream = new PrintStream(resultTable, false, StandardCharsets.ISO_8859_1.name());
+						int rowCount = mSearchEngine.printResultTable(parameterQuery, resultStream);
+						resultStream.flush();
+						return rowCount;
+						});
+
 					createResponseHeader("text/plain");
 					PrintStream body = getResponse().getPrintStream();
-					int resultRowCount = mSearchEngine.printResultTable(query, body);
+					resultTable.writeTo(body);
 					body.close();
 
 					long millis = System.currentTimeMillis() - startmillis;
@@ -287,8 +392,9 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 								null, null, null, 0f));
 
 					long startmillis = System.currentTimeMillis();
-					byte[][][] result = mSearchEngine.getMatchingRowsAsBytes(query);
-					createObjectResponse(result);
+					final TreeMap<String,Object> objectQuery = query;
+					byte[][][] result = ServerCommunicator.compute(() -> mSearchEngine.getMatchingRowsAsBytes(objectQuery));
+					createTableResponse(result);
 					long millis = System.currentTimeMillis() - startmillis;
 
 					writeLogEntry(what, result.length+" rows in "+millis+" ms");
@@ -322,6 +428,204 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 		return token;
 	}
 
+	/**
+	 * Looks up the structure given as SMILES or idcode in the structure index of the compound table.
+	 */
+	private void lookupStructure() {
+		String idcode = getRequestText(PARAMETER_IDCODE);
+		String smiles = getRequestText(PARAMETER_SMILES);
+		if (idcode == null) {
+			if (smiles == null) {
+				createErrorResponse("Parameter '"+PARAMETER_SMILES+"' or '"+PARAMETER_IDCODE+"' missing.");
+				return;
+			}
+			try {
+				idcode = StructureCache.getInstance().getFromSmiles(smiles, false).idcode;
+			}
+			catch (Exception e) {
+				createErrorResponse("Invalid SMILES:"+e);
+				return;
+			}
+		}
+
+		CompoundTable table = mSearchEngine.getInMemoryData().getCompoundTable();
+		int idColumn = table.getIDColumn();
+		StringBuilder result = new StringBuilder(table.getColumnName(table.getPrimaryKeyColumn()));
+		if (idColumn != -1)
+			result.append('\t').append(table.getColumnName(idColumn));
+		result.append('\n');
+
+		int[] primaryKey = table.lookupStructure(idcode);
+		if (primaryKey != null) {
+			for (int pk:primaryKey) {
+				AlphaNumRow row = table.getRowByPrimaryKey(pk);
+				if (row != null) {
+					result.append(pk);
+					if (idColumn != -1 && row.getData(idColumn) != null)
+						result.append('\t').append(new String(row.getData(idColumn), StandardCharsets.UTF_8));
+					result.append('\n');
+				}
+			}
+		}
+		createTextResponse(result.toString());
+	}
+
+	/**
+	 * Inserts, updates or deletes the row defined by the request parameters.
+	 * @param what REQUEST_INSERT, REQUEST_UPDATE or REQUEST_DELETE
+	 */
+	private void modifyRow(String what) {
+		AlphaNumTable table = getTable();
+		if (table == null)
+			return;
+
+		TreeMap<String,String> columnValueMap = getColumnValues(table);
+		int primaryKey = extractPrimaryKey(columnValueMap, table);
+
+		if (!what.equals(REQUEST_DELETE) && columnValueMap.isEmpty()) {
+			if (what.equals(REQUEST_INSERT))
+				createErrorResponse("Insert row into '"+table.getName()+"': No column values found.");
+			else
+				createErrorResponse("Update row of '"+table.getName()+"': No new column values found.");
+			return;
+		}
+
+		if (!what.equals(REQUEST_INSERT) && primaryKey == AlphaNumRow.NO_KEY) {
+			String primaryKeyName = table.getColumnName(table.getPrimaryKeyColumn());
+			createErrorResponse("Primary key '"+primaryKeyName+"' not defined.");
+			return;
+		}
+
+		if (what.equals(REQUEST_DELETE)) {
+			String errorMsg = table.deleteRow(primaryKey);
+			if (errorMsg != null)
+				createErrorResponse(errorMsg);
+			else
+				createTextResponse(RESPONSE_OK);
+		}
+		else if (what.equals(REQUEST_INSERT)) {
+			int[] newPrimaryKeyHolder = new int[1];
+			String errorMsg = table.insertRow(columnValueMap, newPrimaryKeyHolder);
+			if (errorMsg != null)
+				createErrorResponse(errorMsg);
+			else
+				createTextResponse(RESPONSE_OK+"; "
+						+table.getColumnName(table.getPrimaryKeyColumn())+":"+newPrimaryKeyHolder[0]);
+		}
+		else {  // UPDATE
+			String errorMsg = table.updateRow(columnValueMap, primaryKey, true);
+			if (errorMsg != null)
+				createErrorResponse(errorMsg);
+			else
+				createTextResponse(RESPONSE_OK);
+		}
+	}
+
+	/**
+	 * Inserts or updates all rows defined by the request in one transaction.
+	 * @param what REQUEST_INSERT_BATCH or REQUEST_UPDATE_BATCH
+	 */
+	private void modifyRows(String what) {
+		AlphaNumTable table = getTable();
+		if (table == null)
+			return;
+
+		ArrayList<TreeMap<String,String>> rowList = getRowColumnValues(table);
+		if (rowList == null)
+			return;
+
+		long startmillis = System.currentTimeMillis();
+		String pkName = table.getColumnName(table.getPrimaryKeyColumn());
+		int[] primaryKey = new int[rowList.size()];
+		if (what.equals(REQUEST_INSERT_BATCH)) {
+			String errorMsg = table.insertRows(rowList, primaryKey);
+			if (errorMsg != null) {
+				createErrorResponse(errorMsg);
+				return;
+			}
+
+			StringBuilder response = new StringBuilder(RESPONSE_OK+"; "+pkName+":");
+			for (int i=0; i<primaryKey.length; i++)
+				response.append(i == 0 ? "" : ",").append(primaryKey[i]);
+			createTextResponse(response.toString());
+		}
+		else {
+			for (int i=0; i<rowList.size(); i++) {
+				primaryKey[i] = extractPrimaryKey(rowList.get(i), table);
+				if (primaryKey[i] == AlphaNumRow.NO_KEY) {
+					createErrorResponse("Row "+(i+1)+": Primary key '"+pkName+"' not defined.");
+					return;
+				}
+			}
+
+			String errorMsg = table.updateRows(rowList, primaryKey);
+			if (errorMsg != null) {
+				createErrorResponse(errorMsg);
+				return;
+			}
+
+			createTextResponse(RESPONSE_OK+"; "+rowList.size()+" rows updated");
+		}
+
+		writeLogEntry(what, rowList.size()+" rows in "+(System.currentTimeMillis() - startmillis)+" ms");
+	}
+
+	/**
+	 * Java clients send a list of column value maps as query object. Otherwise the rows are
+	 * expected as TSV in the 'rows' parameter with column names in the first line.
+	 * Empty cells are treated like empty parameter values, i.e. they set NULL values.
+	 * @param table
+	 * @return column values of all rows or null, if an error response was created
+	 */
+	private ArrayList<TreeMap<String,String>> getRowColumnValues(AlphaNumTable table) {
+		Object rows = getRequestObject(KEY_QUERY);
+		if (rows instanceof List) {
+			ArrayList<TreeMap<String,String>> rowList = new ArrayList<>();
+			for (Object row:(List<?>)rows) {
+				if (!(row instanceof TreeMap)) {
+					createErrorResponse("Invalid row list.");
+					return null;
+				}
+				@SuppressWarnings("unchecked")
+				TreeMap<String,String> columnValueMap = (TreeMap<String,String>)row;
+				rowList.add(columnValueMap);
+			}
+			return rowList;
+		}
+
+		String tsv = getRequestText(PARAMETER_ROWS);
+		if (tsv == null) {
+			createErrorResponse("Missing rows.");
+			return null;
+		}
+
+		String[] line = tsv.split("\\r?\\n");
+		String[] columnName = line[0].split("\t", -1);
+		for (String name:columnName) {
+			if (table.getColumnIndex(name) == -1
+			 && !(table instanceof CompoundTable && (name.equals("idcode") || name.equals("idcoords")))) {
+				createErrorResponse("Column '"+name+"' not found in table '"+table.getName()+"'.");
+				return null;
+			}
+		}
+
+		ArrayList<TreeMap<String,String>> rowList = new ArrayList<>();
+		for (int i=1; i<line.length; i++) {
+			if (line[i].isEmpty())
+				continue;
+			String[] value = line[i].split("\t", -1);
+			if (value.length != columnName.length) {
+				createErrorResponse("Row "+i+": "+value.length+" values found, but "+columnName.length+" expected.");
+				return null;
+			}
+			TreeMap<String,String> columnValueMap = new TreeMap<>();
+			for (int j=0; j<value.length; j++)
+				columnValueMap.put(columnName[j], value[j]);
+			rowList.add(columnValueMap);
+		}
+		return rowList;
+	}
+
 	private AlphaNumTable getTable() {
 		String tableName = getRequestText(PARAMETER_TABLE);
 		if (tableName == null) {
@@ -336,25 +640,27 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 		return table;
 	}
 
-	private byte[] getPrimaryKey(AlphaNumTable table) {
+	private int getPrimaryKey(AlphaNumTable table) {
 		String pkString = getRequestText(table.getColumnName(table.getPrimaryKeyColumn()));
-		if (pkString != null)
-			return pkString.getBytes(StandardCharsets.UTF_8);
+		if (pkString != null) {
+			int pk = AlphaNumTable.parseKey(pkString);
+			if (pk == AlphaNumRow.NO_KEY)
+				createErrorResponse("Invalid primary key '"+pkString+"'.");
+			return pk;
+		}
 
 		if (table.getIDColumn() == -1) {
 			createErrorResponse("Missing primary key.");
-			return null;
+			return AlphaNumRow.NO_KEY;
 		}
 		String id = getRequestText(table.getColumnName(table.getIDColumn()));
 		if (id == null) {
 			createErrorResponse("Missing primary key or ID.");
-			return null;
+			return AlphaNumRow.NO_KEY;
 		}
-		byte[] pk = table.getPKFromID(id.getBytes(StandardCharsets.UTF_8));
-		if (pk == null) {
+		int pk = table.getPKFromID(id.getBytes(StandardCharsets.UTF_8));
+		if (pk == AlphaNumRow.NO_KEY)
 			createErrorResponse("ID '"+id+"' not found.");
-			return null;
-		}
 		return pk;
 	}
 
@@ -387,19 +693,19 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 	 * then it tries to get the primary key from the table data using the ID.
 	 * @param columnValueMap
 	 * @param table
-	 * @return
+	 * @return primary key or AlphaNumRow.NO_KEY
 	 */
-	private byte[] extractPrimaryKey(TreeMap<String,String> columnValueMap, AlphaNumTable table) {
+	private int extractPrimaryKey(TreeMap<String,String> columnValueMap, AlphaNumTable table) {
 		String primaryKey = columnValueMap.remove(table.getColumnName(table.getPrimaryKeyColumn()));
 		if (primaryKey != null)
-		 	return primaryKey.getBytes(StandardCharsets.UTF_8);
+		 	return AlphaNumTable.parseKey(primaryKey);
 
 		if (table.getIDColumn() != -1) {
 			String id = columnValueMap.get(table.getColumnName(table.getIDColumn()));
 			if (id != null)
 				return table.getPKFromID(id.getBytes(StandardCharsets.UTF_8));
 		}
-		return null;
+		return AlphaNumRow.NO_KEY;
 	}
 
 	private String getQueryColumnNames(int type) {
@@ -451,19 +757,15 @@ public class InventoryTask extends ServerTask implements ConfigurationKeys,Inven
 		}
 
 		if (smiles != null) {
-			StereoMolecule mol = new StereoMolecule();
+			byte[][] idcode = new byte[1][];
 			try {
-				new SmilesParser().parse(mol, smiles);
-				mol.setFragment(true);
+				idcode[0] = StructureCache.getInstance().getFromSmiles(smiles, true).idcode.getBytes(StandardCharsets.UTF_8);
 				}
 			catch (Exception e) {
 				createErrorResponse("Invalid SMILES:"+e);
 				return null;
 				}
 
-			byte[][] idcode = new byte[1][];
-			idcode[0] = new Canonizer(mol).getIDCode().getBytes(StandardCharsets.UTF_8);
-
 			String descriptorName = "FragFp";
 			int type = StructureSearchSpecification.TYPE_SUBSTRUCTURE;
 			if (searchType != null && !SEARCH_TYPE_SSS.equals(searchType)) {
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Stores rows in a MySQL or PostgreSQL database through the DatabaseConnector. Single rows are written
+ * with one statement on a pooled connection; multiple rows in one transaction, where rows with the same
+ * set of columns share one prepared statement and are sent as one JDBC batch.
+ */
+public class JdbcStorage implements StorageBackend {
+	private final DatabaseConnector mConnector;
+
+	public JdbcStorage(DatabaseConnector connector) {
+		mConnector = connector;
+	}
+
+	public DatabaseConnector getConnector() {
+		return mConnector;
+	}
+
+	@Override
+	public String runTransaction(Transaction transaction) {
+		return mConnector.runTransaction(cache -> transaction.run());
+	}
+
+	@Override
+	public String insertRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		return writeRows(table, rowList, newPrimaryKey, true);
+	}
+
+	@Override
+	public String updateRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] primaryKey) {
+		return writeRows(table, rowList, primaryKey, false);
+	}
+
+	@Override
+	public String deleteRow(AlphaNumTable table, int primaryKey) {
+		return mConnector.runStatement(cache -> {
+			PreparedStatement stmt = cache.get(table.getDeleteSQL(), false);
+			stmt.setInt(1, primaryKey);
+			stmt.executeUpdate();
+			stmt.clearParameters();
+			return null;
+		});
+	}
+
+	/**
+	 * Runs one INSERT or UPDATE statement per row. A single row is written in auto-commit mode,
+	 * multiple rows within one transaction.
+	 * @param primaryKey receives the new keys of inserted rows or contains the keys of updated rows
+	 */
+	private String writeRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] primaryKey, boolean isInsert) {
+		if (rowList.size() == 1)
+			return mConnector.runStatement(cache -> {
+				writeGroup(cache, table, rowList, primaryKey, isInsert, table.getWrittenColumns(rowList.get(0), true), new int[1]);
+				return null;
+			});
+
+		// group rows by the columns they define, keeping their order
+		TreeMap<String,ArrayList<Integer>> groupMap = new TreeMap<>();
+		for (int i=0; i<rowList.size(); i++)
+			groupMap.computeIfAbsent(table.getWrittenColumns(rowList.get(i), true).toString(), k -> new ArrayList<>()).add(i);
+
+		return mConnector.runTransaction(cache -> {
+			for (ArrayList<Integer> group:groupMap.values()) {
+				int[] rowIndex = new int[group.size()];
+				for (int i=0; i<rowIndex.length; i++)
+					rowIndex[i] = group.get(i);
+				writeGroup(cache, table, rowList, primaryKey, isInsert, table.getWrittenColumns(rowList.get(rowIndex[0]), true), rowIndex);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Writes rows, which define the same columns, with one prepared statement as one batch.
+	 */
+	private void writeGroup(StatementCache cache, AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] primaryKey,
+							boolean isInsert, ArrayList<Integer> columnList, int[] rowIndex) throws SQLException {
+		PreparedStatement stmt = cache.get(table.getWriteSQL(isInsert, columnList), isInsert);
+		for (int i:rowIndex) {
+			int index = table.bindValues(stmt, columnList, rowList.get(i));
+			if (!isInsert)
+				stmt.setInt(index, primaryKey[i]);
+			if (rowIndex.length != 1)
+				stmt.addBatch();
+		}
+		if (rowIndex.length == 1)
+			stmt.executeUpdate();
+		else
+			stmt.executeBatch();
+
+		if (isInsert) {
+			ResultSet rset = stmt.getGeneratedKeys();
+			try {
+				for (int i:rowIndex) {
+					if (!rset.next())
+						throw new SQLException("Missing generated key.");
+					primaryKey[i] = rset.getInt(1);
+				}
+			}
+			finally {
+				rset.close();
+			}
+		}
+		stmt.clearParameters();
+	}
+
+	@Override
+	public boolean loadTable(AlphaNumTable table, Executor decodeExecutor, int fetchSize, int pageSize) {
+		Connection connection = mConnector.createConnection();
+		if (connection == null) {
+			System.out.println("Could not connect to database to load table "+table.getName()+".");
+			return false;
+		}
+
+		try {
+			return table.loadData(connection, decodeExecutor, fetchSize, pageSize);
+		}
+		finally {
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {}
+		}
+	}
+
+	@Override
+	public ArrayList<String[]> selectRows(AlphaNumTable table, int[] primaryKey) {
+		Connection connection = mConnector.createConnection();
+		if (connection == null)
+			return null;
+
+		try {
+			return table.selectRawRows(connection, primaryKey);
+		}
+		catch (SQLException e) {
+			System.out.println("Exception when reading rows of "+table.getName()+": "+e.getMessage());
+			return null;
+		}
+		finally {
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {}
+		}
+	}
+
+	@Override
+	public String getStatus() {
+		return mConnector.getPoolStatus();
+	}
+}
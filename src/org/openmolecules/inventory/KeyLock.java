@@ -0,0 +1,76 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks for keys, e.g. idcodes of structures, which are locked for longer periods,
+ * while other keys must stay available. Every key maps to one of a fixed number of reentrant locks.
+ * Multiple keys are always locked in ascending lock order, such that threads locking overlapping
+ * key sets cannot deadlock. A thread, which holds locks of keys, may lock the same keys again,
+ * but no others.
+ */
+public class KeyLock {
+	private final ReentrantLock[] mLock;
+
+	/**
+	 * @param lockCount number of locks; a power of 2
+	 */
+	public KeyLock(int lockCount) {
+		mLock = new ReentrantLock[lockCount];
+		for (int i=0; i<lockCount; i++)
+			mLock[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Locks all given keys, waiting if necessary.
+	 * @param keys
+	 * @return handle to be passed to unlock()
+	 */
+	public int[] lock(Collection<?> keys) {
+		int[] index = new int[keys.size()];
+		int count = 0;
+		for (Object key:keys) {
+			int hash = key.hashCode();
+			index[count++] = (hash ^ (hash >>> 16)) & (mLock.length - 1);
+		}
+		Arrays.sort(index);
+
+		int distinctCount = 0;
+		for (int i=0; i<index.length; i++)
+			if (i == 0 || index[i] != index[i-1])
+				index[distinctCount++] = index[i];
+		index = Arrays.copyOf(index, distinctCount);
+
+		for (int i:index)
+			mLock[i].lock();
+		return index;
+	}
+
+	/**
+	 * @param index handle returned by lock()
+	 */
+	public void unlock(int[] index) {
+		for (int i=index.length-1; i>=0; i--)
+			mLock[index[i]].unlock();
+	}
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded storage of all tables in one append-only log file on local disk, which replaces the database
+ * server, e.g. for small sites or for load tests of the in-memory engine. Every transaction is appended as
+ * one record with length and CRC32 checksum, such that a record, which was incompletely written during a
+ * crash, is detected and discarded together with everything after it. Appends are forced to disk before
+ * a write returns; one sync covers all records appended before it.<br>
+ * The current content of all tables is kept as raw column values, from which tables are loaded.
+ * When the log has grown to more than twice its size after the last compaction, it is rewritten with
+ * the current rows only and atomically replaces the old log. Primary keys are generated like by
+ * auto-increment columns and are never reused.
+ */
+public class LogStore implements StorageBackend {
+	private static final byte OP_INSERT = 'I';
+	private static final byte OP_UPDATE = 'U';
+	private static final byte OP_DELETE = 'D';
+	private static final byte OP_NEXT_KEY = 'K';
+	private static final int MAX_RECORD_SIZE = 1 << 30;
+	private static final int COMPACTION_RECORD_ROWS = 1000;
+	private static final long MIN_COMPACTION_SIZE = 1 << 20;
+	private static final long COMPACTION_CHECK_INTERVAL = 60000;
+
+	private static LogStore sInstance;
+
+	private final File mFile;
+	private final boolean mSync;
+	private final HashMap<String,TableContent> mContentMap;
+	private final ThreadLocal<ArrayList<Change>> mTransaction;
+	private final Object mSyncLock;
+	private FileOutputStream mStream;
+	private long mLogSize,mCompactedSize,mCommitCount,mAppendedCount,mSyncedCount;
+
+	/**
+	 * Current rows and next primary key of one table.
+	 */
+	private static class TableContent {
+		final HashMap<Integer,String[]> rowMap = new HashMap<>();
+		int nextKey = 1;
+	}
+
+	/**
+	 * One row change, i.e. an insert with all values, an update with changed values or a delete.
+	 */
+	private static class Change {
+		final String table;
+		final byte op;
+		final int key;
+		final int[] column;	// null for all columns
+		final String[] value;
+
+		Change(String table, byte op, int key, int[] column, String[] value) {
+			this.table = table;
+			this.op = op;
+			this.key = key;
+			this.column = column;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @return store or null, if tables are stored in a database
+	 */
+	public static LogStore getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Opens the log file, creating it if needed, and reads the current content of all tables from it.
+	 * Reloads of the data use the already open store.
+	 * @param file
+	 * @param sync whether appends are forced to disk before writes return
+	 * @return null or error message
+	 */
+	public static synchronized String initialize(File file, boolean sync) {
+		if (sInstance != null)
+			return null;
+
+		LogStore store = new LogStore(file, sync);
+		String error = store.open();
+		if (error != null)
+			return error;
+
+		Timer timer = new Timer("Log Store Compaction", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {	// an exception would cancel the timer
+					if (store.needsCompaction())
+						store.compact();
+				}
+				catch (Throwable t) {
+					System.out.println("Log store compaction failed: "+t);
+				}
+			}
+		}, COMPACTION_CHECK_INTERVAL, COMPACTION_CHECK_INTERVAL);
+
+		sInstance = store;
+		return null;
+	}
+
+	private LogStore(File file, boolean sync) {
+		mFile = file;
+		mSync = sync;
+		mContentMap = new HashMap<>();
+		mTransaction = new ThreadLocal<>();
+		mSyncLock = new Object();
+	}
+
+	@Override
+	public String runTransaction(Transaction transaction) {
+		if (mTransaction.get() != null)
+			return transaction.run();
+
+		ArrayList<Change> changeList = new ArrayList<>();
+		mTransaction.set(changeList);
+		String error;
+		try {
+			error = transaction.run();
+		}
+		finally {
+			mTransaction.remove();
+		}
+		return (error != null) ? error : commit(changeList);
+	}
+
+	@Override
+	public String insertRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] newPrimaryKey) {
+		String name = table.getLongName();
+		String[] columnName = getColumnNames(table);
+		ArrayList<Change> changeList = new ArrayList<>(rowList.size());
+		synchronized (this) {
+			TableContent content = getContent(name);
+			for (int i=0; i<rowList.size(); i++)
+				newPrimaryKey[i] = content.nextKey++;
+		}
+		for (int i=0; i<rowList.size(); i++) {
+			String[] value = new String[columnName.length];
+			for (int column=0; column<columnName.length; column++)
+				value[column] = toStoredValue(table, column, rowList.get(i).get(columnName[column]));
+			value[table.getPrimaryKeyColumn()] = Integer.toString(newPrimaryKey[i]);
+			changeList.add(new Change(name, OP_INSERT, newPrimaryKey[i], null, value));
+		}
+		return write(changeList);
+	}
+
+	@Override
+	public String updateRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] primaryKey) {
+		String name = table.getLongName();
+		String[] columnName = getColumnNames(table);
+		ArrayList<Change> changeList = new ArrayList<>(rowList.size());
+		for (int i=0; i<rowList.size(); i++) {
+			TreeMap<String,String> columnValueMap = rowList.get(i);
+			int count = 0;
+			int[] column = new int[columnName.length];
+			String[] value = new String[columnName.length];
+			for (int j=0; j<columnName.length; j++) {
+				String v = columnValueMap.get(columnName[j]);
+				if (v != null && j != table.getPrimaryKeyColumn()) {
+					column[count] = j;
+					value[count++] = toStoredValue(table, j, v);
+				}
+			}
+			changeList.add(new Change(name, OP_UPDATE, primaryKey[i], Arrays.copyOf(column, count), Arrays.copyOf(value, count)));
+		}
+		return write(changeList);
+	}
+
+	@Override
+	public String deleteRow(AlphaNumTable table, int primaryKey) {
+		return write(Collections.singletonList(new Change(table.getLongName(), OP_DELETE, primaryKey, null, null)));
+	}
+
+	@Override
+	public boolean loadTable(AlphaNumTable table, Executor decodeExecutor, int fetchSize, int pageSize) {
+		int columnCount = getColumnNames(table).length;
+		ArrayList<String[]> valueList = new ArrayList<>();
+		synchronized (this) {
+			TableContent content = getContent(table.getLongName());
+			for (String[] value:content.rowMap.values())
+				valueList.add(Arrays.copyOf(value, columnCount));
+		}
+		int pkColumn = table.getPrimaryKeyColumn();
+		valueList.sort(Comparator.comparingInt(value -> AlphaNumTable.parseKey(value[pkColumn])));
+		return table.loadData(valueList);
+	}
+
+	@Override
+	public ArrayList<String[]> selectRows(AlphaNumTable table, int[] primaryKey) {
+		int columnCount = getColumnNames(table).length;
+		ArrayList<String[]> valueList = new ArrayList<>();
+		synchronized (this) {
+			TableContent content = getContent(table.getLongName());
+			for (int key:primaryKey) {
+				String[] value = content.rowMap.get(key);
+				if (value != null)
+					valueList.add(Arrays.copyOf(value, columnCount));
+			}
+		}
+		return valueList;
+	}
+
+	@Override
+	public synchronized String getStatus() {
+		int rowCount = 0;
+		for (TableContent content:mContentMap.values())
+			rowCount += content.rowMap.size();
+		return "Local storage: "+rowCount+" rows, log "+(mLogSize >> 10)+" kB ("+(mCompactedSize >> 10)
+				+" kB after last compaction), "+mCommitCount+" commits";
+	}
+
+	/**
+	 * @return table columns followed by derived columns, i.e. the order of raw column values
+	 */
+	private static String[] getColumnNames(AlphaNumTable table) {
+		String[] derivedColumnName = table.getDerivedColumnNames();
+		String[] columnName = new String[table.getColumnCount()+derivedColumnName.length];
+		for (int i=0; i<table.getColumnCount(); i++)
+			columnName[i] = table.getColumnName(i);
+		System.arraycopy(derivedColumnName, 0, columnName, table.getColumnCount(), derivedColumnName.length);
+		return columnName;
+	}
+
+	/**
+	 * Empty values of table columns are stored as NULL like in a database. Derived columns are stored as they are.
+	 */
+	private static String toStoredValue(AlphaNumTable table, int column, String value) {
+		return (value != null && value.isEmpty() && column < table.getColumnCount()) ? null : value;
+	}
+
+	private TableContent getContent(String table) {
+		return mContentMap.computeIfAbsent(table, k -> new TableContent());
+	}
+
+	/**
+	 * Adds the changes to the transaction of the calling thread or commits them right away.
+	 */
+	private String write(List<Change> changeList) {
+		ArrayList<Change> transaction = mTransaction.get();
+		if (transaction != null) {
+			transaction.addAll(changeList);
+			return null;
+		}
+		return commit(changeList);
+	}
+
+	/**
+	 * Appends the changes as one record, applies them to the table content and waits until the record is on disk.
+	 * @return null or error message, if nothing was stored
+	 */
+	private String commit(List<Change> changeList) {
+		if (changeList.isEmpty())
+			return null;
+
+		byte[] record;
+		try {
+			record = createRecord(changeList);
+		}
+		catch (IOException ioe) {
+			return "Could not encode changes: "+ioe.getMessage();
+		}
+
+		long count;
+		synchronized (this) {
+			try {
+				mStream.write(record);
+			}
+			catch (IOException ioe) {
+				try {
+					mStream.getChannel().truncate(mLogSize);	// never leave a partial record before later ones
+				}
+				catch (IOException tioe) {}
+				return "Could not write to local storage: "+ioe.getMessage();
+			}
+			mLogSize += record.length;
+			mCommitCount++;
+			for (Change change:changeList)
+				apply(change);
+			count = ++mAppendedCount;
+		}
+
+		if (mSync) {
+			try {
+				sync(count);
+			}
+			catch (IOException ioe) {
+				return "Could not sync local storage: "+ioe.getMessage();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Forces the log to disk, unless another thread did so meanwhile after appending the given record.
+	 */
+	private void sync(long count) throws IOException {
+		synchronized (mSyncLock) {
+			if (mSyncedCount >= count)
+				return;
+
+			long appendedCount;
+			synchronized (this) {
+				appendedCount = mAppendedCount;
+			}
+			mStream.getChannel().force(false);
+			mSyncedCount = appendedCount;
+		}
+	}
+
+	private void apply(Change change) {
+		TableContent content = getContent(change.table);
+		if (change.op == OP_INSERT) {
+			content.rowMap.put(change.key, change.value);
+			content.nextKey = Math.max(content.nextKey, change.key+1);
+		}
+		else if (change.op == OP_UPDATE) {
+			String[] value = content.rowMap.get(change.key);
+			if (value != null) {
+				for (int i=0; i<change.column.length; i++) {
+					if (change.column[i] >= value.length)
+						value = Arrays.copyOf(value, change.column[i]+1);
+					value[change.column[i]] = change.value[i];
+				}
+				content.rowMap.put(change.key, value);
+			}
+		}
+		else if (change.op == OP_DELETE) {
+			content.rowMap.remove(change.key);
+		}
+		else if (change.op == OP_NEXT_KEY) {
+			content.nextKey = Math.max(content.nextKey, change.key);
+		}
+	}
+
+	private boolean needsCompaction() {
+		synchronized (this) {
+			return mLogSize > MIN_COMPACTION_SIZE && mLogSize > 2 * mCompactedSize;
+		}
+	}
+
+	/**
+	 * Rewrites the log with the current rows of all tables and replaces the old log atomically.
+	 * Writes wait while the log is compacted.
+	 */
+	public void compact() {
+		synchronized (mSyncLock) {
+			synchronized (this) {
+				File tempFile = new File(mFile.getPath()+".tmp");
+				try {
+					long size = 0;
+					try (FileOutputStream out = new FileOutputStream(tempFile)) {
+						ArrayList<Change> changeList = new ArrayList<>();
+						for (Map.Entry<String,TableContent> entry:mContentMap.entrySet()) {
+							changeList.add(new Change(entry.getKey(), OP_NEXT_KEY, entry.getValue().nextKey, null, null));
+							for (Map.Entry<Integer,String[]> row:entry.getValue().rowMap.entrySet()) {
+								changeList.add(new Change(entry.getKey(), OP_INSERT, row.getKey(), null, row.getValue()));
+								if (changeList.size() == COMPACTION_RECORD_ROWS) {
+									size += writeRecord(out, changeList);
+									changeList.clear();
+								}
+							}
+						}
+						if (!changeList.isEmpty())
+							size += writeRecord(out, changeList);
+						out.getChannel().force(true);
+					}
+
+					mStream.close();
+					Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					mStream = new FileOutputStream(mFile, true);
+					mLogSize = size;
+					mCompactedSize = size;
+					mSyncedCount = mAppendedCount;
+				}
+				catch (IOException ioe) {
+					System.out.println("Could not compact local storage: "+ioe.getMessage());
+					tempFile.delete();
+					try {
+						if (!mStream.getChannel().isOpen())
+							mStream = new FileOutputStream(mFile, true);
+					}
+					catch (IOException oioe) {
+						System.out.println("Could not reopen local storage: "+oioe.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	private static long writeRecord(OutputStream out, List<Change> changeList) throws IOException {
+		byte[] record = createRecord(changeList);
+		out.write(record);
+		return record.length;
+	}
+
+	/**
+	 * @return record with payload length, CRC32 of the payload and the payload
+	 */
+	private static byte[] createRecord(List<Change> changeList) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeInt(changeList.size());
+		for (Change change:changeList) {
+			writeString(payload, change.table);
+			payload.writeByte(change.op);
+			payload.writeInt(change.key);
+			if (change.op == OP_INSERT || change.op == OP_UPDATE) {
+				payload.writeInt(change.value.length);
+				for (int i=0; i<change.value.length; i++) {
+					if (change.op == OP_UPDATE)
+						payload.writeInt(change.column[i]);
+					writeString(payload, change.value[i]);
+				}
+			}
+		}
+		payload.flush();
+
+		byte[] data = payloadBytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(data.length+12);
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeInt(data.length);
+		record.writeLong(crc.getValue());
+		record.write(data);
+		record.flush();
+		return recordBytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		}
+		else {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads all complete records. If the log ends with an incomplete or corrupt record, e.g. after
+	 * a crash while appending, then the log is truncated after the last valid record.
+	 * @return null or error message
+	 */
+	private String open() {
+		long validSize = 0;
+		if (mFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+				while (true) {
+					int length;
+					try {
+						length = in.readInt();
+					}
+					catch (EOFException eofe) {
+						break;
+					}
+					if (length < 0 || length > MAX_RECORD_SIZE)
+						break;
+					long checksum = in.readLong();
+					byte[] data = new byte[length];
+					in.readFully(data);
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					if (crc.getValue() != checksum)
+						break;
+
+					for (Change change:readChanges(data))
+						apply(change);
+					validSize += 12 + length;
+				}
+			}
+			catch (EOFException eofe) {}	// incomplete last record
+			catch (IOException ioe) {
+				return "Could not read local storage: "+ioe.getMessage();
+			}
+		}
+
+		try {
+			mStream = new FileOutputStream(mFile, true);
+			if (mStream.getChannel().size() > validSize) {
+				System.out.println("Discarding "+(mStream.getChannel().size() - validSize)
+						+" bytes of incomplete or corrupt records at the end of "+mFile.getPath());
+				mStream.getChannel().truncate(validSize);
+			}
+		}
+		catch (IOException ioe) {
+			return "Could not open local storage: "+ioe.getMessage();
+		}
+
+		mLogSize = validSize;
+		mCompactedSize = validSize;
+		int rowCount = 0;
+		for (TableContent content:mContentMap.values())
+			rowCount += content.rowMap.size();
+		System.out.println("Read "+rowCount+" rows from local storage "+mFile.getPath());
+		return null;
+	}
+
+	private static ArrayList<Change> readChanges(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int count = in.readInt();
+		ArrayList<Change> changeList = new ArrayList<>(count);
+		for (int i=0; i<count; i++) {
+			String table = readString(in);
+			byte op = in.readByte();
+			int key = in.readInt();
+			int[] column = null;
+			String[] value = null;
+			if (op == OP_INSERT || op == OP_UPDATE) {
+				int valueCount = in.readInt();
+				value = new String[valueCount];
+				if (op == OP_UPDATE)
+					column = new int[valueCount];
+				for (int j=0; j<valueCount; j++) {
+					if (op == OP_UPDATE)
+						column[j] = in.readInt();
+					value[j] = readString(in);
+				}
+			}
+			changeList.add(new Change(table, op, key, column, value));
+		}
+		return changeList;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import com.actelion.research.chem.descriptor.DescriptorHandlerSkeletonSpheres;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * CompoundRow that keeps idcode, coordinates, encoded FragFp and SkeletonSpheres
+ * in a memory mapped StructureArena rather than on the Java heap. Only the small decoded
+ * FragFp, which is needed for every row in any substructure search, stays on the heap.
+ * In compact mode the encoded FragFp is not stored, and SkeletonSpheres are stored encoded
+ * and decoded on every access by a similarity search, such that decoded descriptors never
+ * accumulate on the heap.
+ * A row reads its record from the arena it was written to. New records are always written
+ * to the current arena of the table, which may have been replaced by a compacted one.
+ */
+public class MappedCompoundRow extends CompoundRow {
+	private static final int PRINT_BUFFER_SIZE = 1024;
+	private static final ThreadLocal<byte[]> sPrintBuffer = ThreadLocal.withInitial(() -> new byte[PRINT_BUFFER_SIZE]);
+
+	private final Supplier<StructureArena> mCurrentArena;
+	private volatile StructureArena mArena;
+	private volatile long mOffset;
+	private boolean mIsCompact;
+
+	/**
+	 * @param columnCount
+	 * @param foreignKeyCount
+	 * @param currentArena supplies the arena, to which new records are written
+	 */
+	public MappedCompoundRow(int columnCount, int foreignKeyCount, Supplier<StructureArena> currentArena) {
+		super(columnCount, foreignKeyCount);
+		mCurrentArena = currentArena;
+		mOffset = StructureArena.NO_OFFSET;
+	}
+
+	protected MappedCompoundRow(MappedCompoundRow row) {
+		super(row);
+		mCurrentArena = row.mCurrentArena;
+		mArena = row.mArena;
+		mOffset = row.mOffset;
+		mIsCompact = row.mIsCompact;
+	}
+
+	@Override
+	public MappedCompoundRow copy() {
+		return new MappedCompoundRow(this);
+	}
+
+	@Override
+	public byte[] getIDCode() {
+		long offset = mOffset;
+		return offset == StructureArena.NO_OFFSET ? null : mArena.get(offset, StructureArena.FIELD_IDCODE);
+	}
+
+	@Override
+	public byte[] getCoords() {
+		long offset = mOffset;
+		return offset == StructureArena.NO_OFFSET ? null : mArena.get(offset, StructureArena.FIELD_COORDS);
+	}
+
+	@Override
+	public byte[] getFFPBytes() {
+		long offset = mOffset;
+		return offset == StructureArena.NO_OFFSET ? null : mIsCompact ? encodeFFP(getFFP()) : mArena.get(offset, StructureArena.FIELD_FFP);
+	}
+
+	@Override
+	public byte[] getSkelSpheres() {
+		long offset = mOffset;
+		if (offset == StructureArena.NO_OFFSET)
+			return null;
+
+		byte[] skelSpheres = mArena.get(offset, StructureArena.FIELD_SKELSPHERES);
+		return (skelSpheres == null || !mIsCompact) ? skelSpheres : DescriptorHandlerSkeletonSpheres.getDefaultInstance().decode(skelSpheres);
+	}
+
+	@Override
+	public boolean isMissingDescriptors() {
+		long offset = mOffset;
+		return offset != StructureArena.NO_OFFSET && (getFFP() == null || mArena.getLength(offset, StructureArena.FIELD_SKELSPHERES) == -1);
+	}
+
+	@Override
+	public byte[] getEncodedSkelSpheres() {
+		long offset = mOffset;
+		if (offset == StructureArena.NO_OFFSET)
+			return null;
+
+		byte[] skelSpheres = mArena.get(offset, StructureArena.FIELD_SKELSPHERES);
+		return (skelSpheres == null || mIsCompact) ? skelSpheres : DescriptorHandlerSkeletonSpheres.getDefaultInstance().encode(skelSpheres).getBytes();
+	}
+
+	@Override
+	public void printStructureField(int field, PrintStream body) {
+		if (field == StructureArena.FIELD_FFP && mIsCompact) {
+			super.printStructureField(field, body);
+			return;
+		}
+
+		long offset = mOffset;
+		ByteBuffer view = (offset == StructureArena.NO_OFFSET) ? null : mArena.getView(offset, field);
+		if (view != null) {
+			byte[] buffer = sPrintBuffer.get();
+			while (view.hasRemaining()) {
+				int length = Math.min(buffer.length, view.remaining());
+				view.get(buffer, 0, length);
+				body.write(buffer, 0, length);
+			}
+		}
+	}
+
+	/**
+	 * @return arena holding the structure record or null, if the row has no structure
+	 */
+	public StructureArena getArena() {
+		return mOffset == StructureArena.NO_OFFSET ? null : mArena;
+	}
+
+	/**
+	 * @return bytes occupied by the structure record or 0, if the row has no structure
+	 */
+	public int getRecordSize() {
+		long offset = mOffset;
+		return offset == StructureArena.NO_OFFSET ? 0 : mArena.getRecordSize(offset);
+	}
+
+	/**
+	 * Copies the structure record into the current arena. Must only be called on an uncommitted row copy.
+	 */
+	public void moveToCurrentArena() {
+		long offset = mOffset;
+		if (offset != StructureArena.NO_OFFSET) {
+			byte[][] field = new byte[StructureArena.FIELD_SKELSPHERES+1][];
+			for (int i=0; i<field.length; i++)
+				field[i] = mArena.get(offset, i);
+			append(field);
+		}
+	}
+
+	/**
+	 * Writes a new record to the current arena. If that was closed meanwhile, because it was
+	 * replaced by a compacted one, then the record is written to the replacing arena.
+	 */
+	private void append(byte[]... field) {
+		while (true) {
+			StructureArena arena = mCurrentArena.get();
+			long offset = arena.append(field);
+			if (offset != StructureArena.NO_OFFSET) {
+				mArena = arena;
+				mOffset = offset;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void setStructure(String idcode, String coords, long[] ffp, String encodedFFP, String encodedSkelSpheres, boolean compact) {
+		if (idcode == null || idcode.isEmpty()) {
+			setFFP(null);
+			mOffset = StructureArena.NO_OFFSET;
+			return;
+		}
+
+		boolean hasSkelSpheres = (encodedSkelSpheres != null && !encodedSkelSpheres.isEmpty());
+		byte[] skelSpheres = !hasSkelSpheres ? null : compact ? encodedSkelSpheres.getBytes()
+						   : DescriptorHandlerSkeletonSpheres.getDefaultInstance().decode(encodedSkelSpheres);
+		mIsCompact = compact;
+		setFFP(ffp != null ? ffp : decodeFFP(encodedFFP));
+		append(idcode.getBytes(),
+				coords == null || coords.isEmpty() ? null : coords.getBytes(),
+				compact || encodedFFP == null || encodedFFP.isEmpty() ? null : encodedFFP.getBytes(),
+				skelSpheres);
+	}
+
+	@Override
+	public void restoreStructure(byte[] idcode, byte[] coords, long[] ffp, byte[] skelSpheres, boolean compact) {
+		if (idcode == null) {
+			setFFP(null);
+			mOffset = StructureArena.NO_OFFSET;
+			return;
+		}
+
+		mIsCompact = compact;
+		setFFP(ffp);
+		append(idcode, coords, compact ? null : encodeFFP(ffp), skelSpheres);
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Immutable map from non-negative int keys to non-negative int values, implemented as a radix tree
+ * with four levels of 256 entries each. Changes are made by an Editor, which copies only the nodes
+ * on the paths to changed keys and shares all other nodes with the original map. Thus, readers
+ * of the original map are never affected by changes. The map is compact for dense keys like
+ * auto-increment primary keys: a leaf holds the values of 256 consecutive keys.
+ */
+public class PersistentIntIntMap {
+	public static final int NO_VALUE = IntIntMap.NO_VALUE;
+	public static final PersistentIntIntMap EMPTY = new PersistentIntIntMap(new Node(false), 0);
+
+	private static final int BITS = 8;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+	private static final int LEVELS = 4;
+
+	private final Node mRoot;
+	private final int mSize;
+
+	private static final class Node {
+		final Object[] child;	// for inner nodes
+		final int[] value;		// for leaves
+		Object owner;			// editor, which may still change this node in place
+
+		Node(boolean isLeaf) {
+			child = isLeaf ? null : new Object[WIDTH];
+			value = isLeaf ? new int[WIDTH] : null;
+			if (isLeaf)
+				Arrays.fill(value, NO_VALUE);
+		}
+
+		Node(Node node, Object owner) {
+			child = (node.child == null) ? null : node.child.clone();
+			value = (node.value == null) ? null : node.value.clone();
+			this.owner = owner;
+		}
+	}
+
+	private PersistentIntIntMap(Node root, int size) {
+		mRoot = root;
+		mSize = size;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param key
+	 * @return value or NO_VALUE, if key is not in the map
+	 */
+	public int get(int key) {
+		if (key < 0)
+			return NO_VALUE;
+
+		Node node = mRoot;
+		for (int level=LEVELS-1; level>0; level--) {
+			node = (Node)node.child[(key >>> (level * BITS)) & MASK];
+			if (node == null)
+				return NO_VALUE;
+		}
+		return node.value[key & MASK];
+	}
+
+	public Editor edit() {
+		return new Editor(this);
+	}
+
+	/**
+	 * Collects changes of a map and creates a new map from them with build().
+	 * An Editor must be used by one thread only and not after build() was called.
+	 */
+	public static class Editor {
+		private Object mOwner;
+		private Node mRoot;
+		private int mSize;
+
+		private Editor(PersistentIntIntMap map) {
+			mOwner = new Object();
+			mRoot = map.mRoot;
+			mSize = map.mSize;
+		}
+
+		public int get(int key) {
+			return new PersistentIntIntMap(mRoot, mSize).get(key);
+		}
+
+		/**
+		 * @param key non-negative key
+		 * @param value non-negative value
+		 * @return previous value or NO_VALUE
+		 */
+		public int put(int key, int value) {
+			if (key < 0 || value < 0)
+				throw new IllegalArgumentException("Negative key or value");
+
+			Node node = mRoot = editable(mRoot);
+			for (int level=LEVELS-1; level>0; level--) {
+				int index = (key >>> (level * BITS)) & MASK;
+				Node child = (Node)node.child[index];
+				child = (child == null) ? newNode(level == 1) : editable(child);
+				node.child[index] = child;
+				node = child;
+			}
+			int previous = node.value[key & MASK];
+			node.value[key & MASK] = value;
+			if (previous == NO_VALUE)
+				mSize++;
+			return previous;
+		}
+
+		/**
+		 * @param key
+		 * @return removed value or NO_VALUE, if key was not in the map
+		 */
+		public int remove(int key) {
+			if (get(key) == NO_VALUE)
+				return NO_VALUE;
+
+			Node node = mRoot = editable(mRoot);
+			for (int level=LEVELS-1; level>0; level--) {
+				int index = (key >>> (level * BITS)) & MASK;
+				Node child = editable((Node)node.child[index]);
+				node.child[index] = child;
+				node = child;
+			}
+			int previous = node.value[key & MASK];
+			node.value[key & MASK] = NO_VALUE;
+			mSize--;
+			return previous;
+		}
+
+		/**
+		 * @return new map containing all changes; the Editor cannot be used afterwards
+		 */
+		public PersistentIntIntMap build() {
+			mOwner = null;
+			return new PersistentIntIntMap(mRoot, mSize);
+		}
+
+		private Node newNode(boolean isLeaf) {
+			Node node = new Node(isLeaf);
+			node.owner = mOwner;
+			return node;
+		}
+
+		private Node editable(Node node) {
+			if (mOwner == null)
+				throw new IllegalStateException("Editor was already built");
+			return node.owner == mOwner ? node : new Node(node, mOwner);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Background job started by the admin, which standardizes all compound structures again, e.g. after
+ * the standardizer was updated. Structures are standardized and, if they changed, MW, MF and descriptors
+ * are calculated by the StructurePipeline. Changed compounds are written in batches of BATCH_SIZE rows,
+ * while further structures are still being processed. Compounds, whose structure was changed by clients
+ * meanwhile, are skipped.
+ */
+public class Restandardizer implements Runnable {
+	private static final int BATCH_SIZE = 500;
+	private static final String STOPPED = "stopped";
+
+	private final CompoundTable mTable;
+	private final StructurePipeline mPipeline;
+	private final Lock mModificationLock;
+	private final AtomicInteger mFailedCount;	// incremented by pipeline workers
+	private volatile int mTotalCount,mDoneCount,mChangedCount;
+	private volatile boolean mIsStarted,mIsFinished,mIsStopped;
+	private volatile String mError;
+
+	private static class Item {
+		final CompoundRow row;
+		final CompoundTable.StructureValues values;
+		boolean isChanged;
+
+		Item(CompoundRow row) {
+			this.row = row;
+			this.values = new CompoundTable.StructureValues(new TreeMap<>());
+		}
+	}
+
+	/**
+	 * @param table
+	 * @param pipeline
+	 * @param modificationLock lock to hold while writing changed compounds
+	 */
+	public Restandardizer(CompoundTable table, StructurePipeline pipeline, Lock modificationLock) {
+		mTable = table;
+		mPipeline = pipeline;
+		mModificationLock = modificationLock;
+		mFailedCount = new AtomicInteger();
+	}
+
+	public void start() {
+		mIsStarted = true;
+		Thread thread = new Thread(this, "Restandardizer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean isRunning() {
+		return mIsStarted && !mIsFinished;
+	}
+
+	@Override
+	public void run() {
+		ArrayList<AlphaNumRow> rowList = mTable.getLiveRowList();
+		mTotalCount = rowList.size();
+		System.out.println("Standardizing "+rowList.size()+" compounds again in the background...");
+
+		try {
+			String error = mPipeline.run(rowList.stream().map(row -> new Item((CompoundRow)row)).iterator(),
+					this::standardize, this::calculateDescriptors, BATCH_SIZE, this::write);
+			if (error != null && error != STOPPED)
+				mError = error;
+		}
+		finally {
+			mIsFinished = true;
+		}
+
+		System.out.println(getStatus());
+	}
+
+	/**
+	 * Stops the job after the current batch.
+	 */
+	public void stop() {
+		mIsStopped = true;
+	}
+
+	private void standardize(Item item) {
+		byte[] idcode = item.row.getIDCode();
+		if (idcode == null)
+			return;	// no structure
+
+		byte[] coords = item.row.getCoords();
+		TreeMap<String,String> columnValueMap = item.values.columnValueMap;
+		columnValueMap.put("idcode", new String(idcode));
+		columnValueMap.put("idcoords", coords == null ? "" : new String(coords));
+		mTable.standardizeStructure(item.values);
+		if (item.values.mol == null)
+			mFailedCount.incrementAndGet();
+		else
+			item.isChanged = !columnValueMap.get("idcode").equals(new String(idcode));
+	}
+
+	private void calculateDescriptors(Item item) {
+		if (item.isChanged)
+			mTable.putDescriptorValues(item.values);
+		else
+			item.values.mol = null;
+	}
+
+	/**
+	 * Writes the changed compounds of the chunk, unless their structure was changed meanwhile.
+	 */
+	private String write(List<Item> chunk) {
+		ArrayList<TreeMap<String,String>> changedList = new ArrayList<>();
+		ArrayList<Item> itemList = new ArrayList<>();
+		for (Item item:chunk) {
+			if (item.isChanged) {
+				changedList.add(item.values.columnValueMap);
+				itemList.add(item);
+			}
+		}
+
+		if (!changedList.isEmpty()) {
+			int[] primaryKey = new int[itemList.size()];
+			byte[][] expectedIDCode = new byte[itemList.size()][];
+			for (int i=0; i<primaryKey.length; i++) {
+				primaryKey[i] = itemList.get(i).row.getPrimaryKey();
+				expectedIDCode[i] = itemList.get(i).row.getIDCode();
+			}
+
+			int[] updateCount = new int[1];
+			mModificationLock.lock();
+			try {
+				if (mIsStopped)
+					return STOPPED;
+				String error = mTable.updatePreparedRows(changedList, primaryKey, expectedIDCode, updateCount);
+				if (error != null)
+					return error;
+			}
+			finally {
+				mModificationLock.unlock();
+			}
+			mChangedCount += updateCount[0];
+		}
+
+		mDoneCount += chunk.size();
+		return mIsStopped ? STOPPED : null;
+	}
+
+	/**
+	 * @return one line describing progress or result of the re-standardization
+	 */
+	public String getStatus() {
+		if (!mIsStarted)
+			return "Re-standardization: not started";
+		String counts = mDoneCount+" of "+mTotalCount+" compounds checked, "+mChangedCount+" changed"
+				+(mFailedCount.get() == 0 ? "" : ", "+mFailedCount.get()+" failed");
+		if (!mIsFinished)
+			return "Re-standardization: "+counts;
+		return "Re-standardization: finished; "+counts
+				+(mIsStopped ? "; stopped" : "")
+				+(mError == null ? "" : "; stopped: "+mError);
+	}
+}
@@ -19,6 +19,7 @@
 package org.openmolecules.inventory;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Properties;
 
 public class ResultBuilder implements ConfigurationKeys {
@@ -102,8 +103,19 @@ public class ResultBuilder implements ConfigurationKeys {
 		return true;
 	}
 
-	public byte[][][] buildResult(int[] hitIndexes) {
-		byte[][][] result = new byte[hitIndexes.length+1][RESULT_STRUCTURE_COLUMNS+mAlphaNumColumnCount][];
+	/**
+	 * @param dataVersion data version, which was pinned by the search
+	 * @param hitIndexes bottle table row slots of the pinned version; empty slots are skipped
+	 * @return header row and one row per hit
+	 */
+	public byte[][][] buildResult(DataVersion dataVersion, int[] hitIndexes) {
+		TableVersion bottleTable = dataVersion.getTableVersion(mData.getBottleTable());
+		int rowCount = 0;
+		for (int hitIndex:hitIndexes)
+			if (bottleTable.getRow(hitIndex) != null)
+				rowCount++;
+
+		byte[][][] result = new byte[rowCount+1][RESULT_STRUCTURE_COLUMNS+mAlphaNumColumnCount][];
 
 		// create header row
 		for (int i=0; i<RESULT_STRUCTURE_COLUMNS; i++)
@@ -112,20 +124,23 @@ public class ResultBuilder implements ConfigurationKeys {
 		for (int column=0; column<mAlphaNumColumnCount; column++)
 			result[0][RESULT_STRUCTURE_COLUMNS+column] = mResultTable[column].getColumnTitle(mResultColumn[column]).getBytes();
 
-		for (int i=0; i<hitIndexes.length; i++)
-			result[i+1] = createResultRow(hitIndexes[i]);
+		int resultRow = 1;
+		for (int hitIndex:hitIndexes) {
+			AlphaNumRow bottleRow = bottleTable.getRow(hitIndex);
+			if (bottleRow != null && resultRow <= rowCount)
+				result[resultRow++] = createResultRow(dataVersion, bottleRow);
+		}
 
-		return result;
+		return (resultRow == rowCount+1) ? result : Arrays.copyOf(result, resultRow);
 	}
 
-	private byte[][] createResultRow(int rowIndex) {
+	private byte[][] createResultRow(DataVersion dataVersion, AlphaNumRow bottleRow) {
 		byte[][] resultRow = new byte[RESULT_STRUCTURE_COLUMNS+mAlphaNumColumnCount][];
 
 		AlphaNumTable bottleTable = mData.getBottleTable();
-		AlphaNumRow bottleRow = bottleTable.getRow(rowIndex);
 
 		CompoundTable compoundTable = mData.getCompoundTable();
-		CompoundRow compoundRow = mData.getCompoundRow(bottleRow);
+		CompoundRow compoundRow = mData.getCompoundRow(dataVersion, bottleRow);
 
 		resultRow[0] = compoundRow.getIDCode();
 		resultRow[1] = compoundRow.getCoords();
@@ -137,7 +152,7 @@ public class ResultBuilder implements ConfigurationKeys {
 			else if (mResultTable[column] == compoundTable)
 				resultRow[RESULT_STRUCTURE_COLUMNS + column] = compoundRow.getData(mResultColumn[column]);
 			else
-				resultRow[RESULT_STRUCTURE_COLUMNS + column] = bottleRow.getReferencedRow(mForeignKeyIndex[column]).getData(mResultColumn[column]);
+				resultRow[RESULT_STRUCTURE_COLUMNS + column] = dataVersion.getReferencedRow(bottleRow, mForeignKeyIndex[column]).getData(mResultColumn[column]);
 			}
 
 		return resultRow;
@@ -190,7 +205,13 @@ public class ResultBuilder implements ConfigurationKeys {
 		}
 	}*/
 
-	public void printResult(int[] hitIndexes, PrintStream body, boolean includeStructureColumns) {
+	/**
+	 * @param dataVersion data version, which was pinned by the search
+	 * @param hitIndexes bottle table row slots of the pinned version
+	 * @param body
+	 * @param includeStructureColumns
+	 */
+	public void printResult(DataVersion dataVersion, int[] hitIndexes, PrintStream body, boolean includeStructureColumns) {
 		if (includeStructureColumns) {
 			for (int i=0; i<RESULT_STRUCTURE_COLUMNS; i++) {
 				body.print(RESULT_STRUCTURE_COLUMN_TITLE[i]);
@@ -202,31 +223,33 @@ public class ResultBuilder implements ConfigurationKeys {
 			body.print(column == mAlphaNumColumnCount-1 ? "\n" : "\t");
 		}
 
+		TableVersion bottleVersion = dataVersion.getTableVersion(mData.getBottleTable());
 		for (int hitIndex:hitIndexes) {
-			printResultRow(hitIndex, includeStructureColumns, body);
+			AlphaNumRow bottleRow = bottleVersion.getRow(hitIndex);
+			if (bottleRow != null)
+				printResultRow(dataVersion, bottleRow, includeStructureColumns, body);
 		}
 	}
 
-	private void printResultRow(int rowIndex, boolean includeStructureColumns, PrintStream body) {
+	private void printResultRow(DataVersion dataVersion, AlphaNumRow bottleRow, boolean includeStructureColumns, PrintStream body) {
 		AlphaNumTable bottleTable = mData.getBottleTable();
-		AlphaNumRow bottleRow = bottleTable.getRow(rowIndex);
 
 		CompoundTable compoundTable = mData.getCompoundTable();
-		CompoundRow compoundRow = mData.getCompoundRow(bottleRow);
+		CompoundRow compoundRow = mData.getCompoundRow(dataVersion, bottleRow);
 
 		if (includeStructureColumns) {
-			body.print(new String(compoundRow.getIDCode()));
+			compoundRow.printStructureField(StructureArena.FIELD_IDCODE, body);
 			body.print("\t");
-			body.print(new String(compoundRow.getCoords()));
+			compoundRow.printStructureField(StructureArena.FIELD_COORDS, body);
 			body.print("\t");
-			body.print(new String(compoundRow.getFFPBytes()));
+			compoundRow.printStructureField(StructureArena.FIELD_FFP, body);
 			body.print("\t");
 		}
 
 		for (int column=0; column<mAlphaNumColumnCount; column++) {
 			byte[] data = (mResultTable[column] == bottleTable) ? bottleRow.getData(mResultColumn[column])
 					: (mResultTable[column] == compoundTable) ? compoundRow.getData(mResultColumn[column])
-					: bottleRow.getReferencedRow(mForeignKeyIndex[column]).getData(mResultColumn[column]);
+					: dataVersion.getReferencedRow(bottleRow, mForeignKeyIndex[column]).getData(mResultColumn[column]);
 			if (data != null)
 				body.print(new String(data));
 			body.print(column == mAlphaNumColumnCount-1 ? "\n" : "\t");
@@ -19,9 +19,11 @@
 package org.openmolecules.inventory;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 
 public class SingleTableResultBuilder implements ConfigurationKeys {
 	private AlphaNumTable mTable;
+	private TableVersion mTableVersion;
 
 	/**
 	 * The ResultBuilder takes a hitlist and creates a result table with the expected columns
@@ -31,16 +33,23 @@ public class SingleTableResultBuilder implements ConfigurationKeys {
 	 * config file section, such that result table tables could contain different information
 	 * depending on parameter passed to the search request.
 	 * @param table
+	 * @param tableVersion version of the table, which was pinned by the search
 	 */
-	public SingleTableResultBuilder(AlphaNumTable table) {
+	public SingleTableResultBuilder(AlphaNumTable table, TableVersion tableVersion) {
 		mTable = table;
+		mTableVersion = tableVersion;
 	}
 
 	public byte[][][] buildResult(int[] hitIndexes, boolean includeStructureColumns) {
 		includeStructureColumns &= (mTable instanceof CompoundTable);
 		int structureColumnCount = includeStructureColumns ? CompoundTable.STRUCTURE_COLUMN_TITLE.length : 0;
 
-		byte[][][] result = new byte[hitIndexes.length+1][structureColumnCount + mTable.getColumnCount()][];
+		int rowCount = 0;
+		for (int hitIndex:hitIndexes)
+			if (mTableVersion.getRow(hitIndex) != null)
+				rowCount++;
+
+		byte[][][] result = new byte[rowCount+1][structureColumnCount + mTable.getColumnCount()][];
 
 		// create header row
 		for (int i=0; i<structureColumnCount; i++)
@@ -48,8 +57,11 @@ public class SingleTableResultBuilder implements ConfigurationKeys {
 		for (int column=0; column<mTable.getColumnCount(); column++)
 			result[0][structureColumnCount + column] = mTable.getColumnTitle(column).getBytes();
 
-		for (int i=0; i<hitIndexes.length; i++) {
-			AlphaNumRow row = mTable.getRow(hitIndexes[i]);
+		int i = 0;
+		for (int hitIndex:hitIndexes) {
+			AlphaNumRow row = mTableVersion.getRow(hitIndex);
+			if (row == null || i == rowCount)	// empty slot
+				continue;
 			if (includeStructureColumns) {
 				result[i+1][0] = ((CompoundRow)row).getIDCode();
 				result[i+1][1] = ((CompoundRow)row).getCoords();
@@ -58,9 +70,10 @@ public class SingleTableResultBuilder implements ConfigurationKeys {
 			byte[][] rowData = row.getRowData();
 			for (int column=0; column<rowData.length; column++)
 				result[i+1][structureColumnCount+column] = rowData[column];
+			i++;
 			}
 
-		return result;
+		return (i == rowCount) ? result : Arrays.copyOf(result, i+1);
 	}
 
 	public void printResult(int[] hitIndexes, PrintStream body, boolean includeStructureColumns) {
@@ -78,13 +91,15 @@ public class SingleTableResultBuilder implements ConfigurationKeys {
 		}
 
 		for (int hitIndex:hitIndexes) {
-			AlphaNumRow row = mTable.getRow(hitIndex);
+			AlphaNumRow row = mTableVersion.getRow(hitIndex);
+			if (row == null)	// empty slot
+				continue;
 			if (includeStructureColumns) {
-				body.print(new String(((CompoundRow)row).getIDCode()));
+				((CompoundRow)row).printStructureField(StructureArena.FIELD_IDCODE, body);
 				body.print("\t");
-				body.print(new String(((CompoundRow)row).getCoords()));
+				((CompoundRow)row).printStructureField(StructureArena.FIELD_COORDS, body);
 				body.print("\t");
-				body.print(new String(((CompoundRow)row).getFFPBytes()));
+				((CompoundRow)row).printStructureField(StructureArena.FIELD_FFP, body);
 				body.print("\t");
 			}
 			byte[][] rowData = row.getRowData();
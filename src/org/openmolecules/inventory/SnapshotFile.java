@@ -0,0 +1,409 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of all table content including decoded descriptors, which allows a restart
+ * without loading and parsing all rows from the database. Indexes are not part of the snapshot,
+ * because rebuilding them from the restored rows is fast. At startup the snapshot is memory mapped
+ * and used only if its checksum is correct, if table specifications and descriptor storage mode
+ * are unchanged, and if row counts, highest primary keys and the optional change marker still
+ * match the database.<br>
+ * Any database modification done by this server deletes the snapshot file, because otherwise
+ * a crash would leave an outdated snapshot. Every memory commit invalidates the snapshot again, such that
+ * a snapshot written while a modification was on its way cannot stay valid.
+ * The next periodic or the shutdown snapshot writes it again.
+ * File layout: header (magic, version, creation time, change marker, table count), then for
+ * every table its specification, row count, highest primary key and all rows, and finally
+ * a CRC32 of all preceding bytes.
+ */
+public class SnapshotFile {
+	private static final int MAGIC = 0x494E5653;	// 'INVS'
+	private static final int FORMAT_VERSION = 1;
+	private static final int MAP_WINDOW_SIZE = 1 << 26;
+	private static final int CRC_SIZE = 8;
+
+	private final File mFile;
+	private final AlphaNumTable[] mTable;
+	private final String mChangeMarkerSQL;
+	private final Object mWriteLock = new Object();
+	private boolean mIsValid;		// whether the file on disk reflects current table content
+	private volatile boolean mIsModified,mIsClosed;
+
+	/**
+	 * @param file
+	 * @param table all tables in the order of InMemoryData.getTables()
+	 * @param changeMarkerSQL null or SQL query returning one value that changes whenever the database is modified
+	 */
+	public SnapshotFile(File file, AlphaNumTable[] table, String changeMarkerSQL) {
+		mFile = file;
+		mTable = table;
+		mChangeMarkerSQL = (changeMarkerSQL == null || changeMarkerSQL.isEmpty()) ? null : changeMarkerSQL;
+		mIsModified = true;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return whether table content was modified since the snapshot was written or read
+	 */
+	public boolean isModified() {
+		return mIsModified;
+	}
+
+	/**
+	 * Disables writing, e.g. because the tables were replaced by a reload.
+	 */
+	public void close() {
+		mIsClosed = true;
+	}
+
+	/**
+	 * Must be called before any database modification and after any memory commit.
+	 * Deletes a valid snapshot file, because it won't reflect the database content anymore.
+	 */
+	public synchronized void invalidate() {
+		mIsModified = true;
+		if (mIsValid) {
+			mIsValid = false;
+			if (!mFile.delete() && mFile.exists())
+				System.out.println("Could not delete outdated snapshot file: "+mFile.getPath());
+		}
+	}
+
+	private String getChangeMarker(DatabaseConnector connector) {
+		if (mChangeMarkerSQL == null)
+			return "";
+
+		String marker = connector.getString(mChangeMarkerSQL);
+		return marker == null ? "" : marker;
+	}
+
+	/**
+	 * Restores all tables from the snapshot file, if it exists and is still valid.
+	 * Foreign key references are not restored and need to be built afterwards.
+	 * @param connector
+	 * @return true, if all tables were restored; false if they need to be loaded from the database
+	 */
+	public boolean read(DatabaseConnector connector) {
+		if (!mFile.exists())
+			return false;
+
+		long millis = System.currentTimeMillis();
+		try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+			MappedInput input = new MappedInput(file.getChannel());
+			String error = readTables(input, connector);
+			if (error != null) {
+				System.out.println("Snapshot not used: "+error);
+				return false;
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			System.out.println("Could not read snapshot: "+e.getMessage());
+			return false;
+		}
+
+		synchronized (this) {
+			mIsValid = true;
+			mIsModified = false;
+		}
+		System.out.println("Restored all tables from snapshot in "+(System.currentTimeMillis()-millis)+" ms");
+		return true;
+	}
+
+	/**
+	 * Reads and validates all tables. Tables are only changed, if the entire snapshot was read successfully.
+	 * @return null or reason, why the snapshot cannot be used
+	 */
+	private String readTables(MappedInput input, DatabaseConnector connector) throws IOException {
+		if (input.getSize() < CRC_SIZE || input.readInt() != MAGIC)
+			return "not a snapshot file";
+		if (input.readInt() != FORMAT_VERSION)
+			return "different format version";
+
+		long creationTime = input.readLong();
+		String marker = new String(input.readBytes(), StandardCharsets.UTF_8);
+		if (mChangeMarkerSQL != null && !marker.equals(getChangeMarker(connector)))
+			return "database change marker differs";
+
+		if (input.readInt() != mTable.length)
+			return "different number of tables";
+
+		ArrayList<ArrayList<AlphaNumRow>> tableRows = new ArrayList<>();
+		for (AlphaNumTable table:mTable) {
+			if (!table.getSpecification().equals(new String(input.readBytes(), StandardCharsets.UTF_8)))
+				return "specification of table '"+table.getName()+"' changed";
+
+			boolean isCompact = input.readBoolean();
+			if (table instanceof CompoundTable && isCompact != ((CompoundTable)table).isCompactDescriptors())
+				return "descriptor storage mode changed";
+
+			int rowCount = input.readInt();
+			int maxPrimaryKey = input.readInt();
+			if (!(rowCount+":"+maxPrimaryKey).equals(connector.getString(table.buildCountAndMaxKeySQL())))
+				return "row count or highest primary key of table '"+table.getName()+"' differs";
+
+			tableRows.add(readRows(input, table, rowCount, isCompact));
+		}
+
+		long crc = input.readLong();
+		if (crc != input.getCRC(input.getSize() - CRC_SIZE))
+			return "checksum error";
+
+		for (int i=0; i<mTable.length; i++)
+			mTable[i].setLoadedRows(tableRows.get(i));
+
+		System.out.println("Snapshot created "+new Date(creationTime));
+		return null;
+	}
+
+	private ArrayList<AlphaNumRow> readRows(MappedInput input, AlphaNumTable table, int rowCount, boolean isCompact) throws IOException {
+		int columnCount = table.getColumnCount();
+		int foreignKeyCount = table.getForeignKeys().length;
+		boolean isCompoundTable = (table instanceof CompoundTable);
+
+		ArrayList<AlphaNumRow> rowList = new ArrayList<>(rowCount);
+		for (int i=0; i<rowCount; i++) {
+			AlphaNumRow row = table.createRow();
+			row.setPrimaryKey(input.readInt());
+			for (int fkIndex=0; fkIndex<foreignKeyCount; fkIndex++)
+				row.setForeignKey(fkIndex, input.readInt());
+			for (int column=0; column<columnCount; column++) {
+				row.setData(column, input.readBytes());
+				if (table.getColumnType(column) == ConfigurationKeys.COLUMN_TYPE_NUM)
+					row.setFloat(input.readFloat(), column);
+			}
+			if (isCompoundTable) {
+				byte[] idcode = input.readBytes();
+				byte[] coords = input.readBytes();
+				long[] ffp = input.readLongs();
+				byte[] skelSpheres = input.readBytes();
+				((CompoundRow)row).restoreStructure(idcode, coords, ffp, skelSpheres, isCompact);
+			}
+			rowList.add(row);
+		}
+		return rowList;
+	}
+
+	/**
+	 * Writes all tables of the current DataVersion into a temporary file, which replaces the current
+	 * snapshot file, if no table was modified meanwhile. Table modifications are not blocked while writing.
+	 * @param connector
+	 * @return true, if a valid snapshot was written
+	 */
+	public boolean write(DatabaseConnector connector) {
+		synchronized (mWriteLock) {
+			if (mIsClosed)
+				return false;
+
+			long millis = System.currentTimeMillis();
+			mIsModified = false;
+			DataVersion version = mTable[0].getVersionManager().getCurrentVersion();	// after clearing mIsModified
+			String marker = getChangeMarker(connector);
+
+			File tempFile = new File(mFile.getPath()+".tmp");
+			try {
+				FileOutputStream fileStream = new FileOutputStream(tempFile);
+				CheckedOutputStream checkedStream = new CheckedOutputStream(fileStream, new CRC32());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checkedStream, 1 << 16));
+				try {
+					out.writeInt(MAGIC);
+					out.writeInt(FORMAT_VERSION);
+					out.writeLong(millis);
+					writeBytes(out, marker.getBytes(StandardCharsets.UTF_8));
+					out.writeInt(mTable.length);
+					for (AlphaNumTable table:mTable)
+						writeTable(out, table, version.getTableVersion(table).getLiveRowList());
+					out.flush();
+					out.writeLong(checkedStream.getChecksum().getValue());
+				}
+				finally {
+					out.close();
+				}
+			}
+			catch (IOException ioe) {
+				System.out.println("Could not write snapshot: "+ioe.getMessage());
+				tempFile.delete();
+				return false;
+			}
+
+			synchronized (this) {
+				if (mIsModified || mIsClosed) {    // data was changed or replaced while writing
+					tempFile.delete();
+					return false;
+				}
+				mFile.delete();
+				if (!tempFile.renameTo(mFile)) {
+					System.out.println("Could not rename snapshot file: "+tempFile.getPath());
+					tempFile.delete();
+					return false;
+				}
+				mIsValid = true;
+			}
+
+			System.out.println("Snapshot written in "+(System.currentTimeMillis()-millis)+" ms");
+			return true;
+		}
+	}
+
+	private void writeTable(DataOutputStream out, AlphaNumTable table, ArrayList<AlphaNumRow> rowList) throws IOException {
+		int columnCount = table.getColumnCount();
+		int foreignKeyCount = table.getForeignKeys().length;
+		boolean isCompoundTable = (table instanceof CompoundTable);
+		boolean isCompact = isCompoundTable && ((CompoundTable)table).isCompactDescriptors();
+
+		int maxPrimaryKey = AlphaNumRow.NO_KEY;
+		for (AlphaNumRow row:rowList)
+			maxPrimaryKey = Math.max(maxPrimaryKey, row.getPrimaryKey());
+
+		writeBytes(out, table.getSpecification().getBytes(StandardCharsets.UTF_8));
+		out.writeBoolean(isCompact);
+		out.writeInt(rowList.size());
+		out.writeInt(maxPrimaryKey);
+
+		for (AlphaNumRow row:rowList) {
+			out.writeInt(row.getPrimaryKey());
+			for (int fkIndex=0; fkIndex<foreignKeyCount; fkIndex++)
+				out.writeInt(row.getForeignKey(fkIndex));
+			for (int column=0; column<columnCount; column++) {
+				writeBytes(out, row.getData(column));
+				if (table.getColumnType(column) == ConfigurationKeys.COLUMN_TYPE_NUM)
+					out.writeFloat(row.getFloat(column));
+			}
+			if (isCompoundTable) {
+				CompoundRow compoundRow = (CompoundRow)row;
+				writeBytes(out, compoundRow.getIDCode());
+				writeBytes(out, compoundRow.getCoords());
+				long[] ffp = compoundRow.getFFP();
+				out.writeInt(ffp == null ? -1 : ffp.length);
+				if (ffp != null)
+					for (long l:ffp)
+						out.writeLong(l);
+				writeBytes(out, isCompact ? compoundRow.getEncodedSkelSpheres() : compoundRow.getSkelSpheres());
+			}
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data == null ? -1 : data.length);
+		if (data != null)
+			out.write(data);
+	}
+
+	/**
+	 * Sequential reader on a file, which is memory mapped in windows of MAP_WINDOW_SIZE,
+	 * such that files larger than 2 GB can be read.
+	 */
+	private static class MappedInput {
+		private final FileChannel mChannel;
+		private final long mSize;
+		private MappedByteBuffer mBuffer;
+		private long mBufferStart;
+
+		public MappedInput(FileChannel channel) throws IOException {
+			mChannel = channel;
+			mSize = channel.size();
+			mBufferStart = 0;
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(MAP_WINDOW_SIZE, mSize));
+		}
+
+		public long getSize() {
+			return mSize;
+		}
+
+		private void ensure(int byteCount) throws IOException {
+			if (mBuffer.remaining() < byteCount) {
+				long position = mBufferStart + mBuffer.position();
+				if (position + byteCount > mSize)
+					throw new EOFException("Unexpected end of snapshot file");
+				mBufferStart = position;
+				mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(MAP_WINDOW_SIZE, byteCount), mSize - position));
+			}
+		}
+
+		public int readInt() throws IOException {
+			ensure(4);
+			return mBuffer.getInt();
+		}
+
+		public long readLong() throws IOException {
+			ensure(8);
+			return mBuffer.getLong();
+		}
+
+		public float readFloat() throws IOException {
+			ensure(4);
+			return mBuffer.getFloat();
+		}
+
+		public boolean readBoolean() throws IOException {
+			ensure(1);
+			return mBuffer.get() != 0;
+		}
+
+		public byte[] readBytes() throws IOException {
+			int length = readInt();
+			if (length == -1)
+				return null;
+			if (length < 0)
+				throw new IOException("Corrupt snapshot file");
+
+			ensure(length);
+			byte[] data = new byte[length];
+			mBuffer.get(data);
+			return data;
+		}
+
+		public long[] readLongs() throws IOException {
+			int length = readInt();
+			if (length == -1)
+				return null;
+			if (length < 0)
+				throw new IOException("Corrupt snapshot file");
+
+			ensure(8 * length);
+			long[] data = new long[length];
+			mBuffer.asLongBuffer().get(data);
+			mBuffer.position(mBuffer.position() + 8 * length);
+			return data;
+		}
+
+		/**
+		 * @param length
+		 * @return CRC32 of the first length bytes of the file
+		 */
+		public long getCRC(long length) throws IOException {
+			CRC32 crc = new CRC32();
+			for (long position=0; position<length; position+=MAP_WINDOW_SIZE)
+				crc.update(mChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, length - position)));
+			return crc.getValue();
+		}
+	}
+}
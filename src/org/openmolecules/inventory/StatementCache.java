@@ -0,0 +1,100 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of one connection, which are kept for reuse, such that the database needs
+ * to parse every statement only once and may reuse its plan. The least recently used statements
+ * are closed, if more than the maximum number of statements are cached.
+ * A StatementCache belongs to one pooled connection and is used by one thread at a time,
+ * i.e. statements need no synchronization while binding parameters and executing them.
+ */
+public class StatementCache {
+	private final Connection mConnection;
+	private final StatementMap mStatementMap;
+
+	public StatementCache(Connection connection, int maxStatements) {
+		mConnection = connection;
+		mStatementMap = new StatementMap(maxStatements);
+	}
+
+	public Connection getConnection() {
+		return mConnection;
+	}
+
+	/**
+	 * @param sql statement with parameters
+	 * @param returnGeneratedKeys whether the statement inserts rows with generated keys
+	 * @return cached or new prepared statement
+	 * @throws SQLException
+	 */
+	public synchronized PreparedStatement get(String sql, boolean returnGeneratedKeys) throws SQLException {
+		String key = returnGeneratedKeys ? "K:".concat(sql) : sql;
+		PreparedStatement stmt = mStatementMap.get(key);
+		if (stmt == null || stmt.isClosed()) {
+			stmt = mConnection.prepareStatement(sql, returnGeneratedKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+			mStatementMap.put(key, stmt);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Closes all cached statements, but not the connection.
+	 */
+	public synchronized void close() {
+		for (PreparedStatement stmt:mStatementMap.values())
+			closeStatement(stmt);
+		mStatementMap.clear();
+	}
+
+	private static void closeStatement(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		}
+		catch (SQLException e) {}
+	}
+
+	/**
+	 * Access ordered map, which closes the least recently used statement, if it grows beyond maxStatements.
+	 */
+	private static class StatementMap extends LinkedHashMap<String,PreparedStatement> {
+		private static final long serialVersionUID = 1L;
+		private final int mMaxStatements;
+
+		StatementMap(int maxStatements) {
+			super(16, 0.75f, true);
+			mMaxStatements = maxStatements;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+			if (size() <= mMaxStatements)
+				return false;
+			closeStatement(eldest.getValue());
+			return true;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Persistent storage of table rows, which AlphaNumTable loads from and writes through.
+ * Rows are written as column values by column name, which may include derived columns. An empty value
+ * of a table column stands for NULL. Rows are read as raw column values: table columns in table order
+ * followed by derived columns as returned by getDerivedColumnNames(); null for NULL.<br>
+ * Write methods called within runTransaction() on the same thread become part of the transaction.
+ */
+public interface StorageBackend {
+	/**
+	 * Work of one transaction, which is run by runTransaction().
+	 */
+	interface Transaction {
+		/**
+		 * @return null to commit or error message to roll back
+		 */
+		String run();
+	}
+
+	/**
+	 * Runs multiple writes such that all or none of them are stored. If called from within a
+	 * transaction, then the inner transaction becomes part of the outer one.
+	 * @param transaction
+	 * @return null or error message, if nothing was stored
+	 */
+	String runTransaction(Transaction transaction);
+
+	/**
+	 * @param table
+	 * @param rowList column values of new rows without primary key
+	 * @param newPrimaryKey receives the generated primary keys
+	 * @return null or error message
+	 */
+	String insertRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] newPrimaryKey);
+
+	/**
+	 * @param table
+	 * @param rowList changed column values of every row without primary key
+	 * @param primaryKey primary keys of the changed rows
+	 * @return null or error message
+	 */
+	String updateRows(AlphaNumTable table, List<TreeMap<String,String>> rowList, int[] primaryKey);
+
+	/**
+	 * @param table
+	 * @param primaryKey
+	 * @return null or error message
+	 */
+	String deleteRow(AlphaNumTable table, int primaryKey);
+
+	/**
+	 * Replaces the content of the table with all stored rows. Foreign key references still need
+	 * to be built afterwards.
+	 * @param table
+	 * @param decodeExecutor converts raw values into rows
+	 * @param fetchSize number of rows per round trip, if rows are fetched from a server
+	 * @param pageSize 0 or maximum number of rows per query, if rows are fetched from a server
+	 * @return false, if the table could not be loaded
+	 */
+	boolean loadTable(AlphaNumTable table, Executor decodeExecutor, int fetchSize, int pageSize);
+
+	/**
+	 * @param table
+	 * @param primaryKey
+	 * @return raw column values of all stored rows with the given primary keys or null, if storage could not be read
+	 */
+	ArrayList<String[]> selectRows(AlphaNumTable table, int[] primaryKey);
+
+	/**
+	 * @return null or one line describing the state of the storage
+	 */
+	String getStatus();
+}
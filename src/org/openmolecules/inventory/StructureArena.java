@@ -0,0 +1,229 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only storage for chemical structure payloads (idcode, coordinates, descriptors)
+ * in a memory mapped file outside of the Java heap. The file is mapped in segments of
+ * SEGMENT_SIZE bytes. A record consists of a header with the lengths of all payload fields
+ * followed by the field data, and it never spans two segments. Records are addressed by
+ * their offset. Records are never changed: updated structures are appended as new records,
+ * leaving the old record as unused space in the file. Unused space is reclaimed by copying
+ * all used records into a successor arena, see CompoundTable.compactArena().
+ */
+public class StructureArena {
+	public static final int FIELD_IDCODE = 0;
+	public static final int FIELD_COORDS = 1;
+	public static final int FIELD_FFP = 2;
+	public static final int FIELD_SKELSPHERES = 3;
+	private static final int FIELD_COUNT = 4;
+	private static final int HEADER_SIZE = 4 * FIELD_COUNT;
+
+	public static final long NO_OFFSET = -1;
+
+	private static final int SEGMENT_SHIFT = 28;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;    // 256 MB
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final File mFile;
+	private final boolean mIsTemporary;
+	private final RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+	private volatile MappedByteBuffer[] mSegment;
+	private long mNextOffset;
+	private boolean mIsClosed;
+
+	/**
+	 * Creates a new arena in the given file, which is overwritten if it exists.
+	 * @param file null to create a temporary file that is deleted on exit
+	 * @throws IOException
+	 */
+	public StructureArena(File file) throws IOException {
+		mIsTemporary = (file == null);
+		if (file == null) {
+			file = File.createTempFile("structures", ".arena");
+			file.deleteOnExit();
+		}
+		mFile = file;
+		mRandomAccessFile = new RandomAccessFile(file, "rw");
+		mRandomAccessFile.setLength(0);
+		mChannel = mRandomAccessFile.getChannel();
+		mSegment = new MappedByteBuffer[0];
+		mNextOffset = 0;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return number of bytes used in the file
+	 */
+	public synchronized long getSize() {
+		return mNextOffset;
+	}
+
+	/**
+	 * Creates an empty arena to copy the used records into. It uses a new temporary file,
+	 * if this arena uses one; otherwise a file next to this arena's file, whose name alternates
+	 * between the original name and the original name with a trailing '~'.
+	 * @return
+	 * @throws IOException
+	 */
+	public StructureArena createSuccessor() throws IOException {
+		if (mIsTemporary)
+			return new StructureArena(null);
+
+		String path = mFile.getPath();
+		return new StructureArena(new File(path.endsWith("~") ? path.substring(0, path.length()-1) : path+"~"));
+	}
+
+	/**
+	 * Appends a new record with the given fields, each of which may be null.
+	 * @param field byte arrays in the order FIELD_IDCODE, FIELD_COORDS, FIELD_FFP, FIELD_SKELSPHERES
+	 * @return offset of the new record or NO_OFFSET, if the arena was closed
+	 */
+	public synchronized long append(byte[]... field) {
+		if (mIsClosed)
+			return NO_OFFSET;
+
+		int size = HEADER_SIZE;
+		for (byte[] data:field)
+			if (data != null)
+				size += data.length;
+
+		if (size > SEGMENT_SIZE)
+			throw new IllegalArgumentException("Structure record too large: "+size);
+
+		long offset = mNextOffset;
+		if ((offset & SEGMENT_MASK) + size > SEGMENT_SIZE)    // record must not span segments
+			offset = (offset + SEGMENT_SIZE) & ~SEGMENT_MASK;
+
+		ByteBuffer buffer = getSegment((int)(offset >>> SEGMENT_SHIFT)).duplicate();
+		buffer.position((int)(offset & SEGMENT_MASK));
+		for (int i=0; i<FIELD_COUNT; i++)
+			buffer.putInt(i >= field.length || field[i] == null ? -1 : field[i].length);
+		for (byte[] data:field)
+			if (data != null)
+				buffer.put(data);
+
+		mNextOffset = offset + size;
+		return offset;
+	}
+
+	private MappedByteBuffer getSegment(int index) {
+		MappedByteBuffer[] segment = mSegment;
+		if (index < segment.length)
+			return segment[index];
+
+		try {
+			MappedByteBuffer[] newSegment = Arrays.copyOf(segment, index+1);
+			for (int i=segment.length; i<=index; i++)
+				newSegment[i] = mChannel.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+			mSegment = newSegment;
+			return newSegment[index];
+		}
+		catch (IOException ioe) {
+			throw new IllegalStateException("Could not map structure arena segment: "+ioe.getMessage());
+		}
+	}
+
+	/**
+	 * @param offset record offset
+	 * @param field
+	 * @return length of field in bytes or -1, if the field is null
+	 */
+	public int getLength(long offset, int field) {
+		return mSegment[(int)(offset >>> SEGMENT_SHIFT)].getInt((int)(offset & SEGMENT_MASK) + 4 * field);
+	}
+
+	/**
+	 * @param offset record offset
+	 * @return number of bytes occupied by the record including its header
+	 */
+	public int getRecordSize(long offset) {
+		ByteBuffer segment = mSegment[(int)(offset >>> SEGMENT_SHIFT)];
+		int recordStart = (int)(offset & SEGMENT_MASK);
+		int size = HEADER_SIZE;
+		for (int i=0; i<FIELD_COUNT; i++)
+			size += Math.max(0, segment.getInt(recordStart + 4 * i));
+		return size;
+	}
+
+	/**
+	 * Returns a read-only view on the field data without copying it.
+	 * @param offset record offset
+	 * @param field
+	 * @return buffer with position at field start and limit at field end, or null if the field is null
+	 */
+	public ByteBuffer getView(long offset, int field) {
+		ByteBuffer segment = mSegment[(int)(offset >>> SEGMENT_SHIFT)];
+		int recordStart = (int)(offset & SEGMENT_MASK);
+		int position = recordStart + HEADER_SIZE;
+		for (int i=0; i<field; i++) {
+			int length = segment.getInt(recordStart + 4 * i);
+			if (length > 0)
+				position += length;
+		}
+		int length = segment.getInt(recordStart + 4 * field);
+		if (length == -1)
+			return null;
+
+		ByteBuffer view = segment.asReadOnlyBuffer();
+		view.limit(position + length);
+		view.position(position);
+		return view;
+	}
+
+	/**
+	 * @param offset record offset
+	 * @param field
+	 * @return copy of field data or null
+	 */
+	public byte[] get(long offset, int field) {
+		ByteBuffer view = getView(offset, field);
+		if (view == null)
+			return null;
+
+		byte[] data = new byte[view.remaining()];
+		view.get(data);
+		return data;
+	}
+
+	/**
+	 * Closes the file. Existing records stay readable until the arena is garbage collected;
+	 * further appends return NO_OFFSET.
+	 */
+	public synchronized void close() {
+		mIsClosed = true;
+		try {
+			mChannel.close();
+			mRandomAccessFile.close();
+		}
+		catch (IOException ioe) {}
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import com.actelion.research.chem.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memo cache for structure standardization and SMILES parsing, which are shared by registrations and
+ * queries. The same structures tend to come back, e.g. when compounds are registered again or the same
+ * search is repeated, and then the result is a map lookup instead of parsing, standardizing and
+ * canonicalizing the structure again.<br>
+ * The cache is split into segments, each being a synchronized LRU map, such that concurrent lookups
+ * rarely wait for each other. Cached molecules are never handed out, only copies of them.
+ * Failed SMILES are not cached.
+ */
+public class StructureCache {
+	public static final int DEFAULT_SIZE = 10000;
+	private static final int SEGMENT_COUNT = 16;
+
+	private static StructureCache sInstance;
+
+	private volatile Segment[] mSegment;
+	private int mMaxSize;
+	private final LongAdder mHitCount,mMissCount;
+
+	/**
+	 * LRU map of one segment, which must be synchronized on.
+	 */
+	private static class Segment extends LinkedHashMap<String,Structure> {
+		private static final long serialVersionUID = 1L;
+		private final int mMaxSize;
+
+		Segment(int maxSize) {
+			super(16, 0.75f, true);
+			mMaxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Structure> eldest) {
+			return size() > mMaxSize;
+		}
+	}
+
+	/**
+	 * Canonical idcode and coordinates of a structure and its parsed molecule.
+	 */
+	public static class Structure {
+		public final String idcode,coords;
+		private final StereoMolecule mol;
+
+		private Structure(String idcode, String coords, StereoMolecule mol) {
+			this.idcode = idcode;
+			this.coords = coords;
+			this.mol = mol;
+		}
+
+		/**
+		 * @return new copy of the molecule, which the caller may change
+		 */
+		public StereoMolecule getMolecule() {
+			return mol == null ? null : mol.getCompactCopy();
+		}
+	}
+
+	public static synchronized StructureCache getInstance() {
+		if (sInstance == null)
+			sInstance = new StructureCache();
+
+		return sInstance;
+	}
+
+	private StructureCache() {
+		mHitCount = new LongAdder();
+		mMissCount = new LongAdder();
+		setMaxSize(DEFAULT_SIZE);
+	}
+
+	/**
+	 * Sets the maximum number of cached structures from the configuration.
+	 * Cached structures are kept, if the size doesn't change.
+	 * @param config
+	 */
+	public void initialize(Properties config) {
+		int maxSize = DEFAULT_SIZE;
+		String value = config.getProperty(ConfigurationKeys.STRUCTURE_CACHE_SIZE);
+		if (value != null) {
+			try {
+				maxSize = Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException nfe) {
+				System.out.println("Invalid "+ConfigurationKeys.STRUCTURE_CACHE_SIZE+" value: "+value);
+			}
+		}
+		setMaxSize(maxSize);
+	}
+
+	private synchronized void setMaxSize(int maxSize) {
+		if (mSegment != null && maxSize == mMaxSize)
+			return;
+
+		mMaxSize = Math.max(0, maxSize);
+		int segmentSize = (mMaxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+		Segment[] segment = new Segment[SEGMENT_COUNT];
+		for (int i=0; i<SEGMENT_COUNT; i++)
+			segment[i] = new Segment(segmentSize);
+		mSegment = segment;
+	}
+
+	/**
+	 * Standardizes a structure like for registration: if standardization fails, then the structure
+	 * is used as it is.
+	 * @param idcode not empty
+	 * @param coords null or encoded coordinates
+	 * @return canonical idcode and coordinates of the standardized structure and the molecule
+	 */
+	public Structure getStandardized(String idcode, String coords) {
+		if (coords != null && coords.isEmpty())
+			coords = null;
+		String key = (coords == null) ? idcode : idcode.concat(" ").concat(coords);
+		Structure structure = get(key);
+		if (structure == null) {
+			StereoMolecule mol;
+			String newIDCode = idcode;
+			String newCoords = coords;
+			try {
+				mol = MoleculeStandardizer.getStandardized(idcode, coords, 0);
+				Canonizer canonizer = new Canonizer(mol);
+				newIDCode = canonizer.getIDCode();
+				newCoords = canonizer.getEncodedCoordinates();
+			}
+			catch (Exception e) {
+				mol = new IDCodeParser().getCompactMolecule(idcode, coords);
+			}
+			structure = new Structure(newIDCode, newCoords, mol);
+			put(key, structure);
+		}
+		return structure;
+	}
+
+	/**
+	 * Parses and canonicalizes a SMILES code without standardization, e.g. for a query structure.
+	 * @param smiles
+	 * @param isFragment whether the structure is a substructure query
+	 * @return canonical idcode and coordinates of the structure and the molecule
+	 * @throws Exception if the SMILES is invalid
+	 */
+	public Structure getFromSmiles(String smiles, boolean isFragment) throws Exception {
+		String key = (isFragment ? "F:" : "S:").concat(smiles);
+		Structure structure = get(key);
+		if (structure == null) {
+			StereoMolecule mol = new StereoMolecule();
+			new SmilesParser().parse(mol, smiles);
+			mol.setFragment(isFragment);
+			Canonizer canonizer = new Canonizer(mol);
+			structure = new Structure(canonizer.getIDCode(), canonizer.getEncodedCoordinates(), mol);
+			put(key, structure);
+		}
+		return structure;
+	}
+
+	private Structure get(String key) {
+		Segment segment = getSegment(key);
+		Structure structure;
+		synchronized (segment) {
+			structure = segment.get(key);
+		}
+		if (structure == null)
+			mMissCount.increment();
+		else
+			mHitCount.increment();
+		return structure;
+	}
+
+	/**
+	 * Structures calculated by two threads at the same time are put twice, which does no harm.
+	 */
+	private void put(String key, Structure structure) {
+		if (mMaxSize != 0) {
+			Segment segment = getSegment(key);
+			synchronized (segment) {
+				segment.put(key, structure);
+			}
+		}
+	}
+
+	private Segment getSegment(String key) {
+		int hash = key.hashCode();
+		return mSegment[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment:mSegment) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return one line with size and hit rate of the cache
+	 */
+	public String getStatus() {
+		long hits = mHitCount.sum();
+		long lookups = hits + mMissCount.sum();
+		return "Structure cache: "+size()+" of "+mMaxSize+" structures, "
+				+(lookups == 0 ? "no lookups" : (100 * hits / lookups)+"% hits of "+lookups+" lookups");
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index from the canonical idcode of a standardized structure to the primary keys of all
+ * compounds having this structure. Normally there is one compound per structure, but if novelty
+ * isn't checked or the database contains duplicates, then all of them are kept, such that removing
+ * one compound never hides another one with the same structure.
+ * The index is thread-safe. Lookups don't block and take constant time.
+ */
+public class StructureIndex {
+	public static final int NO_KEY = -1;
+
+	private volatile ConcurrentHashMap<Key,int[]> mMap;
+
+	/**
+	 * Wraps an idcode to provide value based equals() and hashCode().
+	 */
+	private static final class Key {
+		private final byte[] mIDCode;
+		private final int mHash;
+
+		Key(byte[] idcode) {
+			mIDCode = idcode;
+			mHash = Arrays.hashCode(idcode);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(mIDCode, ((Key)o).mIDCode);
+		}
+	}
+
+	public StructureIndex() {
+		mMap = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Replaces the index content by the structures of the given compound rows.
+	 * @param rowList
+	 */
+	public void build(List<AlphaNumRow> rowList) {
+		ConcurrentHashMap<Key,int[]> map = new ConcurrentHashMap<>(Math.max(16, 2*rowList.size()));
+		for (AlphaNumRow row:rowList) {
+			byte[] idcode = ((CompoundRow)row).getIDCode();
+			if (idcode != null && idcode.length != 0)
+				map.merge(new Key(idcode), new int[] { row.getPrimaryKey() }, StructureIndex::merge);
+		}
+		mMap = map;
+	}
+
+	public int size() {
+		return mMap.size();
+	}
+
+	/**
+	 * @param idcode canonical idcode of a standardized structure
+	 * @return smallest primary key of all compounds with this structure or NO_KEY
+	 */
+	public int get(byte[] idcode) {
+		int[] primaryKey = mMap.get(new Key(idcode));
+		return primaryKey == null ? NO_KEY : primaryKey[0];
+	}
+
+	/**
+	 * @param idcode canonical idcode of a standardized structure
+	 * @return ascending primary keys of all compounds with this structure or null
+	 */
+	public int[] getAll(byte[] idcode) {
+		int[] primaryKey = mMap.get(new Key(idcode));
+		return primaryKey == null ? null : primaryKey.clone();
+	}
+
+	/**
+	 * @param idcode null or empty, if the compound has no structure
+	 * @param primaryKey
+	 */
+	public void add(byte[] idcode, int primaryKey) {
+		if (idcode != null && idcode.length != 0)
+			mMap.merge(new Key(idcode), new int[] { primaryKey }, StructureIndex::merge);
+	}
+
+	/**
+	 * @param idcode null or empty, if the compound has no structure
+	 * @param primaryKey
+	 */
+	public void remove(byte[] idcode, int primaryKey) {
+		if (idcode != null && idcode.length != 0)
+			mMap.computeIfPresent(new Key(idcode), (key, keys) -> {
+				int index = Arrays.binarySearch(keys, primaryKey);
+				if (index < 0)
+					return keys;
+				if (keys.length == 1)
+					return null;
+				int[] newKeys = new int[keys.length-1];
+				System.arraycopy(keys, 0, newKeys, 0, index);
+				System.arraycopy(keys, index+1, newKeys, index, newKeys.length-index);
+				return newKeys;
+			});
+	}
+
+	/**
+	 * Moves a compound from one structure to another. Nothing changes, if the structure is the same.
+	 * @param oldIDCode
+	 * @param newIDCode
+	 * @param primaryKey
+	 */
+	public void replace(byte[] oldIDCode, byte[] newIDCode, int primaryKey) {
+		if (!Arrays.equals(oldIDCode, newIDCode)) {
+			add(newIDCode, primaryKey);
+			remove(oldIDCode, primaryKey);
+		}
+	}
+
+	/**
+	 * @param keys sorted primary keys
+	 * @param added one primary key
+	 * @return sorted primary keys including the added one
+	 */
+	private static int[] merge(int[] keys, int[] added) {
+		int index = Arrays.binarySearch(keys, added[0]);
+		if (index >= 0)
+			return keys;
+		index = -index-1;
+		int[] newKeys = new int[keys.length+1];
+		System.arraycopy(keys, 0, newKeys, 0, index);
+		newKeys[index] = added[0];
+		System.arraycopy(keys, index, newKeys, index+1, keys.length-index);
+		return newKeys;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Pipelined executor for bulk structure processing. Every item passes two calculation stages,
+ * typically parsing and standardization followed by descriptor, MW and MF calculation, each stage
+ * having its own pool of worker threads. Processed items are handed to the write stage on the calling
+ * thread in input order and in chunks, while later items are still being calculated. At most
+ * MAX_PENDING_ITEMS_PER_WORKER items per worker are in the pipeline at any time, which bounds
+ * the stage queues and the memory needed for items, which are calculated, but not yet written.
+ * One pipeline may be used by multiple threads simultaneously.
+ */
+public class StructurePipeline {
+	private static final int MAX_PENDING_ITEMS_PER_WORKER = 16;
+
+	private final ExecutorService mFirstStageExecutor,mSecondStageExecutor;
+	private final int mWorkerCount;
+
+	public interface Writer<T> {
+		/**
+		 * @param chunk processed items in input order
+		 * @return null or error message, which stops the pipeline
+		 */
+		String write(List<T> chunk);
+	}
+
+	/**
+	 * @param workerCount number of worker threads per calculation stage
+	 */
+	public StructurePipeline(int workerCount) {
+		mWorkerCount = Math.max(1, workerCount);
+		mFirstStageExecutor = createExecutor("Structure Standardizer");
+		mSecondStageExecutor = createExecutor("Descriptor Calculator");
+	}
+
+	private ExecutorService createExecutor(String name) {
+		return Executors.newFixedThreadPool(mWorkerCount, runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public int getWorkerCount() {
+		return mWorkerCount;
+	}
+
+	/**
+	 * Passes all items through both calculation stages and returns when all are done.
+	 * @param itemList
+	 * @param firstStage
+	 * @param secondStage
+	 * @return null or error message, if a stage failed for any item
+	 */
+	public <T> String process(List<T> itemList, Consumer<T> firstStage, Consumer<T> secondStage) {
+		return run(itemList.iterator(), firstStage, secondStage, 0, null);
+	}
+
+	/**
+	 * Passes all items through both calculation stages and then hands them over to the writer.
+	 * The writer is called on the calling thread, while further items are calculated.
+	 * @param input items to be processed, which may be created lazily
+	 * @param firstStage
+	 * @param secondStage
+	 * @param chunkSize number of items passed to one writer call
+	 * @param writer null, if items shall only be calculated
+	 * @return null or error message of a failed stage or of the writer
+	 */
+	public <T> String run(Iterator<T> input, Consumer<T> firstStage, Consumer<T> secondStage, int chunkSize, Writer<T> writer) {
+		int maxPendingItems = mWorkerCount * MAX_PENDING_ITEMS_PER_WORKER;
+		ArrayDeque<CompletableFuture<T>> pendingQueue = new ArrayDeque<>();
+		ArrayList<T> chunk = new ArrayList<>();
+		int doneCount = 0;
+		try {
+			while (input.hasNext() || !pendingQueue.isEmpty()) {
+				if (input.hasNext() && pendingQueue.size() < maxPendingItems) {
+					final T item = input.next();
+					pendingQueue.add(CompletableFuture.supplyAsync(() -> {
+						firstStage.accept(item);
+						return item;
+					}, mFirstStageExecutor).thenApplyAsync(processed -> {
+						secondStage.accept(processed);
+						return processed;
+					}, mSecondStageExecutor));
+					continue;
+				}
+
+				T item;
+				try {
+					item = pendingQueue.poll().join();
+				}
+				catch (CompletionException e) {
+					Throwable cause = (e.getCause() == null) ? e : e.getCause();
+					return "Structure calculation failed for item "+(doneCount+1)+": "+cause;
+				}
+				doneCount++;
+
+				if (writer != null) {
+					chunk.add(item);
+					if (chunk.size() >= chunkSize) {
+						String errorMsg = writer.write(chunk);
+						if (errorMsg != null)
+							return errorMsg;
+						chunk = new ArrayList<>();
+					}
+				}
+			}
+
+			return (writer == null || chunk.isEmpty()) ? null : writer.write(chunk);
+		}
+		finally {
+			for (CompletableFuture<T> future:pendingQueue)
+				future.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops all worker threads after currently calculated items are done.
+	 */
+	public void shutdown() {
+		mFirstStageExecutor.shutdown();
+		mSecondStageExecutor.shutdown();
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable content of one table at one point in time: row slots and the primary key index.
+ * Row slots are stored in segments of SEGMENT_SIZE rows. Changes are collected by an Editor,
+ * which copies only the changed segments and index nodes (copy-on-write) and shares everything
+ * else with the original version. Deleted rows leave an empty slot, which may be reused later.
+ */
+public class TableVersion {
+	public static final TableVersion EMPTY = new TableVersion(new AlphaNumRow[0][], 0, 0, PersistentIntIntMap.EMPTY);
+
+	private static final int SEGMENT_SHIFT = 10;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final AlphaNumRow[][] mSegment;
+	private final int mSlotCount,mRowCount;
+	private final PersistentIntIntMap mPKToSlotMap;
+
+	private TableVersion(AlphaNumRow[][] segment, int slotCount, int rowCount, PersistentIntIntMap pkToSlotMap) {
+		mSegment = segment;
+		mSlotCount = slotCount;
+		mRowCount = rowCount;
+		mPKToSlotMap = pkToSlotMap;
+	}
+
+	/**
+	 * @return number of row slots including those of deleted rows
+	 */
+	public int getSlotCount() {
+		return mSlotCount;
+	}
+
+	/**
+	 * @return number of existing rows
+	 */
+	public int getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * @param slot
+	 * @return row in given slot or null, if the row was deleted
+	 */
+	public AlphaNumRow getRow(int slot) {
+		return mSegment[slot >>> SEGMENT_SHIFT][slot & SEGMENT_MASK];
+	}
+
+	/**
+	 * @param primaryKey
+	 * @return row slot or -1, if no row with the given key exists
+	 */
+	public int getSlot(int primaryKey) {
+		return mPKToSlotMap.get(primaryKey);
+	}
+
+	public AlphaNumRow getRowByPrimaryKey(int primaryKey) {
+		int slot = mPKToSlotMap.get(primaryKey);
+		return slot == PersistentIntIntMap.NO_VALUE ? null : getRow(slot);
+	}
+
+	/**
+	 * @return fraction of row slots that are empty because of deleted rows
+	 */
+	public float getFragmentation() {
+		return mSlotCount == 0 ? 0f : (float)(mSlotCount - mRowCount) / mSlotCount;
+	}
+
+	/**
+	 * @return list of all rows, which are not deleted
+	 */
+	public ArrayList<AlphaNumRow> getLiveRowList() {
+		ArrayList<AlphaNumRow> rowList = new ArrayList<>(mRowCount);
+		for (int slot=0; slot<mSlotCount; slot++) {
+			AlphaNumRow row = getRow(slot);
+			if (row != null)
+				rowList.add(row);
+		}
+		return rowList;
+	}
+
+	public Editor edit(long version) {
+		return new Editor(this, version);
+	}
+
+	/**
+	 * Collects changes of a TableVersion and creates a new TableVersion from them with build().
+	 * All new rows put into the new version are stamped with the version number of the commit.
+	 * A row that replaces an older version of the same row is linked to it, such that references
+	 * to the old version can be resolved to the new one. Links are set by build(), i.e. only if the
+	 * commit succeeds. An Editor must be used by one thread only and not after build() was called.
+	 */
+	public static class Editor {
+		private final long mVersion;
+		private final PersistentIntIntMap.Editor mPKToSlotMap;
+		private final ArrayList<AlphaNumRow> mLinkList;
+		private AlphaNumRow[][] mSegment;
+		private boolean[] mIsCopied;
+		private int mSlotCount,mRowCount;
+
+		private Editor(TableVersion tableVersion, long version) {
+			mVersion = version;
+			mSegment = tableVersion.mSegment.clone();
+			mIsCopied = new boolean[mSegment.length];
+			mSlotCount = tableVersion.mSlotCount;
+			mRowCount = tableVersion.mRowCount;
+			mPKToSlotMap = tableVersion.mPKToSlotMap.edit();
+			mLinkList = new ArrayList<>();
+		}
+
+		public long getVersion() {
+			return mVersion;
+		}
+
+		public int getSlotCount() {
+			return mSlotCount;
+		}
+
+		public AlphaNumRow getRow(int slot) {
+			return mSegment[slot >>> SEGMENT_SHIFT][slot & SEGMENT_MASK];
+		}
+
+		public AlphaNumRow getRowByPrimaryKey(int primaryKey) {
+			int slot = mPKToSlotMap.get(primaryKey);
+			return slot == PersistentIntIntMap.NO_VALUE ? null : getRow(slot);
+		}
+
+		/**
+		 * Adds a row in a new slot at the end.
+		 * @param row
+		 * @return slot of the new row
+		 */
+		public int appendRow(AlphaNumRow row) {
+			int slot = mSlotCount;
+			int segment = slot >>> SEGMENT_SHIFT;
+			if (segment == mSegment.length) {
+				mSegment = Arrays.copyOf(mSegment, segment+1);
+				mIsCopied = Arrays.copyOf(mIsCopied, segment+1);
+				mSegment[segment] = new AlphaNumRow[SEGMENT_SIZE];
+				mIsCopied[segment] = true;
+			}
+			mSlotCount++;
+			setRow(slot, row);
+			return slot;
+		}
+
+		/**
+		 * Puts a row into a slot or empties the slot. If the slot contains an older version of the same row,
+		 * then the old version is linked to the new one. If it contains a different row, then that row is removed.
+		 * @param slot
+		 * @param row new row or null to delete the row in the slot
+		 * @return previous row in the slot or null
+		 */
+		public AlphaNumRow setRow(int slot, AlphaNumRow row) {
+			int segment = slot >>> SEGMENT_SHIFT;
+			if (!mIsCopied[segment]) {
+				mSegment[segment] = mSegment[segment].clone();
+				mIsCopied[segment] = true;
+			}
+
+			AlphaNumRow previous = mSegment[segment][slot & SEGMENT_MASK];
+			mSegment[segment][slot & SEGMENT_MASK] = row;
+			if (previous != null) {
+				if (row != null && previous.getPrimaryKey() == row.getPrimaryKey()) {
+					if (previous == row)
+						throw new IllegalArgumentException("Row versions must not be changed in place");
+					mLinkList.add(previous);
+					mLinkList.add(row);
+				}
+				else {
+					mPKToSlotMap.remove(previous.getPrimaryKey());
+				}
+				mRowCount--;
+			}
+			if (row != null) {
+				if (row.getVersion() == AlphaNumRow.NO_VERSION)	// new row or row version
+					row.setVersion(mVersion);
+				mPKToSlotMap.put(row.getPrimaryKey(), slot);
+				mRowCount++;
+			}
+			return previous;
+		}
+
+		/**
+		 * Replaces a row by a new version of it.
+		 * @param row new version of an existing row
+		 * @return false, if no row with the same primary key exists
+		 */
+		public boolean replaceRow(AlphaNumRow row) {
+			int slot = mPKToSlotMap.get(row.getPrimaryKey());
+			if (slot == PersistentIntIntMap.NO_VALUE)
+				return false;
+			setRow(slot, row);
+			return true;
+		}
+
+		/**
+		 * Deletes the row with the given primary key, leaving an empty slot.
+		 * @param primaryKey
+		 * @return slot of the removed row or -1, if no row with this key exists
+		 */
+		public int removeRow(int primaryKey) {
+			int slot = mPKToSlotMap.get(primaryKey);
+			if (slot != PersistentIntIntMap.NO_VALUE)
+				setRow(slot, null);
+			return slot;
+		}
+
+		/**
+		 * @return new TableVersion with all changes; the Editor cannot be used afterwards
+		 */
+		public TableVersion build() {
+			for (int i=0; i<mLinkList.size(); i+=2)
+				mLinkList.get(i).setNextVersion(mLinkList.get(i+1));
+			return new TableVersion(mSegment, mSlotCount, mRowCount, mPKToSlotMap.build());
+		}
+	}
+
+	/**
+	 * Creates a TableVersion with dense row slots.
+	 * @param rowList rows with unique primary keys
+	 * @param version commit version to stamp new rows with
+	 * @return
+	 */
+	public static TableVersion create(List<AlphaNumRow> rowList, long version) {
+		Editor editor = EMPTY.edit(version);
+		for (AlphaNumRow row:rowList)
+			editor.appendRow(row);
+		return editor.build();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+/**
+ * Runs multiple table operations, e.g. insertRow() of one table and updateRow() of another,
+ * such that either all or none of them take effect, both in storage and in memory.
+ * While the work runs, all writes of AlphaNumTable methods on the calling thread use one
+ * storage transaction, and all memory changes are staged by the VersionManager, such that the
+ * calling thread can read them, but others cannot see them. After the storage commit, the memory
+ * changes are published as one new DataVersion. If any operation fails, then the storage
+ * transaction is rolled back and the memory changes are discarded.<br>
+ * Units of work run concurrently with each other and with memory commits; only publishing their
+ * changes is serialized. Checks, which must stay valid until the changes are published, e.g. novelty
+ * checks, need their own locks. A unit of work started within another one becomes part of it.
+ * Updates are not queued in write-behind mode within a unit of work.
+ */
+public class UnitOfWork {
+	private static final ThreadLocal<Boolean> sIsActive = new ThreadLocal<>();
+
+	public interface Work {
+		/**
+		 * @return null to commit or error message to roll back
+		 */
+		String run();
+	}
+
+	/**
+	 * @return whether a unit of work runs on the calling thread
+	 */
+	public static boolean isActive() {
+		return sIsActive.get() != null;
+	}
+
+	/**
+	 * @param versionManager of the tables changed by the work
+	 * @param storage of the tables changed by the work
+	 * @param work
+	 * @return null or error message of the work or of the storage, if nothing was changed
+	 */
+	public static String run(VersionManager versionManager, StorageBackend storage, Work work) {
+		if (isActive())
+			return work.run();
+
+		WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+		if (writeBehindQueue != null && !writeBehindQueue.flush(true))	// queued updates might touch the same rows
+			return WriteBehindQueue.ERROR_NOT_FLUSHED;
+
+		return versionManager.stage(() -> storage.runTransaction(() -> {
+			sIsActive.set(Boolean.TRUE);
+			try {
+				return work.run();
+			}
+			finally {
+				sIsActive.remove();
+			}
+		}));
+	}
+}
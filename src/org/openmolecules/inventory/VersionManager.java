@@ -0,0 +1,278 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Multi-version concurrency control for the tables of one InMemoryData. Readers get the current
+ * DataVersion with one volatile read and never block. Writers never change published rows or
+ * row storage: they create new row versions and new table versions within a commit, which
+ * publishes a new DataVersion when it is complete. Commits are serialized; since they only contain
+ * in-memory changes, which are applied after the database was updated, they are short.
+ * A UnitOfWork stages its changes on a private snapshot while it runs its database transaction
+ * and commits them afterwards, such that no database round trip happens within a commit.
+ * Commits are serialized by a ReentrantLock rather than a monitor, such that virtual threads waiting
+ * for a commit don't pin their carrier threads.
+ * Outdated versions are released by the garbage collector when no search uses them anymore.
+ */
+public class VersionManager {
+	private volatile DataVersion mCurrentVersion;
+	private final ReentrantLock mCommitLock;
+	private Commit mActiveCommit;
+	private final ThreadLocal<Commit> mStagedCommit;
+	private volatile Runnable mCommitListener;
+
+	/**
+	 * Creates a version manager with empty tables and registers it with the tables.
+	 * @param table
+	 */
+	public VersionManager(AlphaNumTable[] table) {
+		TableVersion[] tableVersion = new TableVersion[table.length];
+		Arrays.fill(tableVersion, TableVersion.EMPTY);
+		mCurrentVersion = new DataVersion(0, tableVersion);
+		mStagedCommit = new ThreadLocal<>();
+		mCommitLock = new ReentrantLock();
+		for (int i=0; i<table.length; i++)
+			table[i].setVersionManager(this, i);
+	}
+
+	/**
+	 * @return latest committed version of all tables
+	 */
+	public DataVersion getCurrentVersion() {
+		return mCurrentVersion;
+	}
+
+	/**
+	 * @param listener is called after a commit published a new DataVersion, outside of the commit lock
+	 */
+	public void setCommitListener(Runnable listener) {
+		mCommitListener = listener;
+	}
+
+	/**
+	 * Runs the change exclusively and publishes all table changes it made as one new DataVersion.
+	 * If commit() is called again from within a change, then the inner change becomes part of
+	 * the outer commit. If the change throws an exception, nothing is published and the rollback
+	 * actions registered with the commit are run.<br>
+	 * While the calling thread stages changes with stage(), the change is applied to the staged
+	 * commit without locking and kept to be committed later.
+	 * @param change
+	 */
+	public void commit(Consumer<Commit> change) {
+		Commit stagedCommit = mStagedCommit.get();
+		if (stagedCommit != null && !mCommitLock.isHeldByCurrentThread()) {
+			stagedCommit.stage(change);
+			return;
+		}
+
+		boolean isPublished = false;
+		mCommitLock.lock();
+		try {
+			if (mActiveCommit != null) {
+				change.accept(mActiveCommit);
+				return;
+			}
+
+			mActiveCommit = new Commit(mCurrentVersion, false);
+			try {
+				change.accept(mActiveCommit);
+				DataVersion version = mActiveCommit.build();
+				isPublished = (version != mCurrentVersion);
+				mCurrentVersion = version;
+			}
+			catch (RuntimeException | Error e) {
+				mActiveCommit.rollback();
+				throw e;
+			}
+			finally {
+				mActiveCommit = null;
+			}
+		}
+		finally {
+			mCommitLock.unlock();
+		}
+
+		Runnable listener = mCommitListener;
+		if (isPublished && listener != null)
+			listener.run();
+	}
+
+	/**
+	 * Runs the work without holding the commit lock, while all commit() calls of the calling thread
+	 * only change a private snapshot of the current version, which the calling thread can read from.
+	 * If the work succeeds, then all changes are applied again to the then current version
+	 * and published in one commit. Otherwise, they are discarded.
+	 * Changes must therefore derive new row versions from the commit they are applied to.
+	 * If the calling thread stages already, then the work becomes part of the outer staging.
+	 * @param work returns null to commit the staged changes or an error message to discard them
+	 * @return result of the work
+	 */
+	public String stage(Supplier<String> work) {
+		if (mStagedCommit.get() != null || mCommitLock.isHeldByCurrentThread())
+			return work.get();
+
+		Commit stagedCommit = new Commit(mCurrentVersion, true);
+		String errorMsg;
+		mStagedCommit.set(stagedCommit);
+		try {
+			errorMsg = work.get();
+		}
+		finally {
+			mStagedCommit.remove();
+		}
+
+		if (errorMsg == null && !stagedCommit.mChangeList.isEmpty())
+			commit(commit -> {
+				for (Consumer<Commit> change:stagedCommit.mChangeList)
+					change.accept(commit);
+			});
+		return errorMsg;
+	}
+
+	/**
+	 * Allows a thread, which runs a commit or stages changes, to read its own uncommitted changes.
+	 * @return the open or staged commit, if it belongs to the calling thread; otherwise null
+	 */
+	public Commit getOwnCommit() {
+		return mCommitLock.isHeldByCurrentThread() ? mActiveCommit : mStagedCommit.get();
+	}
+
+	/**
+	 * Collects the changes of all tables changed by one commit. A staged commit is never built:
+	 * its rows are not stamped with a version and changes outside of the table versions,
+	 * e.g. of indexes, must not be made for it.
+	 */
+	public static class Commit {
+		private final DataVersion mBaseVersion;
+		private final TableVersion.Editor[] mEditor;
+		private final ArrayList<Runnable> mRollbackList;
+		private final boolean mIsStaged;
+		private final ArrayList<Consumer<Commit>> mChangeList;	// staged changes
+		private boolean mIsStaging;
+
+		private Commit(DataVersion baseVersion, boolean isStaged) {
+			mBaseVersion = baseVersion;
+			mEditor = new TableVersion.Editor[baseVersion.getTableCount()];
+			mRollbackList = new ArrayList<>();
+			mIsStaged = isStaged;
+			mChangeList = isStaged ? new ArrayList<>() : null;
+		}
+
+		/**
+		 * @return whether this commit only stages changes, which are committed later
+		 */
+		public boolean isStaged() {
+			return mIsStaged;
+		}
+
+		/**
+		 * @return version number that is assigned to all rows created by this commit
+		 * or AlphaNumRow.NO_VERSION, if the commit is staged
+		 */
+		public long getVersion() {
+			return mIsStaged ? AlphaNumRow.NO_VERSION : mBaseVersion.getVersion() + 1;
+		}
+
+		/**
+		 * Applies a change to this staged commit and keeps it, unless it is called from within
+		 * another staged change, which contains it.
+		 */
+		private void stage(Consumer<Commit> change) {
+			if (mIsStaging) {
+				change.accept(this);
+				return;
+			}
+
+			mIsStaging = true;
+			try {
+				change.accept(this);
+			}
+			finally {
+				mIsStaging = false;
+			}
+			mChangeList.add(change);
+		}
+
+		/**
+		 * @param table
+		 * @return editor for the given table within this commit
+		 */
+		public TableVersion.Editor edit(AlphaNumTable table) {
+			int index = table.getVersionIndex();
+			if (mEditor[index] == null)
+				mEditor[index] = mBaseVersion.getTableVersion(index).edit(getVersion());
+			return mEditor[index];
+		}
+
+		/**
+		 * @param table
+		 * @param primaryKey
+		 * @return row including changes of this commit or null
+		 */
+		public AlphaNumRow getRowByPrimaryKey(AlphaNumTable table, int primaryKey) {
+			int index = table.getVersionIndex();
+			return mEditor[index] != null ? mEditor[index].getRowByPrimaryKey(primaryKey)
+					: mBaseVersion.getTableVersion(index).getRowByPrimaryKey(primaryKey);
+		}
+
+		/**
+		 * Replaces the table content without reusing any previous table version.
+		 * @param table
+		 * @param tableVersion
+		 */
+		public void replace(AlphaNumTable table, TableVersion tableVersion) {
+			mEditor[table.getVersionIndex()] = tableVersion.edit(getVersion());
+		}
+
+		/**
+		 * Registers an action, which reverts a change outside of the table versions, e.g. of an index.
+		 * If the commit fails, all actions are run in reverse order.
+		 * @param action
+		 */
+		public void onRollback(Runnable action) {
+			mRollbackList.add(action);
+		}
+
+		private void rollback() {
+			for (int i=mRollbackList.size()-1; i>=0; i--)
+				mRollbackList.get(i).run();
+		}
+
+		private DataVersion build() {
+			TableVersion[] tableVersion = new TableVersion[mEditor.length];
+			boolean isChanged = false;
+			for (int i=0; i<mEditor.length; i++) {
+				if (mEditor[i] == null) {
+					tableVersion[i] = mBaseVersion.getTableVersion(i);
+				}
+				else {
+					tableVersion[i] = mEditor[i].build();
+					isChanged = true;
+				}
+			}
+			return isChanged ? new DataVersion(getVersion(), tableVersion) : mBaseVersion;
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2022, Thomas Sander, openmolecules.org
+ *
+ * This file is part of the Chemical-Inventory-Server.
+ *
+ * Chemical-Inventory-Server is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Chemical-Inventory-Server is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with Chemical-Inventory-Server.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * @author Thomas Sander
+ */
+
+package org.openmolecules.inventory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optional write-behind mode for row updates. An update is appended to a local journal file, which is
+ * forced to disk before the update request returns, and applied to memory right away. A background thread
+ * writes queued updates to the database every flush interval in group commits of up to maxBatchSize updates.
+ * Consecutive updates with the same statement are sent as one JDBC batch. Journal syncs are shared as well:
+ * one sync covers all updates appended before it.<br>
+ * The journal contains update records and checkpoint records, which tell how many updates since the
+ * start of the journal are in the database. It is truncated whenever all updates are written.
+ * After a crash, updates after the last checkpoint are written to the database again before the tables
+ * are loaded. Checkpoints and truncation are forced to disk before flush() returns, such that a synchronous
+ * write after a flush() is never overwritten by a replayed update. Only the updates of a group commit,
+ * during which the server crashed after the database commit, are written twice; if another client
+ * changed the same rows in that moment, then its change is overwritten.<br>
+ * If the database rejects an update, then the row is read from the database again and queued updates
+ * of the same row are applied to memory once more, such that memory doesn't keep the rejected values.<br>
+ * Synchronous writes, which may touch rows with queued updates, must call flush() first and must not
+ * write, if it fails.
+ */
+public class WriteBehindQueue {
+	private static final byte RECORD_UPDATE = 'U';
+	private static final byte RECORD_CHECKPOINT = 'C';
+	public static final String ERROR_NOT_FLUSHED = "Queued updates could not be written to the database.";
+
+	private static volatile WriteBehindQueue sInstance;
+
+	private final File mJournalFile;
+	private final int mMaxBatchSize;
+	private final ArrayDeque<Entry> mQueue;
+	private final Object mSyncLock,mFlushLock;
+	private FileOutputStream mJournalStream;
+	private DataOutputStream mJournal;
+	private long mAppendedCount,mSyncedCount;	// updates since start
+	private long mFlushedCount;	// updates in the database since the journal was truncated
+	private volatile String mStatus;
+
+	/**
+	 * One parameterized UPDATE statement with its parameter values and their column types.
+	 * Entries of the current run also know the updated row and how they changed memory.
+	 */
+	public static class Entry {
+		final String sql;
+		final int[] type;
+		final String[] value;
+		final AlphaNumTable table;	// null for entries replayed from the journal
+		final int primaryKey;
+		private Runnable memoryChange;
+
+		public Entry(String sql, int[] type, String[] value, AlphaNumTable table, int primaryKey) {
+			this.sql = sql;
+			this.type = type;
+			this.value = value;
+			this.table = table;
+			this.primaryKey = primaryKey;
+		}
+
+		private boolean isSameRow(Entry entry) {
+			return table != null && table == entry.table && primaryKey == entry.primaryKey;
+		}
+
+		private void bind(PreparedStatement stmt) throws SQLException {
+			for (int i=0; i<value.length; i++)
+				AlphaNumTable.bindValue(stmt, i+1, type[i], value[i]);
+		}
+	}
+
+	/**
+	 * @return queue or null, if updates are written synchronously
+	 */
+	public static WriteBehindQueue getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Writes all updates, which are left in the journal from a previous run, to the database
+	 * and starts the write-behind mode. Must be called before the tables are loaded.
+	 * @param journalFile
+	 * @param flushInterval milliseconds between group commits
+	 * @param maxBatchSize maximum number of updates per group commit
+	 * @return null or error message
+	 */
+	public static synchronized String initialize(File journalFile, int flushInterval, int maxBatchSize) {
+		if (sInstance != null)
+			return null;
+
+		WriteBehindQueue queue = new WriteBehindQueue(journalFile, maxBatchSize);
+		String error = queue.replayJournal();
+		if (error != null)
+			return error;
+
+		try {
+			queue.openJournal();
+		}
+		catch (IOException ioe) {
+			return "Could not open write-behind journal: "+ioe.getMessage();
+		}
+
+		Thread flusher = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(flushInterval);
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+				queue.flush(false);
+			}
+		}, "Write-Behind Flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> queue.flush(true)));
+
+		sInstance = queue;
+		return null;
+	}
+
+	private WriteBehindQueue(File journalFile, int maxBatchSize) {
+		mJournalFile = journalFile;
+		mMaxBatchSize = Math.max(1, maxBatchSize);
+		mQueue = new ArrayDeque<>();
+		mSyncLock = new Object();
+		mFlushLock = new Object();
+	}
+
+	/**
+	 * Appends an update to the journal and applies it to memory. Returns after the journal was
+	 * synced to disk. Journal order and memory order of concurrent updates are the same.
+	 * @param entry
+	 * @param memoryChange applies the update to memory
+	 * @return null or error message, if the journal could not be written; then memory is not changed
+	 */
+	public String add(Entry entry, Runnable memoryChange) {
+		long count;
+		try {
+			synchronized (this) {
+				writeEntry(mJournal, entry);
+				entry.memoryChange = memoryChange;
+				mQueue.add(entry);
+				count = ++mAppendedCount;
+				memoryChange.run();
+			}
+			sync(count);
+			return null;
+		}
+		catch (IOException ioe) {
+			return "Could not write update journal: "+ioe.getMessage();
+		}
+	}
+
+	/**
+	 * Forces the journal to disk, unless another thread did so meanwhile after appending the given update.
+	 */
+	private void sync(long count) throws IOException {
+		synchronized (mSyncLock) {
+			if (mSyncedCount >= count)
+				return;
+
+			FileChannel channel;
+			long appendedCount;
+			synchronized (this) {
+				mJournal.flush();
+				channel = mJournalStream.getChannel();
+				appendedCount = mAppendedCount;
+			}
+			channel.force(false);
+			mSyncedCount = appendedCount;
+		}
+	}
+
+	/**
+	 * @return number of updates, which are not yet written to the database
+	 */
+	public synchronized int getQueuedCount() {
+		return mQueue.size();
+	}
+
+	/**
+	 * @return null or result of the most recent group commit, if it failed
+	 */
+	public String getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * Writes queued updates to the database in group commits. Updates, which the database rejects,
+	 * are dropped and logged and their rows are restored from the database. If the database cannot
+	 * be reached, updates stay queued.
+	 * @param all false to write at most one group; true to write all updates queued at the time of the call
+	 * @return false, if updates, which were supposed to be written, are still queued
+	 */
+	public boolean flush(boolean all) {
+		synchronized (mFlushLock) {
+			Entry lastEntry;
+			synchronized (this) {
+				lastEntry = mQueue.peekLast();
+			}
+			while (lastEntry != null) {
+				ArrayList<Entry> batch = new ArrayList<>();
+				synchronized (this) {
+					for (Entry entry:mQueue) {
+						if (batch.size() == mMaxBatchSize)
+							break;
+						batch.add(entry);
+					}
+				}
+				if (batch.isEmpty())
+					return true;
+
+				String error = DatabaseConnector.getInstance().runTransaction(cache -> writeEntries(cache, batch));
+				if (error != null) {
+					if (error.equals(DatabaseConnector.ERROR_NO_CONNECTION)) {
+						mStatus = "Write-behind: "+batch.size()+" updates waiting for database";
+						return false;
+					}
+					for (Entry entry:batch) {	// find and drop the rejected update
+						error = DatabaseConnector.getInstance().runTransaction(cache -> writeEntries(cache, Collections.singletonList(entry)));
+						if (DatabaseConnector.ERROR_NO_CONNECTION.equals(error))
+							return false;
+						if (error != null) {
+							mStatus = "Write-behind: update dropped: "+error;
+							System.out.println(mStatus+" ("+entry.sql+")");
+							restoreRow(entry);
+						}
+						removeFlushed(1);
+					}
+				}
+				else {
+					removeFlushed(batch.size());
+					mStatus = null;
+				}
+
+				if (!all || batch.contains(lastEntry))
+					return true;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the row of a rejected update from the database and applies the memory changes of
+	 * all updates of the same row again, which are queued after the rejected one.
+	 * No updates are added meanwhile.
+	 * @param rejectedEntry head of the queue
+	 */
+	private synchronized void restoreRow(Entry rejectedEntry) {
+		if (rejectedEntry.table == null)
+			return;
+
+		if (!rejectedEntry.table.reloadRow(rejectedEntry.primaryKey)) {
+			System.out.println("Write-behind: could not restore row "+rejectedEntry.primaryKey+" of table "
+					+rejectedEntry.table.getName()+"; memory differs from database until the next reload.");
+			return;
+		}
+
+		for (Entry entry:mQueue)
+			if (entry != rejectedEntry && entry.isSameRow(rejectedEntry) && entry.memoryChange != null)
+				entry.memoryChange.run();
+	}
+
+	private String writeEntries(StatementCache cache, List<Entry> entryList) throws SQLException {
+		PreparedStatement stmt = null;
+		for (Entry entry:entryList) {
+			PreparedStatement nextStmt = cache.get(entry.sql, false);
+			if (stmt != null && stmt != nextStmt)
+				stmt.executeBatch();
+			stmt = nextStmt;
+			entry.bind(stmt);
+			stmt.addBatch();
+		}
+		if (stmt != null)
+			stmt.executeBatch();
+		return null;
+	}
+
+	/**
+	 * Removes written updates from the queue and records a checkpoint in the journal,
+	 * or truncates the journal, if no updates are left. Both are forced to disk.
+	 */
+	private void removeFlushed(int count) {
+		synchronized (this) {
+			for (int i=0; i<count; i++)
+				mQueue.poll();
+			mFlushedCount += count;
+			try {
+				if (mQueue.isEmpty()) {
+					mJournal.flush();
+					mJournalStream.getChannel().truncate(0);
+					mJournalStream.getChannel().force(true);
+					mFlushedCount = 0;
+				}
+				else {
+					mJournal.writeByte(RECORD_CHECKPOINT);
+					mJournal.writeLong(mFlushedCount);
+					mJournal.flush();
+					mJournalStream.getChannel().force(false);
+				}
+			}
+			catch (IOException ioe) {
+				System.out.println("Could not update write-behind journal: "+ioe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Opens an empty journal. The truncation of a replayed journal is forced to disk.
+	 */
+	private void openJournal() throws IOException {
+		mJournalStream = new FileOutputStream(mJournalFile, false);
+		mJournalStream.getChannel().force(true);
+		mJournal = new DataOutputStream(new BufferedOutputStream(mJournalStream));
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeByte(RECORD_UPDATE);
+		out.writeUTF(entry.sql);
+		out.writeInt(entry.value.length);
+		for (int i=0; i<entry.value.length; i++) {
+			out.writeByte(entry.type[i]);
+			out.writeBoolean(entry.value[i] != null);
+			if (entry.value[i] != null)
+				out.writeUTF(entry.value[i]);
+		}
+	}
+
+	/**
+	 * Reads the journal of a previous run and writes all updates after the last checkpoint to the database.
+	 * An incomplete last record, e.g. from a crash while writing it, is ignored.
+	 * @return null or error message
+	 */
+	private String replayJournal() {
+		if (!mJournalFile.exists() || mJournalFile.length() == 0)
+			return null;
+
+		ArrayList<Entry> entryList = new ArrayList<>();
+		long flushedCount = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+			while (true) {
+				byte recordType = in.readByte();
+				if (recordType == RECORD_CHECKPOINT) {
+					flushedCount = in.readLong();
+				}
+				else if (recordType == RECORD_UPDATE) {
+					String sql = in.readUTF();
+					int count = in.readInt();
+					int[] type = new int[count];
+					String[] value = new String[count];
+					for (int i=0; i<count; i++) {
+						type[i] = in.readByte();
+						value[i] = in.readBoolean() ? in.readUTF() : null;
+					}
+					entryList.add(new Entry(sql, type, value, null, AlphaNumRow.NO_KEY));
+				}
+				else {
+					break;	// garbage after incomplete record
+				}
+			}
+		}
+		catch (EOFException eofe) {}
+		catch (IOException ioe) {
+			return "Could not read write-behind journal: "+ioe.getMessage();
+		}
+
+		List<Entry> pendingList = entryList.subList((int)Math.min(flushedCount, entryList.size()), entryList.size());
+		if (pendingList.isEmpty())
+			return null;
+
+		System.out.println("Writing "+pendingList.size()+" updates from write-behind journal to database...");
+		for (int start=0; start<pendingList.size(); start+=mMaxBatchSize) {
+			List<Entry> batch = pendingList.subList(start, Math.min(start+mMaxBatchSize, pendingList.size()));
+			String error = DatabaseConnector.getInstance().runTransaction(cache -> writeEntries(cache, batch));
+			if (error != null)
+				return "Could not replay write-behind journal: "+error;
+		}
+		return null;
+	}
+}